@@ -4,7 +4,6 @@ import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.SurfaceTexture;
 import android.hardware.Camera;
-import android.media.MediaPlayer;
 import android.os.Environment;
 import android.view.Surface;
 import android.view.SurfaceHolder;
@@ -13,10 +12,9 @@ import android.widget.Toast;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
-import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
 
 import de.robv.android.xposed.XC_MethodHook;
-import de.robv.android.xposed.XposedHelpers;
 import de.robv.android.xposed.callbacks.XC_LoadPackage;
 
 /**
@@ -27,7 +25,18 @@ public class Camera1Hook {
 
     private static final String SUBDIR_CAMERA1 = "DCIM/Camera1/";
     private static final String VIDEO_FILE = "virtual.mp4";
-    private static final String FILE_NO_SILENT = "no-silent.jpg";
+    private static final String CAPTURE_IMAGE_FILE = "1000.bmp";
+    /** Longest a preview callback waits for a fresh frame before repeating the previous one. */
+    private static final long FRAME_WAIT_NS = TimeUnit.MILLISECONDS.toNanos(100);
+    /** The decoder needs a moment to start; wait longer before the first frame of a session. */
+    private static final long FIRST_FRAME_WAIT_NS = TimeUnit.SECONDS.toNanos(1);
+
+    /** Camera1 hands YUV capture callbacks limited-range BT.601 NV21. */
+    private static final RgbToYuvConverter captureYuvConverter = new RgbToYuvConverter(
+            RgbToYuvConverter.Matrix.BT601, RgbToYuvConverter.Range.LIMITED, YuvPlaneConverter.OutputFormat.NV21);
+    /** JPEG and NV21 payloads made from 1000.bmp, warmed when a preview starts. */
+    private static final CapturePayloadCache capturePayloads =
+            new CapturePayloadCache(Camera1Hook::encodeCapture, CapturePayloadCache.DEFAULT_MAX_BYTES);
 
     public void hook(HookMain host, final XC_LoadPackage.LoadPackageParam lpparam) throws Exception {
         hookSetPreviewTexture(host, lpparam);
@@ -37,10 +46,12 @@ public class Camera1Hook {
         hookMediaRecorder(host, lpparam);
         hookStartPreview(host, lpparam);
         hookSetPreviewDisplay(host, lpparam);
+        hookSetParameters(lpparam);
+        hookRelease(lpparam);
     }
 
     private void hookSetPreviewTexture(HookMain host, final XC_LoadPackage.LoadPackageParam lpparam) {
-        XposedHelpers.findAndHookMethod("android.hardware.Camera", lpparam.classLoader,
+        HookRegistry.hookOnce("android.hardware.Camera", lpparam.classLoader,
                 "setPreviewTexture", SurfaceTexture.class, new XC_MethodHook() {
                     @Override
                     protected void beforeHookedMethod(MethodHookParam param) {
@@ -50,70 +61,80 @@ public class Camera1Hook {
                             return;
                         }
                         if (host.isDisabled()) return;
-                        if (HookMain.is_hooked) {
-                            HookMain.is_hooked = false;
+                        Camera1Session session = CameraSessions.openCamera1((Camera) param.thisObject);
+                        if (session == null) return;
+                        if (session.redirectingDisplay) {
+                            session.redirectingDisplay = false;
                             return;
                         }
                         if (param.args[0] == null) return;
-                        if (param.args[0].equals(HookMain.c1_fake_texture)) return;
-                        if (HookMain.origin_preview_camera != null && HookMain.origin_preview_camera.equals(param.thisObject)) {
-                            param.args[0] = HookMain.fake_SurfaceTexture;
-                            Logger.i("duplicate preview camera: " + HookMain.origin_preview_camera);
+                        if (param.args[0].equals(session.displayTexture)) return;
+                        if (session.fakeTexture != null) {
+                            param.args[0] = session.fakeTexture;
+                            Logger.i("duplicate preview camera: " + session.camera);
                             return;
                         }
                         Logger.i("create preview");
 
-                        HookMain.origin_preview_camera = (Camera) param.thisObject;
-                        HookMain.mSurfacetexture = (SurfaceTexture) param.args[0];
-                        if (HookMain.fake_SurfaceTexture == null) {
-                            HookMain.fake_SurfaceTexture = new SurfaceTexture(10);
-                        } else {
-                            HookMain.fake_SurfaceTexture.release();
-                            HookMain.fake_SurfaceTexture = new SurfaceTexture(10);
-                        }
-                        param.args[0] = HookMain.fake_SurfaceTexture;
+                        session.appTexture = (SurfaceTexture) param.args[0];
+                        session.fakeTexture = new SurfaceTexture(10);
+                        param.args[0] = session.fakeTexture;
+                        session.preroll(HookMain.video_path + VIDEO_FILE);
                     }
                 });
     }
 
     private void hookPreviewCallbacks(HookMain host, final XC_LoadPackage.LoadPackageParam lpparam) {
-        XposedHelpers.findAndHookMethod("android.hardware.Camera", lpparam.classLoader,
+        HookRegistry.hookOnce("android.hardware.Camera", lpparam.classLoader,
                 "setPreviewCallbackWithBuffer", Camera.PreviewCallback.class, new XC_MethodHook() {
                     @Override
                     protected void beforeHookedMethod(MethodHookParam param) {
                         if (param.args[0] != null) processCallback(host, param);
+                        else forgetCallbackBuffers(param);
                     }
                 });
-        XposedHelpers.findAndHookMethod("android.hardware.Camera", lpparam.classLoader,
+        HookRegistry.hookOnce("android.hardware.Camera", lpparam.classLoader,
                 "setPreviewCallback", Camera.PreviewCallback.class, new XC_MethodHook() {
                     @Override
                     protected void beforeHookedMethod(MethodHookParam param) {
                         if (param.args[0] != null) processCallback(host, param);
+                        else forgetCallbackBuffers(param);
                     }
                 });
-        XposedHelpers.findAndHookMethod("android.hardware.Camera", lpparam.classLoader,
+        HookRegistry.hookOnce("android.hardware.Camera", lpparam.classLoader,
                 "setOneShotPreviewCallback", Camera.PreviewCallback.class, new XC_MethodHook() {
                     @Override
                     protected void beforeHookedMethod(MethodHookParam param) {
                         if (param.args[0] != null) processCallback(host, param);
+                        else forgetCallbackBuffers(param);
                     }
                 });
     }
 
     private void hookAddCallbackBuffer(XC_LoadPackage.LoadPackageParam lpparam) {
-        XposedHelpers.findAndHookMethod("android.hardware.Camera", lpparam.classLoader,
+        HookRegistry.hookOnce("android.hardware.Camera", lpparam.classLoader,
                 "addCallbackBuffer", byte[].class, new XC_MethodHook() {
                     @Override
                     protected void beforeHookedMethod(MethodHookParam param) {
-                        if (param.args[0] != null) {
-                            param.args[0] = new byte[((byte[]) param.args[0]).length];
-                        }
+                        if (param.args[0] == null) return;
+                        Camera1Session session = CameraSessions.camera1((Camera) param.thisObject);
+                        if (session == null) return;
+                        // The camera fills a pooled stand-in; onPreviewFrame hands the app its own buffer back.
+                        param.args[0] = session.callbackBuffers.substitute((byte[]) param.args[0]);
                     }
                 });
     }
 
+    /** Removing the preview callback drops the camera's buffer queue, stand-ins included. */
+    private void forgetCallbackBuffers(XC_MethodHook.MethodHookParam param) {
+        if (param.thisObject instanceof Camera) {
+            Camera1Session session = CameraSessions.camera1((Camera) param.thisObject);
+            if (session != null) session.callbackBuffers.forget();
+        }
+    }
+
     private void hookTakePicture(HookMain host, final XC_LoadPackage.LoadPackageParam lpparam) {
-        XposedHelpers.findAndHookMethod("android.hardware.Camera", lpparam.classLoader,
+        HookRegistry.hookOnce("android.hardware.Camera", lpparam.classLoader,
                 "takePicture", Camera.ShutterCallback.class, Camera.PictureCallback.class,
                 Camera.PictureCallback.class, Camera.PictureCallback.class, new XC_MethodHook() {
                     @Override
@@ -126,7 +147,7 @@ public class Camera1Hook {
     }
 
     private void hookMediaRecorder(HookMain host, XC_LoadPackage.LoadPackageParam lpparam) {
-        XposedHelpers.findAndHookMethod("android.media.MediaRecorder", lpparam.classLoader,
+        HookRegistry.hookOnce("android.media.MediaRecorder", lpparam.classLoader,
                 "setCamera", Camera.class, new XC_MethodHook() {
                     @Override
                     protected void beforeHookedMethod(MethodHookParam param) {
@@ -138,7 +159,7 @@ public class Camera1Hook {
                                         "应用：" + lpparam.appInfo.name + "(" + lpparam.packageName + ") 触发了录像，但目前无法拦截",
                                         Toast.LENGTH_SHORT).show();
                             } catch (Exception e) {
-                                Logger.i("toast: " + Arrays.toString(e.getStackTrace()));
+                                Logger.w(e);
                             }
                         }
                     }
@@ -146,7 +167,7 @@ public class Camera1Hook {
     }
 
     private void hookStartPreview(HookMain host, final XC_LoadPackage.LoadPackageParam lpparam) {
-        XposedHelpers.findAndHookMethod("android.hardware.Camera", lpparam.classLoader,
+        HookRegistry.hookOnce("android.hardware.Camera", lpparam.classLoader,
                 "startPreview", new XC_MethodHook() {
                     @Override
                     protected void beforeHookedMethod(MethodHookParam param) throws Throwable {
@@ -156,73 +177,38 @@ public class Camera1Hook {
                             return;
                         }
                         if (host.isDisabled()) return;
-                        HookMain.is_someone_playing = false;
                         Logger.i("start preview");
-                        HookMain.start_preview_camera = (Camera) param.thisObject;
+                        Camera1Session session = CameraSessions.camera1((Camera) param.thisObject);
+                        if (session == null) return;
+                        Camera1Parameters parameters = session.parameters();
+                        prewarmCapturePayloads(parameters.pictureWidth, parameters.pictureHeight);
+                        // Only the first player started here carries the clip's sound.
+                        boolean audioTaken = !host.isNoSilent();
 
-                        if (HookMain.ori_holder != null) {
-                            if (HookMain.mplayer1 == null) {
-                                HookMain.mplayer1 = new MediaPlayer();
-                            } else {
-                                HookMain.mplayer1.release();
-                                HookMain.mplayer1 = null;
-                                HookMain.mplayer1 = new MediaPlayer();
-                            }
-                            if (!HookMain.ori_holder.getSurface().isValid()) return;
-                            HookMain.mplayer1.setSurface(HookMain.ori_holder.getSurface());
-                            boolean noSilent = new File(host.getDcimCamera1Path() + FILE_NO_SILENT).exists();
-                            if (!noSilent || HookMain.is_someone_playing) {
-                                HookMain.mplayer1.setVolume(0, 0);
-                                HookMain.is_someone_playing = false;
-                            } else {
-                                HookMain.is_someone_playing = true;
-                            }
-                            HookMain.mplayer1.setLooping(true);
-                            HookMain.mplayer1.setOnPreparedListener(mp -> HookMain.mplayer1.start());
-                            try {
-                                HookMain.mplayer1.setDataSource(HookMain.video_path + VIDEO_FILE);
-                                HookMain.mplayer1.prepare();
-                            } catch (IOException e) {
-                                Logger.i(String.valueOf(e));
-                            }
+                        String path = HookMain.video_path + VIDEO_FILE;
+
+                        // Players prepare on the pool's thread; startPreview returns at once.
+                        if (session.holder != null) {
+                            PlayerPool.stop(session.holderPlayer);
+                            session.holderPlayer = null;
+                            Surface surface = session.holder.getSurface();
+                            if (!surface.isValid()) return;
+                            session.holderPlayer = PlayerPool.start(surface, path, audioTaken);
+                            audioTaken = true;
                         }
 
-                        if (HookMain.mSurfacetexture != null) {
-                            if (HookMain.mSurface == null) {
-                                HookMain.mSurface = new Surface(HookMain.mSurfacetexture);
-                            } else {
-                                HookMain.mSurface.release();
-                                HookMain.mSurface = new Surface(HookMain.mSurfacetexture);
-                            }
-                            if (HookMain.mMediaPlayer == null) {
-                                HookMain.mMediaPlayer = new MediaPlayer();
-                            } else {
-                                HookMain.mMediaPlayer.release();
-                                HookMain.mMediaPlayer = new MediaPlayer();
-                            }
-                            HookMain.mMediaPlayer.setSurface(HookMain.mSurface);
-                            boolean noSilent = new File(host.getDcimCamera1Path() + FILE_NO_SILENT).exists();
-                            if (!noSilent || HookMain.is_someone_playing) {
-                                HookMain.mMediaPlayer.setVolume(0, 0);
-                                HookMain.is_someone_playing = false;
-                            } else {
-                                HookMain.is_someone_playing = true;
-                            }
-                            HookMain.mMediaPlayer.setLooping(true);
-                            HookMain.mMediaPlayer.setOnPreparedListener(mp -> HookMain.mMediaPlayer.start());
-                            try {
-                                HookMain.mMediaPlayer.setDataSource(HookMain.video_path + VIDEO_FILE);
-                                HookMain.mMediaPlayer.prepare();
-                            } catch (IOException e) {
-                                Logger.i(String.valueOf(e));
-                            }
+                        if (session.appTexture != null) {
+                            PlayerPool.stop(session.texturePlayer);
+                            if (session.appSurface != null) session.appSurface.release();
+                            session.appSurface = new Surface(session.appTexture);
+                            session.texturePlayer = PlayerPool.start(session.appSurface, path, audioTaken);
                         }
                     }
                 });
     }
 
     private void hookSetPreviewDisplay(HookMain host, final XC_LoadPackage.LoadPackageParam lpparam) {
-        XposedHelpers.findAndHookMethod("android.hardware.Camera", lpparam.classLoader,
+        HookRegistry.hookOnce("android.hardware.Camera", lpparam.classLoader,
                 "setPreviewDisplay", SurfaceHolder.class, new XC_MethodHook() {
                     @Override
                     protected void beforeHookedMethod(MethodHookParam param) {
@@ -233,112 +219,141 @@ public class Camera1Hook {
                             return;
                         }
                         if (host.isDisabled()) return;
-                        HookMain.mcamera1 = (Camera) param.thisObject;
-                        HookMain.ori_holder = (SurfaceHolder) param.args[0];
-                        if (HookMain.c1_fake_texture == null) {
-                            HookMain.c1_fake_texture = new SurfaceTexture(11);
-                        } else {
-                            HookMain.c1_fake_texture.release();
-                            HookMain.c1_fake_texture = null;
-                            HookMain.c1_fake_texture = new SurfaceTexture(11);
-                        }
-                        if (HookMain.c1_fake_surface == null) {
-                            HookMain.c1_fake_surface = new Surface(HookMain.c1_fake_texture);
-                        } else {
-                            HookMain.c1_fake_surface.release();
-                            HookMain.c1_fake_surface = null;
-                            HookMain.c1_fake_surface = new Surface(HookMain.c1_fake_texture);
-                        }
-                        HookMain.is_hooked = true;
+                        Camera1Session session = CameraSessions.openCamera1((Camera) param.thisObject);
+                        if (session == null) return;
+                        session.holder = (SurfaceHolder) param.args[0];
+                        if (session.displaySurface != null) session.displaySurface.release();
+                        if (session.displayTexture != null) session.displayTexture.release();
+                        session.displayTexture = new SurfaceTexture(11);
+                        session.displaySurface = new Surface(session.displayTexture);
+                        session.redirectingDisplay = true;
                         try {
-                            HookMain.mcamera1.setPreviewTexture(HookMain.c1_fake_texture);
+                            session.camera.setPreviewTexture(session.displayTexture);
                         } catch (IOException e) {
                             Logger.i(String.valueOf(e));
                         }
+                        session.preroll(HookMain.video_path + VIDEO_FILE);
                         param.setResult(null);
                     }
                 });
     }
 
+    /**
+     * New parameters invalidate the session's cached copy, and a running preview callback is
+     * resized to the new preview size.
+     */
+    private void hookSetParameters(XC_LoadPackage.LoadPackageParam lpparam) {
+        HookRegistry.hookOnce("android.hardware.Camera", lpparam.classLoader,
+                "setParameters", Camera.Parameters.class, new XC_MethodHook() {
+                    @Override
+                    protected void afterHookedMethod(MethodHookParam param) {
+                        Camera1Session session = CameraSessions.camera1((Camera) param.thisObject);
+                        if (session == null) return;
+                        session.invalidateParameters();
+                        if (session.callbackStarted) {
+                            // The app may restart the preview at another size; scale to that from now on.
+                            Camera1Parameters parameters = session.parameters();
+                            session.delivery.setPreviewSize(parameters.previewWidth, parameters.previewHeight);
+                        }
+                        // The picture size is known now; have payloads of that size ready for the shot.
+                        Camera.Size picture = ((Camera.Parameters) param.args[0]).getPictureSize();
+                        if (picture != null) prewarmCapturePayloads(picture.width, picture.height);
+                    }
+                });
+    }
+
+    /** A released camera takes its session, decoder and players with it. */
+    private void hookRelease(XC_LoadPackage.LoadPackageParam lpparam) {
+        HookRegistry.hookOnce("android.hardware.Camera", lpparam.classLoader,
+                "release", new XC_MethodHook() {
+                    @Override
+                    protected void beforeHookedMethod(MethodHookParam param) {
+                        CameraSessions.releaseCamera1((Camera) param.thisObject);
+                    }
+                });
+    }
+
     private void processCallback(HookMain host, XC_MethodHook.MethodHookParam param) {
         Class<?> previewCbClass = param.args[0].getClass();
-        int needStop = (host.isDisabled() || !host.hasVirtualVideo()) ? 1 : 0;
-        if (needStop == 0) {
+        boolean needStop = host.isDisabled() || !host.hasVirtualVideo();
+        if (!needStop) {
             host.updateShouldShowToast();
             if (!host.hasVirtualVideo()) {
                 host.showNoVideoToast(HookMain.toast_content != null ? HookMain.toast_content.getPackageName() : "");
-                needStop = 1;
+                needStop = true;
             }
         }
-        final int finalNeedStop = needStop;
-        XposedHelpers.findAndHookMethod(previewCbClass, "onPreviewFrame", byte[].class, Camera.class, new XC_MethodHook() {
+        if (param.thisObject instanceof Camera) {
+            // A preview callback is a preview target too; it may be set before the texture.
+            Camera1Session session = CameraSessions.openCamera1((Camera) param.thisObject);
+            if (session != null) session.callbackStopped = needStop;
+        }
+        // Installed once per callback class; the body reads the state of the camera it is called for.
+        HookRegistry.hookOnce(previewCbClass, "onPreviewFrame", byte[].class, Camera.class, new XC_MethodHook() {
             @Override
             protected void beforeHookedMethod(MethodHookParam paramd) throws Throwable {
-                Camera localCam = (Camera) paramd.args[1];
-                if (localCam.equals(HookMain.camera_onPreviewFrame)) {
-                    while (HookMain.data_buffer == null) { }
-                    System.arraycopy(HookMain.data_buffer, 0, paramd.args[0], 0,
-                            Math.min(HookMain.data_buffer.length, ((byte[]) paramd.args[0]).length));
-                } else {
-                    HookMain.camera_callback_calss = previewCbClass;
-                    HookMain.camera_onPreviewFrame = (Camera) paramd.args[1];
-                    HookMain.mwidth = HookMain.camera_onPreviewFrame.getParameters().getPreviewSize().width;
-                    HookMain.mhight = HookMain.camera_onPreviewFrame.getParameters().getPreviewSize().height;
-                    int frameRate = HookMain.camera_onPreviewFrame.getParameters().getPreviewFrameRate();
-                    Logger.i("preview callback init: width=" + HookMain.mwidth + " height=" + HookMain.mhight + " frameRate=" + frameRate);
-                    host.updateShouldShowToast();
-                    if (HookMain.toast_content != null && HookMain.need_to_show_toast) {
-                        try {
-                            Toast.makeText(HookMain.toast_content,
-                                    "发现预览\n宽：" + HookMain.mwidth + "\n高：" + HookMain.mhight + "\n需要视频分辨率与其完全相同",
-                                    Toast.LENGTH_SHORT).show();
-                        } catch (Exception ee) {
-                            Logger.i("toast: " + ee);
-                        }
+                Camera1Session session = CameraSessions.camera1((Camera) paramd.args[1]);
+                // Posted before release, or for a camera never set up: the frame is left as is.
+                if (session == null) return;
+                // Swap the stand-in the camera filled for the app's own buffer; a stopped
+                // callback gets the camera's frame in it.
+                byte[] buffer = session.callbackBuffers.reclaim((byte[]) paramd.args[0], session.callbackStopped);
+                paramd.args[0] = buffer;
+                if (session.callbackStopped) return;
+                if (session.callbackStarted) {
+                    session.deliver(buffer, FRAME_WAIT_NS);
+                    return;
+                }
+                session.callbackStarted = true;
+                Camera1Parameters parameters = session.parameters();
+                Logger.i("preview callback init: %s camera=%s", parameters, session.camera);
+                session.delivery.setPreviewSize(parameters.previewWidth, parameters.previewHeight);
+                host.updateShouldShowToast();
+                if (HookMain.toast_content != null && HookMain.need_to_show_toast) {
+                    try {
+                        Toast.makeText(HookMain.toast_content,
+                                "发现预览\n宽：" + parameters.previewWidth + "\n高：" + parameters.previewHeight
+                                        + "\n视频将自动缩放裁剪至该尺寸",
+                                Toast.LENGTH_SHORT).show();
+                    } catch (Exception ee) {
+                        Logger.i("toast: " + ee);
                     }
-                    if (finalNeedStop == 1) return;
-                    if (HookMain.hw_decode_obj != null) HookMain.hw_decode_obj.stopDecode();
-                    HookMain.hw_decode_obj = new VideoToFrames();
-                    HookMain.hw_decode_obj.setSaveFrames("", OutputImageFormat.NV21);
-                    HookMain.hw_decode_obj.decode(HookMain.video_path + VIDEO_FILE);
-                    while (HookMain.data_buffer == null) { }
-                    System.arraycopy(HookMain.data_buffer, 0, paramd.args[0], 0,
-                            Math.min(HookMain.data_buffer.length, ((byte[]) paramd.args[0]).length));
                 }
+                // Usually prerolled since the preview target was set; started here otherwise.
+                session.startDecoder(HookMain.video_path + VIDEO_FILE);
+                session.deliver(buffer, FIRST_FRAME_WAIT_NS);
             }
         });
     }
 
     private void processAShotJpeg(HookMain host, XC_MethodHook.MethodHookParam param, int index) {
         try {
-            Logger.i("JPEG callback: " + param.args[index]);
+            Logger.i("JPEG callback: %s", param.args[index]);
         } catch (Exception e) {
             Logger.i(String.valueOf(e));
         }
         Class<?> callback = param.args[index].getClass();
-        XposedHelpers.findAndHookMethod(callback, "onPictureTaken", byte[].class, Camera.class, new XC_MethodHook() {
+        HookRegistry.hookOnce(callback, "onPictureTaken", byte[].class, Camera.class, new XC_MethodHook() {
             @Override
             protected void beforeHookedMethod(MethodHookParam paramd) throws Throwable {
                 try {
                     Camera cam = (Camera) paramd.args[1];
-                    HookMain.onemwidth = cam.getParameters().getPreviewSize().width;
-                    HookMain.onemhight = cam.getParameters().getPreviewSize().height;
-                    Logger.i("JPEG picture callback init: width=" + HookMain.onemwidth + " height=" + HookMain.onemhight + " camera=" + cam);
+                    Camera1Parameters parameters = parameters(cam);
+                    Logger.i("JPEG picture callback init: %s camera=%s", parameters, cam);
                     host.updateShouldShowToast();
                     if (HookMain.toast_content != null && HookMain.need_to_show_toast) {
                         try {
                             Toast.makeText(HookMain.toast_content,
-                                    "发现拍照\n宽：" + HookMain.onemwidth + "\n高：" + HookMain.onemhight + "\n格式：JPEG",
+                                    "发现拍照\n宽：" + parameters.previewWidth + "\n高：" + parameters.previewHeight + "\n格式：JPEG",
                                     Toast.LENGTH_SHORT).show();
                         } catch (Exception e) {
                             Logger.i("toast: " + e);
                         }
                     }
                     if (host.isDisabled()) return;
-                    Bitmap pict = getBMP(HookMain.video_path + "1000.bmp");
-                    ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                    pict.compress(Bitmap.CompressFormat.JPEG, 100, baos);
-                    paramd.args[0] = baos.toByteArray();
+                    byte[] jpeg = capturePayloads.get(captureSource(), CapturePayloadCache.Format.JPEG,
+                            parameters.pictureWidth, parameters.pictureHeight);
+                    if (jpeg != null) paramd.args[0] = jpeg;
                 } catch (Exception ee) {
                     Logger.i(String.valueOf(ee));
                 }
@@ -348,32 +363,31 @@ public class Camera1Hook {
 
     private void processAShotYUV(HookMain host, XC_MethodHook.MethodHookParam param) {
         try {
-            Logger.i("YUV picture callback: " + param.args[1]);
+            Logger.i("YUV picture callback: %s", param.args[1]);
         } catch (Exception e) {
             Logger.i(String.valueOf(e));
         }
         Class<?> callback = param.args[1].getClass();
-        XposedHelpers.findAndHookMethod(callback, "onPictureTaken", byte[].class, Camera.class, new XC_MethodHook() {
+        HookRegistry.hookOnce(callback, "onPictureTaken", byte[].class, Camera.class, new XC_MethodHook() {
             @Override
             protected void beforeHookedMethod(MethodHookParam paramd) throws Throwable {
                 try {
                     Camera cam = (Camera) paramd.args[1];
-                    HookMain.onemwidth = cam.getParameters().getPreviewSize().width;
-                    HookMain.onemhight = cam.getParameters().getPreviewSize().height;
-                    Logger.i("YUV picture callback init: width=" + HookMain.onemwidth + " height=" + HookMain.onemhight + " camera=" + cam);
+                    Camera1Parameters parameters = parameters(cam);
+                    Logger.i("YUV picture callback init: %s camera=%s", parameters, cam);
                     host.updateShouldShowToast();
                     if (HookMain.toast_content != null && HookMain.need_to_show_toast) {
                         try {
                             Toast.makeText(HookMain.toast_content,
-                                    "发现拍照\n宽：" + HookMain.onemwidth + "\n高：" + HookMain.onemhight + "\n格式：YUV_420_888",
+                                    "发现拍照\n宽：" + parameters.previewWidth + "\n高：" + parameters.previewHeight + "\n格式：YUV_420_888",
                                     Toast.LENGTH_SHORT).show();
                         } catch (Exception e) {
                             Logger.i("toast: " + e);
                         }
                     }
                     if (host.isDisabled()) return;
-                    HookMain.input = getYUVByBitmap(getBMP(HookMain.video_path + "1000.bmp"));
-                    paramd.args[0] = HookMain.input;
+                    paramd.args[0] = capturePayloads.get(captureSource(), CapturePayloadCache.Format.NV21,
+                            parameters.pictureWidth, parameters.pictureHeight);
                 } catch (Exception ee) {
                     Logger.i(String.valueOf(ee));
                 }
@@ -381,36 +395,40 @@ public class Camera1Hook {
         });
     }
 
-    private static Bitmap getBMP(String path) throws Throwable {
-        return BitmapFactory.decodeFile(path);
+    /** {@code cam}'s parameters, cached by its session if it has one. */
+    private static Camera1Parameters parameters(Camera cam) {
+        Camera1Session session = CameraSessions.camera1(cam);
+        return session != null ? session.parameters() : Camera1Parameters.read(cam);
     }
 
-    private static byte[] rgb2YCbCr420(int[] pixels, int width, int height) {
-        int len = width * height;
-        byte[] yuv = new byte[len * 3 / 2];
-        for (int i = 0; i < height; i++) {
-            for (int j = 0; j < width; j++) {
-                int rgb = (pixels[i * width + j]) & 0x00FFFFFF;
-                int r = rgb & 0xFF, g = (rgb >> 8) & 0xFF, b = (rgb >> 16) & 0xFF;
-                int y = ((66 * r + 129 * g + 25 * b + 128) >> 8) + 16;
-                int u = ((-38 * r - 74 * g + 112 * b + 128) >> 8) + 128;
-                int v = ((112 * r - 94 * g - 18 * b + 128) >> 8) + 128;
-                y = Math.max(16, Math.min(255, y));
-                u = Math.max(0, Math.min(255, u));
-                v = Math.max(0, Math.min(255, v));
-                yuv[i * width + j] = (byte) y;
-                yuv[len + (i >> 1) * width + (j & ~1)] = (byte) u;
-                yuv[len + (i >> 1) * width + (j & ~1) + 1] = (byte) v;
-            }
-        }
-        return yuv;
+    private static File captureSource() {
+        return new File(HookMain.video_path + CAPTURE_IMAGE_FILE);
+    }
+
+    /**
+     * Starts encoding the capture payloads at the camera's picture size in the background, so
+     * the first shot finds them ready.
+     */
+    private static void prewarmCapturePayloads(int width, int height) {
+        File source = captureSource();
+        capturePayloads.prewarm(source, CapturePayloadCache.Format.JPEG, width, height);
+        capturePayloads.prewarm(source, CapturePayloadCache.Format.NV21, width, height);
     }
 
-    private static byte[] getYUVByBitmap(Bitmap bitmap) {
+    private static byte[] encodeCapture(File source, CapturePayloadCache.Format format, int width, int height) {
+        Bitmap bitmap = BitmapFactory.decodeFile(source.getPath());
         if (bitmap == null) return null;
+        if (width > 0 && height > 0 && (width != bitmap.getWidth() || height != bitmap.getHeight())) {
+            bitmap = Bitmap.createScaledBitmap(bitmap, width, height, true);
+        }
+        if (format == CapturePayloadCache.Format.JPEG) {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            bitmap.compress(Bitmap.CompressFormat.JPEG, 100, baos);
+            return baos.toByteArray();
+        }
         int w = bitmap.getWidth(), h = bitmap.getHeight();
         int[] pixels = new int[w * h];
         bitmap.getPixels(pixels, 0, w, 0, 0, w, h);
-        return rgb2YCbCr420(pixels, w, h);
+        return captureYuvConverter.convert(pixels, w, h);
     }
 }
@@ -0,0 +1,42 @@
+package com.android.vcam;
+
+import android.hardware.Camera;
+
+/**
+ * The few {@link Camera.Parameters} values the Camera1 hooks need, read once. Every
+ * {@code getParameters()} is a round trip to the camera service plus parsing of the whole
+ * flattened parameter string, so the frame and capture hooks read these fields instead;
+ * {@link Camera1Session#parameters()} refreshes them after the app calls setParameters.
+ */
+final class Camera1Parameters {
+
+    final int previewWidth;
+    final int previewHeight;
+    /** An {@link android.graphics.ImageFormat} constant, NV21 unless the app changed it. */
+    final int previewFormat;
+    final int previewFrameRate;
+    final int pictureWidth;
+    final int pictureHeight;
+
+    private Camera1Parameters(Camera.Parameters parameters) {
+        Camera.Size preview = parameters.getPreviewSize();
+        Camera.Size picture = parameters.getPictureSize();
+        previewWidth = preview.width;
+        previewHeight = preview.height;
+        previewFormat = parameters.getPreviewFormat();
+        previewFrameRate = parameters.getPreviewFrameRate();
+        pictureWidth = picture.width;
+        pictureHeight = picture.height;
+    }
+
+    /** Reads the current parameters of {@code camera}; one getParameters() call. */
+    static Camera1Parameters read(Camera camera) {
+        return new Camera1Parameters(camera.getParameters());
+    }
+
+    @Override
+    public String toString() {
+        return "preview " + previewWidth + "x" + previewHeight + " format=" + previewFormat
+                + " fps=" + previewFrameRate + ", picture " + pictureWidth + "x" + pictureHeight;
+    }
+}
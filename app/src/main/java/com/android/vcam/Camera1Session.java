@@ -0,0 +1,179 @@
+package com.android.vcam;
+
+import android.graphics.SurfaceTexture;
+import android.hardware.Camera;
+import android.os.Handler;
+import android.os.Looper;
+import android.view.Surface;
+import android.view.SurfaceHolder;
+
+/**
+ * Everything the Camera1 hooks track for one {@link Camera} instance: the app's preview
+ * targets and the fake textures swapped in for them, the players rendering into those targets,
+ * and the decoder and frame exchanger feeding its preview callbacks. Hooks for one camera run on
+ * the app's camera thread and its callback thread; fields read by both are volatile, and
+ * start/stop of the decoder is synchronized on the session, so cameras never contend.
+ */
+final class Camera1Session {
+
+    /** Frames decoded ahead of the first preview callback; about 0.1 s of video. */
+    private static final int PREROLL_FRAMES = 3;
+    /**
+     * A preroll no preview callback has claimed this long after the target was set is stopped;
+     * the app likely shows the preview only (TextureView, SurfaceView) and never asks for frames.
+     */
+    private static final long PREROLL_TIMEOUT_MS = 10_000L;
+
+    final Camera camera;
+    /** When the hooks first saw this camera; time-to-first-frame counts from here. */
+    final long createdNs = System.nanoTime();
+
+    /** The app's texture from setPreviewTexture, and the fake one the camera gets instead. */
+    SurfaceTexture appTexture;
+    SurfaceTexture fakeTexture;
+    Surface appSurface;
+    PlayerPool.Lease texturePlayer;
+
+    /** The app's holder from setPreviewDisplay, and the fake texture the camera gets instead. */
+    SurfaceHolder holder;
+    SurfaceTexture displayTexture;
+    Surface displaySurface;
+    PlayerPool.Lease holderPlayer;
+    /** Set while the display hook calls setPreviewTexture itself, so that call passes through. */
+    boolean redirectingDisplay;
+
+    private final FrameExchanger exchanger = new FrameExchanger(FrameBufferPool.shared(), true);
+    final PreviewFrameDelivery delivery = new PreviewFrameDelivery(exchanger);
+    /** Stand-ins queued to the camera for the app's addCallbackBuffer buffers. */
+    final CallbackBufferPool callbackBuffers = new CallbackBufferPool();
+    private VideoToFrames decoder;
+    private String decoderPath;
+    /** Bumped by every preroll and by release, so only the latest preroll's timeout fires. */
+    private int prerollId;
+    /** Set by the latest setPreviewCallback*: whether preview frames are left untouched. */
+    volatile boolean callbackStopped;
+    /** Whether onPreviewFrame has been seen, sized and started decoding for this camera. */
+    volatile boolean callbackStarted;
+    /** Callback thread only. */
+    private boolean firstFrameLogged;
+    /** Parameters as of the last setParameters, or null until read again. */
+    private volatile Camera1Parameters parameters;
+    /** Bumped by setParameters so a read racing with it is not cached; guarded by the session. */
+    private int parametersGeneration;
+
+    Camera1Session(Camera camera) {
+        this.camera = camera;
+        delivery.startTiming(createdNs);
+    }
+
+    /**
+     * Starts decoding {@code path} into this camera's frame exchanger unless that is already
+     * under way. The first {@link #PREROLL_FRAMES} frames are decoded at once and held for the
+     * first preview callbacks, so called as soon as a preview target is set, the codec has
+     * started by the time the app asks for frames.
+     */
+    synchronized void startDecoder(String path) throws Throwable {
+        if (decoder != null && path.equals(decoderPath)) return;
+        if (decoder != null) decoder.stopDecode();
+        PrerollBuffer preroll = new PrerollBuffer(PREROLL_FRAMES);
+        delivery.setPreroll(preroll);
+        decoder = new VideoToFrames();
+        decoder.setSaveFrames("", OutputImageFormat.NV21);
+        decoder.setFrameExchanger(exchanger);
+        decoder.setPreroll(preroll);
+        decoder.decode(path);
+        decoderPath = path;
+    }
+
+    /**
+     * {@link #startDecoder} from a hook that must not fail: the preview target was just set.
+     * Stopped again after {@link #PREROLL_TIMEOUT_MS} unless a preview callback has started.
+     */
+    void preroll(String path) {
+        final int id;
+        synchronized (this) {
+            try {
+                startDecoder(path);
+            } catch (Throwable t) {
+                Logger.i("preroll: " + t);
+                return;
+            }
+            id = ++prerollId;
+        }
+        new Handler(Looper.getMainLooper()).postDelayed(() -> expirePreroll(id), PREROLL_TIMEOUT_MS);
+    }
+
+    private synchronized void expirePreroll(int id) {
+        if (id != prerollId || callbackStarted || decoder == null) return;
+        Logger.i("camera1 preroll unclaimed, stopping: %s", camera);
+        decoder.stopDecode();
+        decoder = null;
+        decoderPath = null;
+        delivery.setPreroll(null);
+        exchanger.reset();
+    }
+
+    /** The camera's current parameters, read from the camera service only after a change. */
+    Camera1Parameters parameters() {
+        Camera1Parameters p = parameters;
+        if (p != null) return p;
+        int generation;
+        synchronized (this) {
+            generation = parametersGeneration;
+        }
+        p = Camera1Parameters.read(camera);
+        synchronized (this) {
+            if (generation == parametersGeneration) parameters = p;
+        }
+        return p;
+    }
+
+    /** The app called setParameters; the next {@link #parameters()} reads them again. */
+    synchronized void invalidateParameters() {
+        parametersGeneration++;
+        parameters = null;
+    }
+
+    /** Fills a preview callback buffer; logs this camera's time to first frame once it has one. */
+    PreviewFrameDelivery.Result deliver(byte[] dst, long timeoutNs) {
+        PreviewFrameDelivery.Result result = delivery.deliver(dst, timeoutNs);
+        if (!firstFrameLogged && result != PreviewFrameDelivery.Result.BLANK) {
+            firstFrameLogged = true;
+            Logger.i("camera1 first frame after %s ms: %s", delivery.timeToFirstFrameNs() / 1_000_000, camera);
+        }
+        return result;
+    }
+
+    /** Stops the decoder and players and frees the fake textures; the camera is gone. */
+    synchronized void release() {
+        prerollId++;
+        if (decoder != null) {
+            decoder.stopDecode();
+            decoder = null;
+            decoderPath = null;
+        }
+        PlayerPool.stop(texturePlayer);
+        texturePlayer = null;
+        PlayerPool.stop(holderPlayer);
+        holderPlayer = null;
+        if (appSurface != null) {
+            appSurface.release();
+            appSurface = null;
+        }
+        if (displaySurface != null) {
+            displaySurface.release();
+            displaySurface = null;
+        }
+        if (fakeTexture != null) {
+            fakeTexture.release();
+            fakeTexture = null;
+        }
+        if (displayTexture != null) {
+            displayTexture.release();
+            displayTexture = null;
+        }
+        callbackStarted = false;
+        callbackBuffers.forget();
+        exchanger.reset();
+    }
+}
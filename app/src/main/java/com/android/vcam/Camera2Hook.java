@@ -1,5 +1,8 @@
 package com.android.vcam;
 
+import android.graphics.ImageFormat;
+import android.graphics.Rect;
+import android.graphics.SurfaceTexture;
 import android.hardware.camera2.CameraCaptureSession;
 import android.hardware.camera2.CameraDevice;
 import android.hardware.camera2.CaptureFailure;
@@ -7,14 +10,13 @@ import android.hardware.camera2.CaptureRequest;
 import android.hardware.camera2.params.InputConfiguration;
 import android.hardware.camera2.params.OutputConfiguration;
 import android.hardware.camera2.params.SessionConfiguration;
-import android.media.MediaPlayer;
+import android.media.ImageReader;
 import android.os.Build;
 import android.os.Handler;
-import android.graphics.SurfaceTexture;
 import android.view.Surface;
+import android.view.SurfaceHolder;
 import android.widget.Toast;
 
-import java.io.File;
 import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.Executor;
@@ -30,7 +32,7 @@ import de.robv.android.xposed.callbacks.XC_LoadPackage;
 public class Camera2Hook {
 
     private static final String VIDEO_FILE = "virtual.mp4";
-    private static final String FILE_NO_SILENT = "no-silent.jpg";
+    private static final Logger.RateLimit CAPTURE_FAILED_LOG = new Logger.RateLimit(1000);
 
     public void hook(HookMain host, final XC_LoadPackage.LoadPackageParam lpparam) throws Exception {
         hookCameraManagerOpenCamera(host, lpparam);
@@ -41,55 +43,50 @@ public class Camera2Hook {
         hookCaptureRequestBuilderRemoveTarget(host, lpparam);
         hookCaptureRequestBuilderBuild(host, lpparam);
         hookImageReaderNewInstance(host, lpparam);
+        hookSurfaceSources(lpparam);
         hookOnCaptureFailed(lpparam);
     }
 
     private void hookCameraManagerOpenCamera(HookMain host, final XC_LoadPackage.LoadPackageParam lpparam) {
-        XposedHelpers.findAndHookMethod("android.hardware.camera2.CameraManager", lpparam.classLoader,
+        HookRegistry.hookOnce("android.hardware.camera2.CameraManager", lpparam.classLoader,
                 "openCamera", String.class, CameraDevice.StateCallback.class, Handler.class, new XC_MethodHook() {
                     @Override
                     protected void beforeHookedMethod(MethodHookParam param) {
                         if (param.args[1] == null) return;
-                        if (param.args[1].equals(HookMain.c2_state_cb)) return;
-                        HookMain.c2_state_cb = (CameraDevice.StateCallback) param.args[1];
-                        HookMain.c2_state_callback = param.args[1].getClass();
                         if (host.isDisabled()) return;
                         host.updateShouldShowToast();
                         if (!host.hasVirtualVideo()) {
                             host.showNoVideoToast(lpparam.packageName);
                             return;
                         }
-                        Logger.i("camera2 init (1-arg), callback class: " + HookMain.c2_state_callback);
-                        HookMain.is_first_hook_build = true;
-                        processCamera2Init(host, HookMain.c2_state_callback);
+                        Logger.i("camera2 init (1-arg), callback class: %s", param.args[1].getClass());
+                        CameraSessions.camera2Opening(HookMain.video_path + VIDEO_FILE);
+                        processCamera2Init(host, param.args[1].getClass());
                     }
                 });
     }
 
     private void hookCameraManagerOpenCameraWithExecutor(HookMain host, final XC_LoadPackage.LoadPackageParam lpparam) {
-        XposedHelpers.findAndHookMethod("android.hardware.camera2.CameraManager", lpparam.classLoader,
+        HookRegistry.hookOnce("android.hardware.camera2.CameraManager", lpparam.classLoader,
                 "openCamera", String.class, Executor.class, CameraDevice.StateCallback.class, new XC_MethodHook() {
                     @Override
                     protected void afterHookedMethod(MethodHookParam param) {
                         if (param.args[2] == null) return;
-                        if (param.args[2].equals(HookMain.c2_state_cb)) return;
-                        HookMain.c2_state_cb = (CameraDevice.StateCallback) param.args[2];
                         if (host.isDisabled()) return;
                         host.updateShouldShowToast();
                         if (!host.hasVirtualVideo()) {
                             host.showNoVideoToast(lpparam.packageName);
                             return;
                         }
-                        HookMain.c2_state_callback = param.args[2].getClass();
-                        Logger.i("camera2 init (2-arg), callback class: " + HookMain.c2_state_callback);
-                        HookMain.is_first_hook_build = true;
-                        processCamera2Init(host, HookMain.c2_state_callback);
+                        Logger.i("camera2 init (2-arg), callback class: %s", param.args[2].getClass());
+                        CameraSessions.camera2Opening(HookMain.video_path + VIDEO_FILE);
+                        processCamera2Init(host, param.args[2].getClass());
                     }
                 });
     }
 
     private void hookCaptureRequestBuilderAddTarget(HookMain host, final XC_LoadPackage.LoadPackageParam lpparam) {
-        XposedHelpers.findAndHookMethod("android.hardware.camera2.CaptureRequest.Builder", lpparam.classLoader,
+        HookRegistry.hookOnce("android.hardware.camera2.CaptureRequest.Builder", lpparam.classLoader,
                 "addTarget", Surface.class, new XC_MethodHook() {
                     @Override
                     protected void beforeHookedMethod(MethodHookParam param) {
@@ -99,30 +96,26 @@ public class Camera2Hook {
                             host.showNoVideoToast(lpparam.packageName);
                             return;
                         }
-                        if (param.args[0].equals(HookMain.c2_virtual_surface)) return;
                         if (host.isDisabled()) return;
-                        String surfaceInfo = param.args[0].toString();
-                        if (surfaceInfo.contains("Surface(name=null)")) {
-                            if (HookMain.c2_reader_Surfcae == null) {
-                                HookMain.c2_reader_Surfcae = (Surface) param.args[0];
-                            } else if (!HookMain.c2_reader_Surfcae.equals(param.args[0]) && HookMain.c2_reader_Surfcae_1 == null) {
-                                HookMain.c2_reader_Surfcae_1 = (Surface) param.args[0];
-                            }
+                        Camera2Session session = CameraSessions.forBuilder((CaptureRequest.Builder) param.thisObject);
+                        if (session == null || session.isVirtualSurface(param.args[0])) return;
+                        Surface surface = (Surface) param.args[0];
+                        SurfaceRegistry.Info info = SurfaceRegistry.lookup(surface);
+                        if (info != null && !info.isDrawable() && !info.needsYuv()) {
+                            // Still redirected so the real camera never fills it, but nothing is drawn there.
+                            Logger.i("addTarget: %s (%s) not fed, skipped", surface, info);
                         } else {
-                            if (HookMain.c2_preview_Surfcae == null) {
-                                HookMain.c2_preview_Surfcae = (Surface) param.args[0];
-                            } else if (!HookMain.c2_preview_Surfcae.equals(param.args[0]) && HookMain.c2_preview_Surfcae_1 == null) {
-                                HookMain.c2_preview_Surfcae_1 = (Surface) param.args[0];
-                            }
+                            // Surfaces from unhooked producers (encoders, recorders) are drawn like previews.
+                            session.addTarget(surface, info);
+                            Logger.i("addTarget: %s (%s)", surface, info);
                         }
-                        Logger.i("addTarget: " + param.args[0]);
-                        param.args[0] = HookMain.c2_virtual_surface;
+                        param.args[0] = session.virtualSurface();
                     }
                 });
     }
 
     private void hookCaptureRequestBuilderRemoveTarget(HookMain host, final XC_LoadPackage.LoadPackageParam lpparam) {
-        XposedHelpers.findAndHookMethod("android.hardware.camera2.CaptureRequest.Builder", lpparam.classLoader,
+        HookRegistry.hookOnce("android.hardware.camera2.CaptureRequest.Builder", lpparam.classLoader,
                 "removeTarget", Surface.class, new XC_MethodHook() {
                     @Override
                     protected void beforeHookedMethod(MethodHookParam param) {
@@ -133,24 +126,22 @@ public class Camera2Hook {
                             return;
                         }
                         if (host.isDisabled()) return;
-                        Surface rm = (Surface) param.args[0];
-                        if (rm.equals(HookMain.c2_preview_Surfcae)) HookMain.c2_preview_Surfcae = null;
-                        if (rm.equals(HookMain.c2_preview_Surfcae_1)) HookMain.c2_preview_Surfcae_1 = null;
-                        if (rm.equals(HookMain.c2_reader_Surfcae_1)) HookMain.c2_reader_Surfcae_1 = null;
-                        if (rm.equals(HookMain.c2_reader_Surfcae)) HookMain.c2_reader_Surfcae = null;
-                        Logger.i("removeTarget: " + param.args[0]);
+                        Camera2Session session = CameraSessions.forBuilder((CaptureRequest.Builder) param.thisObject);
+                        if (session != null) session.removeTarget((Surface) param.args[0]);
+                        Logger.i("removeTarget: %s", param.args[0]);
                     }
                 });
     }
 
     private void hookCaptureRequestBuilderBuild(HookMain host, final XC_LoadPackage.LoadPackageParam lpparam) {
-        XposedHelpers.findAndHookMethod("android.hardware.camera2.CaptureRequest.Builder", lpparam.classLoader,
+        HookRegistry.hookOnce("android.hardware.camera2.CaptureRequest.Builder", lpparam.classLoader,
                 "build", new XC_MethodHook() {
                     @Override
                     protected void beforeHookedMethod(MethodHookParam param) {
                         if (param.thisObject == null) return;
-                        if (param.thisObject.equals(HookMain.c2_builder)) return;
-                        HookMain.c2_builder = (CaptureRequest.Builder) param.thisObject;
+                        Camera2Session session = CameraSessions.forBuilder((CaptureRequest.Builder) param.thisObject);
+                        // Most builds, e.g. one per still capture, change no target.
+                        if (session == null || session.isUpToDate()) return;
                         host.updateShouldShowToast();
                         if (!host.hasVirtualVideo()) {
                             host.showNoVideoToast(lpparam.packageName);
@@ -158,20 +149,18 @@ public class Camera2Hook {
                         }
                         if (host.isDisabled()) return;
                         Logger.i("CaptureRequest.Builder build");
-                        processCamera2Play(host);
+                        int outputs = session.play(HookMain.video_path + VIDEO_FILE, host.isNoSilent());
+                        Logger.i("camera2 play done: %s outputs for %s", outputs, session.device);
                     }
                 });
     }
 
     private void hookImageReaderNewInstance(HookMain host, XC_LoadPackage.LoadPackageParam lpparam) {
-        XposedHelpers.findAndHookMethod("android.media.ImageReader", lpparam.classLoader,
+        HookRegistry.hookOnce("android.media.ImageReader", lpparam.classLoader,
                 "newInstance", int.class, int.class, int.class, int.class, new XC_MethodHook() {
                     @Override
                     protected void beforeHookedMethod(MethodHookParam param) {
-                        Logger.i("ImageReader newInstance: width=" + param.args[0] + " height=" + param.args[1] + " format=" + param.args[2]);
-                        HookMain.c2_ori_width = (int) param.args[0];
-                        HookMain.c2_ori_height = (int) param.args[1];
-                        HookMain.imageReaderFormat = (int) param.args[2];
+                        Logger.i("ImageReader newInstance: width=%s height=%s format=%s", param.args[0], param.args[1], param.args[2]);
                         host.updateShouldShowToast();
                         if (HookMain.toast_content != null && HookMain.need_to_show_toast) {
                             try {
@@ -186,139 +175,70 @@ public class Camera2Hook {
                 });
     }
 
-    private void hookOnCaptureFailed(XC_LoadPackage.LoadPackageParam lpparam) {
-        XposedHelpers.findAndHookMethod("android.hardware.camera2.CameraCaptureSession.CaptureCallback", lpparam.classLoader,
-                "onCaptureFailed", CameraCaptureSession.class, CaptureRequest.class, CaptureFailure.class, new XC_MethodHook() {
+    /** Records where the app's Surfaces come from, for addTarget; see {@link SurfaceRegistry}. */
+    private void hookSurfaceSources(XC_LoadPackage.LoadPackageParam lpparam) {
+        HookRegistry.hookOnce("android.media.ImageReader", lpparam.classLoader,
+                "getSurface", new XC_MethodHook() {
                     @Override
-                    protected void beforeHookedMethod(MethodHookParam param) {
-                        Logger.i("onCaptureFailed, reason: " + ((CaptureFailure) param.args[2]).getReason());
+                    protected void afterHookedMethod(MethodHookParam param) {
+                        ImageReader reader = (ImageReader) param.thisObject;
+                        SurfaceRegistry.record((Surface) param.getResult(), SurfaceRegistry.Source.IMAGE_READER,
+                                reader.getImageFormat(), reader.getWidth(), reader.getHeight());
+                    }
+                });
+        HookRegistry.hookOnce(XposedHelpers.findConstructorExact(Surface.class, SurfaceTexture.class),
+                new XC_MethodHook() {
+                    @Override
+                    protected void afterHookedMethod(MethodHookParam param) {
+                        SurfaceRegistry.record((Surface) param.thisObject, SurfaceRegistry.Source.SURFACE_TEXTURE,
+                                ImageFormat.UNKNOWN, 0, 0);
+                    }
+                });
+        // SurfaceHolder is an interface; its getSurface is hooked on the class SurfaceView hands out.
+        HookRegistry.hookOnce("android.view.SurfaceView", lpparam.classLoader,
+                "getHolder", new XC_MethodHook() {
+                    @Override
+                    protected void afterHookedMethod(MethodHookParam param) {
+                        Object holder = param.getResult();
+                        if (holder == null) return;
+                        try {
+                            hookSurfaceHolder(holder.getClass());
+                        } catch (Throwable t) {
+                            Logger.i("surface holder %s: %s", holder.getClass().getName(), t);
+                        }
                     }
                 });
     }
 
-    private void processCamera2Play(HookMain host) {
-        if (HookMain.c2_reader_Surfcae != null) {
-            if (HookMain.c2_hw_decode_obj != null) {
-                HookMain.c2_hw_decode_obj.stopDecode();
-                HookMain.c2_hw_decode_obj = null;
-            }
-            HookMain.c2_hw_decode_obj = new VideoToFrames();
-            try {
-                HookMain.c2_hw_decode_obj.setSaveFrames("null",
-                        HookMain.imageReaderFormat == 256 ? OutputImageFormat.JPEG : OutputImageFormat.NV21);
-                HookMain.c2_hw_decode_obj.set_surfcae(HookMain.c2_reader_Surfcae);
-                HookMain.c2_hw_decode_obj.decode(HookMain.video_path + VIDEO_FILE);
-            } catch (Throwable t) {
-                Logger.i(String.valueOf(t));
-            }
-        }
-        if (HookMain.c2_reader_Surfcae_1 != null) {
-            if (HookMain.c2_hw_decode_obj_1 != null) {
-                HookMain.c2_hw_decode_obj_1.stopDecode();
-                HookMain.c2_hw_decode_obj_1 = null;
-            }
-            HookMain.c2_hw_decode_obj_1 = new VideoToFrames();
-            try {
-                HookMain.c2_hw_decode_obj_1.setSaveFrames("null",
-                        HookMain.imageReaderFormat == 256 ? OutputImageFormat.JPEG : OutputImageFormat.NV21);
-                HookMain.c2_hw_decode_obj_1.set_surfcae(HookMain.c2_reader_Surfcae_1);
-                HookMain.c2_hw_decode_obj_1.decode(HookMain.video_path + VIDEO_FILE);
-            } catch (Throwable t) {
-                Logger.i(String.valueOf(t));
-            }
-        }
-        if (HookMain.c2_preview_Surfcae != null) {
-            if (HookMain.c2_player == null) HookMain.c2_player = new MediaPlayer();
-            else {
-                HookMain.c2_player.release();
-                HookMain.c2_player = new MediaPlayer();
-            }
-            HookMain.c2_player.setSurface(HookMain.c2_preview_Surfcae);
-            if (!new File(host.getDcimCamera1Path() + FILE_NO_SILENT).exists()) HookMain.c2_player.setVolume(0, 0);
-            HookMain.c2_player.setLooping(true);
-            try {
-                HookMain.c2_player.setOnPreparedListener(mp -> HookMain.c2_player.start());
-                HookMain.c2_player.setDataSource(HookMain.video_path + VIDEO_FILE);
-                HookMain.c2_player.prepare();
-            } catch (Exception e) {
-                Logger.i("c2player: " + HookMain.c2_preview_Surfcae + " " + e);
-            }
-        }
-        if (HookMain.c2_preview_Surfcae_1 != null) {
-            if (HookMain.c2_player_1 == null) HookMain.c2_player_1 = new MediaPlayer();
-            else {
-                HookMain.c2_player_1.release();
-                HookMain.c2_player_1 = new MediaPlayer();
-            }
-            HookMain.c2_player_1.setSurface(HookMain.c2_preview_Surfcae_1);
-            if (!new File(host.getDcimCamera1Path() + FILE_NO_SILENT).exists()) HookMain.c2_player_1.setVolume(0, 0);
-            HookMain.c2_player_1.setLooping(true);
-            try {
-                HookMain.c2_player_1.setOnPreparedListener(mp -> HookMain.c2_player_1.start());
-                HookMain.c2_player_1.setDataSource(HookMain.video_path + VIDEO_FILE);
-                HookMain.c2_player_1.prepare();
-            } catch (Exception e) {
-                Logger.i("c2player1: " + HookMain.c2_preview_Surfcae_1 + " " + e);
+    private void hookSurfaceHolder(Class<?> holderClass) {
+        HookRegistry.hookOnce(holderClass, "getSurface", new XC_MethodHook() {
+            @Override
+            protected void afterHookedMethod(MethodHookParam param) {
+                Rect frame = ((SurfaceHolder) param.thisObject).getSurfaceFrame();
+                SurfaceRegistry.record((Surface) param.getResult(), SurfaceRegistry.Source.SURFACE_HOLDER,
+                        ImageFormat.UNKNOWN, frame != null ? frame.width() : 0, frame != null ? frame.height() : 0);
             }
-        }
-        Logger.i("camera2 play done");
+        });
     }
 
-    private Surface createVirtualSurface(HookMain host) {
-        if (HookMain.need_recreate) {
-            if (HookMain.c2_virtual_surfaceTexture != null) {
-                HookMain.c2_virtual_surfaceTexture.release();
-                HookMain.c2_virtual_surfaceTexture = null;
-            }
-            if (HookMain.c2_virtual_surface != null) {
-                HookMain.c2_virtual_surface.release();
-                HookMain.c2_virtual_surface = null;
-            }
-            HookMain.c2_virtual_surfaceTexture = new SurfaceTexture(15);
-            HookMain.c2_virtual_surface = new Surface(HookMain.c2_virtual_surfaceTexture);
-            HookMain.need_recreate = false;
-        } else {
-            if (HookMain.c2_virtual_surface == null) {
-                HookMain.need_recreate = true;
-                return createVirtualSurface(host);
-            }
-        }
-        Logger.i("create_virtual_surface: " + HookMain.c2_virtual_surface);
-        return HookMain.c2_virtual_surface;
+    private void hookOnCaptureFailed(XC_LoadPackage.LoadPackageParam lpparam) {
+        HookRegistry.hookOnce("android.hardware.camera2.CameraCaptureSession.CaptureCallback", lpparam.classLoader,
+                "onCaptureFailed", CameraCaptureSession.class, CaptureRequest.class, CaptureFailure.class, new XC_MethodHook() {
+                    @Override
+                    protected void beforeHookedMethod(MethodHookParam param) {
+                        // Fires for every frame while capture keeps failing.
+                        Logger.w(CAPTURE_FAILED_LOG, "onCaptureFailed, reason: %s", ((CaptureFailure) param.args[2]).getReason());
+                    }
+                });
     }
 
     private void processCamera2Init(HookMain host, Class<?> hookedClass) {
-        XposedHelpers.findAndHookMethod(hookedClass, "onOpened", CameraDevice.class, new XC_MethodHook() {
+        HookRegistry.hookOnce(hookedClass, "onOpened", CameraDevice.class, new XC_MethodHook() {
             @Override
             protected void beforeHookedMethod(MethodHookParam param) throws Throwable {
-                HookMain.need_recreate = true;
-                createVirtualSurface(host);
-                if (HookMain.c2_player != null) {
-                    HookMain.c2_player.stop();
-                    HookMain.c2_player.reset();
-                    HookMain.c2_player.release();
-                    HookMain.c2_player = null;
-                }
-                if (HookMain.c2_hw_decode_obj_1 != null) {
-                    HookMain.c2_hw_decode_obj_1.stopDecode();
-                    HookMain.c2_hw_decode_obj_1 = null;
-                }
-                if (HookMain.c2_hw_decode_obj != null) {
-                    HookMain.c2_hw_decode_obj.stopDecode();
-                    HookMain.c2_hw_decode_obj = null;
-                }
-                if (HookMain.c2_player_1 != null) {
-                    HookMain.c2_player_1.stop();
-                    HookMain.c2_player_1.reset();
-                    HookMain.c2_player_1.release();
-                    HookMain.c2_player_1 = null;
-                }
-                HookMain.c2_preview_Surfcae_1 = null;
-                HookMain.c2_reader_Surfcae_1 = null;
-                HookMain.c2_reader_Surfcae = null;
-                HookMain.c2_preview_Surfcae = null;
-                HookMain.is_first_hook_build = true;
-                Logger.i("camera2 opened");
+                CameraDevice device = (CameraDevice) param.args[0];
+                CameraSessions.camera2(device).reset();
+                Logger.i("camera2 opened: %s", device);
 
                 host.updateShouldShowToast();
                 if (!host.hasVirtualVideo()) {
@@ -326,6 +246,7 @@ public class Camera2Hook {
                     return;
                 }
 
+                hookDeviceLifecycle(param);
                 hookCreateCaptureSession(param);
                 if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
                     hookCreateCaptureSessionByOutputConfigurations(param);
@@ -343,29 +264,48 @@ public class Camera2Hook {
             }
         });
 
-        XposedHelpers.findAndHookMethod(hookedClass, "onError", CameraDevice.class, int.class, new XC_MethodHook() {
+        HookRegistry.hookOnce(hookedClass, "onError", CameraDevice.class, int.class, new XC_MethodHook() {
             @Override
             protected void beforeHookedMethod(MethodHookParam param) {
-                Logger.i("camera onError: " + param.args[1]);
+                Logger.i("camera onError: %s", param.args[1]);
             }
         });
 
-        XposedHelpers.findAndHookMethod(hookedClass, "onDisconnected", CameraDevice.class, new XC_MethodHook() {
+        HookRegistry.hookOnce(hookedClass, "onDisconnected", CameraDevice.class, new XC_MethodHook() {
             @Override
             protected void beforeHookedMethod(MethodHookParam param) {
                 Logger.i("camera onDisconnected");
+                CameraSessions.releaseCamera2((CameraDevice) param.args[0]);
+            }
+        });
+    }
+
+    /** Ties request builders to the device creating them, and drops the session on close. */
+    private void hookDeviceLifecycle(XC_MethodHook.MethodHookParam param) {
+        HookRegistry.hookOnce(param.args[0].getClass(), "createCaptureRequest", int.class, new XC_MethodHook() {
+            @Override
+            protected void afterHookedMethod(MethodHookParam paramd) {
+                if (paramd.getResult() == null) return;
+                CameraSessions.bindBuilder((CaptureRequest.Builder) paramd.getResult(), (CameraDevice) paramd.thisObject);
+            }
+        });
+        HookRegistry.hookOnce(param.args[0].getClass(), "close", new XC_MethodHook() {
+            @Override
+            protected void beforeHookedMethod(MethodHookParam paramd) {
+                CameraSessions.releaseCamera2((CameraDevice) paramd.thisObject);
             }
         });
     }
 
     private void hookCreateCaptureSession(XC_MethodHook.MethodHookParam param) {
-        XposedHelpers.findAndHookMethod(param.args[0].getClass(), "createCaptureSession",
+        HookRegistry.hookOnce(param.args[0].getClass(), "createCaptureSession",
                 List.class, CameraCaptureSession.StateCallback.class, Handler.class, new XC_MethodHook() {
                     @Override
                     protected void beforeHookedMethod(MethodHookParam paramd) {
                         if (paramd.args[0] != null) {
-                            Logger.i("createCaptureSession: original=" + paramd.args[0] + " virtual=" + HookMain.c2_virtual_surface);
-                            paramd.args[0] = Arrays.asList(HookMain.c2_virtual_surface);
+                            Surface virtual = virtualSurfaceOf(paramd);
+                            Logger.i("createCaptureSession: original=%s virtual=%s", paramd.args[0], virtual);
+                            paramd.args[0] = Arrays.asList(virtual);
                             if (paramd.args[1] != null) {
                                 processCamera2SessionCallback((CameraCaptureSession.StateCallback) paramd.args[1]);
                             }
@@ -375,13 +315,12 @@ public class Camera2Hook {
     }
 
     private void hookCreateCaptureSessionByOutputConfigurations(XC_MethodHook.MethodHookParam param) {
-        XposedHelpers.findAndHookMethod(param.args[0].getClass(), "createCaptureSessionByOutputConfigurations",
+        HookRegistry.hookOnce(param.args[0].getClass(), "createCaptureSessionByOutputConfigurations",
                 List.class, CameraCaptureSession.StateCallback.class, Handler.class, new XC_MethodHook() {
                     @Override
                     protected void beforeHookedMethod(MethodHookParam paramd) {
                         if (paramd.args[0] != null) {
-                            HookMain.outputConfiguration = new OutputConfiguration(HookMain.c2_virtual_surface);
-                            paramd.args[0] = Arrays.asList(HookMain.outputConfiguration);
+                            paramd.args[0] = Arrays.asList(new OutputConfiguration(virtualSurfaceOf(paramd)));
                             Logger.i("createCaptureSessionByOutputConfigurations");
                             if (paramd.args[1] != null) {
                                 processCamera2SessionCallback((CameraCaptureSession.StateCallback) paramd.args[1]);
@@ -392,12 +331,12 @@ public class Camera2Hook {
     }
 
     private void hookCreateConstrainedHighSpeedCaptureSession(XC_MethodHook.MethodHookParam param) {
-        XposedHelpers.findAndHookMethod(param.args[0].getClass(), "createConstrainedHighSpeedCaptureSession",
+        HookRegistry.hookOnce(param.args[0].getClass(), "createConstrainedHighSpeedCaptureSession",
                 List.class, CameraCaptureSession.StateCallback.class, Handler.class, new XC_MethodHook() {
                     @Override
                     protected void beforeHookedMethod(MethodHookParam paramd) {
                         if (paramd.args[0] != null) {
-                            paramd.args[0] = Arrays.asList(HookMain.c2_virtual_surface);
+                            paramd.args[0] = Arrays.asList(virtualSurfaceOf(paramd));
                             Logger.i("createConstrainedHighSpeedCaptureSession");
                             if (paramd.args[1] != null) {
                                 processCamera2SessionCallback((CameraCaptureSession.StateCallback) paramd.args[1]);
@@ -408,12 +347,12 @@ public class Camera2Hook {
     }
 
     private void hookCreateReprocessableCaptureSession(XC_MethodHook.MethodHookParam param) {
-        XposedHelpers.findAndHookMethod(param.args[0].getClass(), "createReprocessableCaptureSession",
+        HookRegistry.hookOnce(param.args[0].getClass(), "createReprocessableCaptureSession",
                 InputConfiguration.class, List.class, CameraCaptureSession.StateCallback.class, Handler.class, new XC_MethodHook() {
                     @Override
                     protected void beforeHookedMethod(MethodHookParam paramd) {
                         if (paramd.args[1] != null) {
-                            paramd.args[1] = Arrays.asList(HookMain.c2_virtual_surface);
+                            paramd.args[1] = Arrays.asList(virtualSurfaceOf(paramd));
                             Logger.i("createReprocessableCaptureSession");
                             if (paramd.args[2] != null) {
                                 processCamera2SessionCallback((CameraCaptureSession.StateCallback) paramd.args[2]);
@@ -424,13 +363,12 @@ public class Camera2Hook {
     }
 
     private void hookCreateReprocessableCaptureSessionByConfigurations(XC_MethodHook.MethodHookParam param) {
-        XposedHelpers.findAndHookMethod(param.args[0].getClass(), "createReprocessableCaptureSessionByConfigurations",
+        HookRegistry.hookOnce(param.args[0].getClass(), "createReprocessableCaptureSessionByConfigurations",
                 InputConfiguration.class, List.class, CameraCaptureSession.StateCallback.class, Handler.class, new XC_MethodHook() {
                     @Override
                     protected void beforeHookedMethod(MethodHookParam paramd) {
                         if (paramd.args[1] != null) {
-                            HookMain.outputConfiguration = new OutputConfiguration(HookMain.c2_virtual_surface);
-                            paramd.args[0] = Arrays.asList(HookMain.outputConfiguration);
+                            paramd.args[0] = Arrays.asList(new OutputConfiguration(virtualSurfaceOf(paramd)));
                             Logger.i("createReprocessableCaptureSessionByConfigurations");
                             if (paramd.args[2] != null) {
                                 processCamera2SessionCallback((CameraCaptureSession.StateCallback) paramd.args[2]);
@@ -441,44 +379,47 @@ public class Camera2Hook {
     }
 
     private void hookCreateCaptureSessionSessionConfiguration(XC_MethodHook.MethodHookParam param) {
-        XposedHelpers.findAndHookMethod(param.args[0].getClass(), "createCaptureSession",
+        HookRegistry.hookOnce(param.args[0].getClass(), "createCaptureSession",
                 SessionConfiguration.class, new XC_MethodHook() {
                     @Override
                     protected void beforeHookedMethod(MethodHookParam paramd) {
                         if (paramd.args[0] != null) {
                             Logger.i("createCaptureSession (SessionConfiguration)");
-                            HookMain.sessionConfiguration = (SessionConfiguration) paramd.args[0];
-                            HookMain.outputConfiguration = new OutputConfiguration(HookMain.c2_virtual_surface);
-                            HookMain.fake_sessionConfiguration = new SessionConfiguration(
-                                    HookMain.sessionConfiguration.getSessionType(),
-                                    Arrays.asList(HookMain.outputConfiguration),
-                                    HookMain.sessionConfiguration.getExecutor(),
-                                    HookMain.sessionConfiguration.getStateCallback());
-                            paramd.args[0] = HookMain.fake_sessionConfiguration;
-                            processCamera2SessionCallback(HookMain.sessionConfiguration.getStateCallback());
+                            SessionConfiguration original = (SessionConfiguration) paramd.args[0];
+                            paramd.args[0] = new SessionConfiguration(
+                                    original.getSessionType(),
+                                    Arrays.asList(new OutputConfiguration(virtualSurfaceOf(paramd))),
+                                    original.getExecutor(),
+                                    original.getStateCallback());
+                            processCamera2SessionCallback(original.getStateCallback());
                         }
                     }
                 });
     }
 
+    /** The virtual surface of the device a createCaptureSession* call was made on. */
+    private static Surface virtualSurfaceOf(XC_MethodHook.MethodHookParam paramd) {
+        return CameraSessions.camera2((CameraDevice) paramd.thisObject).virtualSurface();
+    }
+
     private void processCamera2SessionCallback(CameraCaptureSession.StateCallback callback) {
         if (callback == null) return;
-        XposedHelpers.findAndHookMethod(callback.getClass(), "onConfigureFailed", CameraCaptureSession.class, new XC_MethodHook() {
+        HookRegistry.hookOnce(callback.getClass(), "onConfigureFailed", CameraCaptureSession.class, new XC_MethodHook() {
             @Override
             protected void beforeHookedMethod(MethodHookParam param) {
-                Logger.i("onConfigureFailed: " + param.args[0]);
+                Logger.i("onConfigureFailed: %s", param.args[0]);
             }
         });
-        XposedHelpers.findAndHookMethod(callback.getClass(), "onConfigured", CameraCaptureSession.class, new XC_MethodHook() {
+        HookRegistry.hookOnce(callback.getClass(), "onConfigured", CameraCaptureSession.class, new XC_MethodHook() {
             @Override
             protected void beforeHookedMethod(MethodHookParam param) {
-                Logger.i("onConfigured: " + param.args[0]);
+                Logger.i("onConfigured: %s", param.args[0]);
             }
         });
-        XposedHelpers.findAndHookMethod(callback.getClass(), "onClosed", CameraCaptureSession.class, new XC_MethodHook() {
+        HookRegistry.hookOnce(callback.getClass(), "onClosed", CameraCaptureSession.class, new XC_MethodHook() {
             @Override
             protected void beforeHookedMethod(MethodHookParam param) {
-                Logger.i("onClosed: " + param.args[0]);
+                Logger.i("onClosed: %s", param.args[0]);
             }
         });
     }
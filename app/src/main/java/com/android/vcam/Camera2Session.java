@@ -0,0 +1,191 @@
+package com.android.vcam;
+
+import android.graphics.SurfaceTexture;
+import android.hardware.camera2.CameraDevice;
+import android.view.Surface;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Everything the Camera2 hooks track for one {@link CameraDevice}: the virtual surface its
+ * capture sessions are pointed at, the app's real targets collected from addTarget, and the
+ * decode feeding them. Two devices playing the same file share one {@link DecodeSession}, so a
+ * session only ever adds or removes its own outputs there, and only those that changed since the
+ * last build; a build that changes no target costs two volatile reads. Methods may be called
+ * from any thread; each device's state is guarded by its own session.
+ */
+final class Camera2Session {
+
+    final CameraDevice device;
+    /** When the device was asked to open; time to first frame counts from here. */
+    private final long startNs;
+    private volatile boolean firstFrameSeen;
+    private final DecodeSession.FirstFrameListener firstFrameListener = this::onFirstFrame;
+
+    private final CopyOnWriteArrayList<Surface> readerTargets = new CopyOnWriteArrayList<>();
+    private final CopyOnWriteArrayList<Surface> previewTargets = new CopyOnWriteArrayList<>();
+    /** Reader targets GL can't draw into, with their format; see {@link DecodeSession#addYuvSurface}. */
+    private final ConcurrentHashMap<Surface, Integer> yuvFormats = new ConcurrentHashMap<>();
+    /** Bumped whenever a target is added or removed. */
+    private final AtomicInteger targetsVersion = new AtomicInteger();
+    /** {@link #targetsVersion} the decode's outputs were last synced with; -1 if not synced. */
+    private volatile int appliedVersion = -1;
+    /** Outputs currently registered with {@link #decode}. */
+    private final List<Surface> attached = new ArrayList<>();
+    private SurfaceTexture virtualTexture;
+    private volatile Surface virtualSurface;
+    private DecodeSession decode;
+    /** Plays the clip's audio track only, when no-silent is set; video comes from the decode. */
+    private PlayerPool.Lease audioPlayer;
+
+    Camera2Session(CameraDevice device, long startNs) {
+        this.device = device;
+        this.startNs = startNs;
+    }
+
+    /** The surface capture sessions of this device are configured with instead of the app's. */
+    synchronized Surface virtualSurface() {
+        if (virtualSurface == null) recreateVirtualSurface();
+        return virtualSurface;
+    }
+
+    boolean isVirtualSurface(Object surface) {
+        return surface != null && surface == virtualSurface;
+    }
+
+    /**
+     * Starts over for a freshly opened device: new virtual surface, no targets, audio stopped.
+     * The decode keeps running; the new targets are attached on the next build.
+     */
+    synchronized void reset() {
+        recreateVirtualSurface();
+        stopAudio();
+        readerTargets.clear();
+        previewTargets.clear();
+        yuvFormats.clear();
+        targetsVersion.incrementAndGet();
+        appliedVersion = -1;
+        applyOutputs();
+    }
+
+    /** Adds an app target; {@code info} is what {@link SurfaceRegistry} knows of it, or null. */
+    void addTarget(Surface surface, SurfaceRegistry.Info info) {
+        boolean reader = info != null && info.isReader();
+        if (info != null && info.needsYuv()) yuvFormats.put(surface, info.format);
+        if ((reader ? readerTargets : previewTargets).addIfAbsent(surface)) targetsVersion.incrementAndGet();
+    }
+
+    void removeTarget(Surface surface) {
+        boolean removed = readerTargets.remove(surface);
+        removed |= previewTargets.remove(surface);
+        yuvFormats.remove(surface);
+        if (removed) targetsVersion.incrementAndGet();
+    }
+
+    /**
+     * Whether the decode already feeds exactly the current targets, so a build has nothing to
+     * start or change; apps build a fresh request for every still capture.
+     */
+    boolean isUpToDate() {
+        return appliedVersion == targetsVersion.get();
+    }
+
+    /** Points the decode of {@code path} at every target the app has added; only changes are applied. */
+    synchronized int play(String path, boolean withAudio) {
+        // Read first: a target added meanwhile just makes the next build sync again.
+        int version = targetsVersion.get();
+        if (decode == null || !decode.path().equals(path)) {
+            detachAll();
+            if (decode != null) decode.release();
+            // Started at openCamera, usually, so its first frames are ready by now.
+            decode = CameraSessions.takeCamera2Preroll(path);
+            if (decode == null) decode = DecodeSession.acquire(path);
+        }
+        int outputs = applyOutputs();
+        appliedVersion = version;
+        if (withAudio && audioPlayer == null) audioPlayer = PlayerPool.start(null, path, false);
+        return outputs;
+    }
+
+    /** Lets go of the decode, the audio and the virtual surface; the device is closed. */
+    synchronized void release() {
+        appliedVersion = -1;
+        stopAudio();
+        detachAll();
+        if (decode != null) {
+            decode.release();
+            decode = null;
+        }
+        readerTargets.clear();
+        previewTargets.clear();
+        yuvFormats.clear();
+        releaseVirtualSurface();
+    }
+
+    /** Syncs this session's outputs on the decode with its targets; returns their number. */
+    private int applyOutputs() {
+        List<Surface> wanted = new ArrayList<>(readerTargets.size() + previewTargets.size());
+        for (Surface s : readerTargets) if (!wanted.contains(s)) wanted.add(s);
+        for (Surface s : previewTargets) if (!wanted.contains(s)) wanted.add(s);
+        if (decode == null) return wanted.size();
+        for (int i = attached.size() - 1; i >= 0; i--) {
+            Surface s = attached.get(i);
+            if (!wanted.contains(s)) {
+                decode.removeSurface(s);
+                attached.remove(i);
+            }
+        }
+        for (Surface s : wanted) {
+            if (!attached.contains(s)) {
+                Integer yuv = yuvFormats.get(s);
+                if (yuv != null) decode.addYuvSurface(s, yuv, firstFrameListener);
+                else decode.addSurface(s, firstFrameListener);
+                attached.add(s);
+            }
+        }
+        return attached.size();
+    }
+
+    /** Decode-session thread. */
+    private void onFirstFrame(Surface surface) {
+        if (firstFrameSeen) return;
+        firstFrameSeen = true;
+        long ns = System.nanoTime() - startNs;
+        PipelineMetrics.record(PipelineMetrics.Stage.FIRST_FRAME, ns);
+        Logger.i("camera2 first frame after %s ms: %s into %s", ns / 1_000_000, device, surface);
+    }
+
+    private void detachAll() {
+        if (decode != null) {
+            for (Surface s : attached) decode.removeSurface(s);
+        }
+        attached.clear();
+    }
+
+    private void stopAudio() {
+        PlayerPool.stop(audioPlayer);
+        audioPlayer = null;
+    }
+
+    private void recreateVirtualSurface() {
+        releaseVirtualSurface();
+        virtualTexture = new SurfaceTexture(15);
+        virtualSurface = new Surface(virtualTexture);
+        Logger.i("create_virtual_surface: %s for %s", virtualSurface, device);
+    }
+
+    private void releaseVirtualSurface() {
+        if (virtualSurface != null) {
+            virtualSurface.release();
+            virtualSurface = null;
+        }
+        if (virtualTexture != null) {
+            virtualTexture.release();
+            virtualTexture = null;
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package com.android.vcam;
+
+import android.hardware.Camera;
+import android.hardware.camera2.CameraDevice;
+import android.hardware.camera2.CaptureRequest;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Per-camera hook state, so an app can run several cameras at once (front and back,
+ * picture-in-picture) without them sharing decoders or surfaces. Sessions are keyed by the
+ * {@link Camera} or {@link CameraDevice} instance; Camera2 request builders are mapped to the
+ * device that created them. Lookups are lock-free and creation never takes a global lock.
+ */
+final class CameraSessions {
+
+    private static final ConcurrentHashMap<Camera, Camera1Session> camera1 = new ConcurrentHashMap<>();
+    /** Cameras the app has released; hooks still firing for them never get a session again. */
+    private static final Map<Camera, Boolean> releasedCamera1 =
+            Collections.synchronizedMap(new WeakHashMap<Camera, Boolean>());
+    private static final ConcurrentHashMap<CameraDevice, Camera2Session> camera2 = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<CaptureRequest.Builder, Camera2Session> builders =
+            new ConcurrentHashMap<>();
+    /** Fallback for builders created before their device's createCaptureRequest was hooked. */
+    private static volatile Camera2Session latestCamera2;
+
+    /** A decode left unclaimed this long after openCamera is stopped; the open likely failed. */
+    private static final long PREROLL_TIMEOUT_MS = 10_000L;
+    /** Decode started at openCamera, waiting for the device's first build to take it over. */
+    private static DecodeSession camera2Preroll;
+    /** Bumped by every openCamera, so only the latest one's timeout expires the preroll. */
+    private static int camera2PrerollId;
+    /** When the last openCamera was seen, for the next device's time to first frame; 0 if taken. */
+    private static long camera2OpeningNs;
+
+    private CameraSessions() {}
+
+    /** The session of {@code camera}, or null if none was opened or it was released. */
+    static Camera1Session camera1(Camera camera) {
+        return camera == null ? null : camera1.get(camera);
+    }
+
+    /**
+     * The session of {@code camera}, created on first use; for the hooks that set up its
+     * preview. Null once the camera was released, so a late hook can't bring a session back.
+     */
+    static Camera1Session openCamera1(Camera camera) {
+        Camera1Session session = camera1.get(camera);
+        if (session != null) return session;
+        if (releasedCamera1.containsKey(camera)) return null;
+        Camera1Session created = new Camera1Session(camera);
+        session = camera1.putIfAbsent(camera, created);
+        if (session != null) return session;
+        if (releasedCamera1.containsKey(camera)) {
+            // Released while this was being created.
+            releaseCamera1(camera);
+            return null;
+        }
+        Logger.i("camera1 session opened: %s (%s open)", camera, camera1.size());
+        return created;
+    }
+
+    /** Forgets {@code camera} and releases what its session held. */
+    static void releaseCamera1(Camera camera) {
+        releasedCamera1.put(camera, Boolean.TRUE);
+        Camera1Session session = camera1.remove(camera);
+        if (session == null) return;
+        session.release();
+        Logger.i("camera1 session closed: %s (%s open)", camera, camera1.size());
+    }
+
+    /**
+     * Called from openCamera, well before the device is usable: starts decoding {@code path}
+     * so the first build finds frames ready, and starts the clock for time to first frame.
+     */
+    static synchronized void camera2Opening(String path) {
+        camera2OpeningNs = System.nanoTime();
+        if (camera2Preroll != null && !camera2Preroll.path().equals(path)) {
+            camera2Preroll.release();
+            camera2Preroll = null;
+        }
+        if (camera2Preroll == null) camera2Preroll = DecodeSession.acquire(path);
+        final int id = ++camera2PrerollId;
+        new Handler(Looper.getMainLooper()).postDelayed(() -> expireCamera2Preroll(id), PREROLL_TIMEOUT_MS);
+    }
+
+    private static synchronized void expireCamera2Preroll(int id) {
+        if (camera2Preroll == null || id != camera2PrerollId) return;
+        Logger.i("camera2 preroll unclaimed, stopping: %s", camera2Preroll.path());
+        camera2Preroll.release();
+        camera2Preroll = null;
+    }
+
+    /** Hands over the decode started at openCamera if it is for {@code path}; the caller releases it. */
+    static synchronized DecodeSession takeCamera2Preroll(String path) {
+        DecodeSession preroll = camera2Preroll;
+        if (preroll == null || !preroll.path().equals(path)) return null;
+        camera2Preroll = null;
+        return preroll;
+    }
+
+    private static synchronized long takeCamera2OpeningNs() {
+        long openingNs = camera2OpeningNs;
+        camera2OpeningNs = 0;
+        return openingNs != 0 ? openingNs : System.nanoTime();
+    }
+
+    /** The session of {@code device}, created on first use. */
+    static Camera2Session camera2(CameraDevice device) {
+        Camera2Session session = camera2.get(device);
+        if (session != null) return session;
+        Camera2Session created = new Camera2Session(device, takeCamera2OpeningNs());
+        session = camera2.putIfAbsent(device, created);
+        if (session != null) return session;
+        latestCamera2 = created;
+        Logger.i("camera2 session opened: %s (%s open)", device, camera2.size());
+        return created;
+    }
+
+    /** Forgets {@code device} and its builders and releases what its session held. */
+    static void releaseCamera2(CameraDevice device) {
+        Camera2Session session = camera2.remove(device);
+        if (session == null) return;
+        for (Iterator<Map.Entry<CaptureRequest.Builder, Camera2Session>> it = builders.entrySet().iterator(); it.hasNext(); ) {
+            if (it.next().getValue() == session) it.remove();
+        }
+        if (latestCamera2 == session) latestCamera2 = null;
+        session.release();
+        Logger.i("camera2 session closed: %s (%s open)", device, camera2.size());
+    }
+
+    static void bindBuilder(CaptureRequest.Builder builder, CameraDevice device) {
+        builders.put(builder, camera2(device));
+    }
+
+    /** The session whose device created {@code builder}, or the latest opened one if unknown. */
+    static Camera2Session forBuilder(CaptureRequest.Builder builder) {
+        Camera2Session session = builders.get(builder);
+        return session != null ? session : latestCamera2;
+    }
+}
@@ -0,0 +1,193 @@
+package com.android.vcam;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+
+/**
+ * A small memory-mapped record shared between the module app and every hooked process. Writers
+ * bump a sequence counter to an odd value, update the fields, and bump it back to even; readers
+ * retry until they see the same even sequence before and after reading, so a read is a handful
+ * of loads and never a syscall. Writers from different processes serialize on a file lock.
+ *
+ * <p>The Java memory model says nothing about memory shared with another process, and Android
+ * exposes no portable load fence below API 33, so the retry loop is not a proof against
+ * reordering. What it rests on: every field is naturally aligned and read or written with a
+ * single int or long access, so no value is ever torn, and each field on its own is one some
+ * writer stored. At worst a reader racing a write mixes fields of two consecutive writes; the
+ * values are switches and video stats that {@link VcamConfig} re-checks against the files every
+ * second anyway.
+ *
+ * <p>Layout (big-endian): magic, layout version, sequence, flags, video mtime, video length.
+ */
+public final class ConfigBlock {
+
+    private static final int MAGIC = 0x5643_4647; // "VCFG"
+    private static final int LAYOUT_VERSION = 2;
+    private static final int SIZE = 64;
+    private static final int OFF_MAGIC = 0;
+    private static final int OFF_VERSION = 4;
+    private static final int OFF_SEQUENCE = 8;
+    private static final int OFF_FLAGS = 12;
+    private static final int OFF_VIDEO_MTIME = 16;
+    private static final int OFF_VIDEO_LENGTH = 24;
+    private static final int MAX_READ_SPINS = 64;
+
+    /**
+     * Touched between the sequence and the fields so neither the compiler nor ART's volatile
+     * barriers let them drift across each other within this thread; see the class comment for
+     * what that does and doesn't guarantee against another process.
+     */
+    private static volatile int fence;
+
+    /** A consistent copy of the block's fields. */
+    public static final class Values {
+        public int flags;
+        public long videoMtime;
+        public long videoLength;
+        public int sequence;
+    }
+
+    private final File file;
+    private final MappedByteBuffer map;
+    private final FileChannel channel;
+
+    private ConfigBlock(File file, MappedByteBuffer map, FileChannel channel) {
+        this.file = file;
+        this.map = map;
+        this.channel = channel;
+    }
+
+    /** Maps an existing block read-only; returns null if it is missing or not a block. */
+    public static ConfigBlock openReader(File file) {
+        if (!file.isFile() || file.length() < SIZE) return null;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            MappedByteBuffer map = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, SIZE);
+            if (map.getInt(OFF_MAGIC) != MAGIC || map.getInt(OFF_VERSION) != LAYOUT_VERSION) return null;
+            return new ConfigBlock(file, map, null);
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    /** Maps the block read-write, creating or re-initialising it if needed. */
+    public static ConfigBlock openWriter(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            FileChannel channel = raf.getChannel();
+            if (channel.size() < SIZE) raf.setLength(SIZE);
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_WRITE, 0, SIZE);
+            try (FileLock ignored = channel.lock()) {
+                if (map.getInt(OFF_MAGIC) != MAGIC || map.getInt(OFF_VERSION) != LAYOUT_VERSION) {
+                    for (int i = 0; i < SIZE; i += 4) map.putInt(i, 0);
+                    map.putInt(OFF_VERSION, LAYOUT_VERSION);
+                    releaseFence(0);
+                    map.putInt(OFF_MAGIC, MAGIC);
+                }
+            }
+            // The channel stays open for the file lock taken on every write.
+            return new ConfigBlock(file, map, channel);
+        } catch (IOException | RuntimeException e) {
+            raf.close();
+            throw e;
+        }
+    }
+
+    @SuppressWarnings("unused")
+    private static void acquireFence() {
+        int ignored = fence;
+    }
+
+    private static void releaseFence(int value) {
+        fence = value;
+    }
+
+    public File file() {
+        return file;
+    }
+
+    public boolean isWritable() {
+        return channel != null;
+    }
+
+    /**
+     * Copies the fields into {@code out}. Returns false if a writer kept the block busy for the
+     * whole spin budget, leaving {@code out} untouched.
+     */
+    public boolean read(Values out) {
+        for (int i = 0; i < MAX_READ_SPINS; i++) {
+            int before = map.getInt(OFF_SEQUENCE);
+            if ((before & 1) != 0) {
+                Thread.yield();
+                continue;
+            }
+            acquireFence();
+            int flags = map.getInt(OFF_FLAGS);
+            long videoMtime = map.getLong(OFF_VIDEO_MTIME);
+            long videoLength = map.getLong(OFF_VIDEO_LENGTH);
+            acquireFence();
+            if (map.getInt(OFF_SEQUENCE) == before) {
+                out.flags = flags;
+                out.videoMtime = videoMtime;
+                out.videoLength = videoLength;
+                out.sequence = before;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** The flags field, or -1 if a writer kept the block busy. */
+    public int flags() {
+        for (int i = 0; i < MAX_READ_SPINS; i++) {
+            int before = map.getInt(OFF_SEQUENCE);
+            acquireFence();
+            int flags = map.getInt(OFF_FLAGS);
+            acquireFence();
+            if ((before & 1) == 0 && map.getInt(OFF_SEQUENCE) == before) return flags;
+            Thread.yield();
+        }
+        return -1;
+    }
+
+    /** The video mtime field, or -1 if a writer kept the block busy. */
+    public long videoMtime() {
+        for (int i = 0; i < MAX_READ_SPINS; i++) {
+            int before = map.getInt(OFF_SEQUENCE);
+            acquireFence();
+            long mtime = map.getLong(OFF_VIDEO_MTIME);
+            acquireFence();
+            if ((before & 1) == 0 && map.getInt(OFF_SEQUENCE) == before) return mtime;
+            Thread.yield();
+        }
+        return -1;
+    }
+
+    /** The sequence counter alone; it changes on every write. */
+    public int sequence() {
+        return map.getInt(OFF_SEQUENCE);
+    }
+
+    /** Publishes new values; a no-op when nothing changed. Returns the new sequence. */
+    public int write(int flags, long videoMtime, long videoLength) throws IOException {
+        if (channel == null) throw new IOException("config block is read-only: " + file);
+        try (FileLock ignored = channel.lock()) {
+            int seq = map.getInt(OFF_SEQUENCE) & ~1;
+            if (map.getInt(OFF_FLAGS) == flags && map.getLong(OFF_VIDEO_MTIME) == videoMtime
+                    && map.getLong(OFF_VIDEO_LENGTH) == videoLength) {
+                return seq;
+            }
+            map.putInt(OFF_SEQUENCE, seq + 1);
+            releaseFence(seq);
+            map.putInt(OFF_FLAGS, flags);
+            map.putLong(OFF_VIDEO_MTIME, videoMtime);
+            map.putLong(OFF_VIDEO_LENGTH, videoLength);
+            releaseFence(seq);
+            map.putInt(OFF_SEQUENCE, seq + 2);
+            return seq + 2;
+        }
+    }
+}
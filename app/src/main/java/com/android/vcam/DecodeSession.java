@@ -0,0 +1,764 @@
+package com.android.vcam;
+
+import android.graphics.ImageFormat;
+import android.graphics.SurfaceTexture;
+import android.media.Image;
+import android.media.ImageWriter;
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.opengl.EGL14;
+import android.opengl.EGLConfig;
+import android.opengl.EGLContext;
+import android.opengl.EGLDisplay;
+import android.opengl.EGLExt;
+import android.opengl.EGLSurface;
+import android.opengl.GLES11Ext;
+import android.opengl.GLES20;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.view.Surface;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One decode of a video file shared by every output that shows it. The file is decoded once,
+ * by a single {@link VideoToFrames}, into a GL texture; each frame is then drawn into every
+ * registered output Surface (preview views, RGB ImageReaders, encoder input surfaces) and, when
+ * byte sinks or YUV readers are registered, read back once as NV21 for them. All outputs
+ * therefore get the same frame with the same timestamp, and outputs come and go between frames
+ * without the decoder noticing.
+ *
+ * <p>GL must not draw into a YUV or PRIVATE ImageReader: connecting EGL switches the producer to
+ * RGBA and the reader then rejects every image. Those are added with {@link #addYuvSurface}.
+ *
+ * <p>Sessions are shared per file through {@link #acquire} and {@link #release}. All GL work
+ * happens on the session's own thread; the public methods may be called from any thread.
+ */
+public final class DecodeSession {
+
+    /** Receives every frame as NV21 at the video's size; the array is reused once this returns. */
+    public interface ByteSink {
+        void onFrame(byte[] nv21, int width, int height, long timestampNs);
+    }
+
+    /** Told, on the session's thread, when an output surface has been drawn into for the first time. */
+    public interface FirstFrameListener {
+        void onFirstFrame(Surface surface);
+    }
+
+    private static final long STOP_TIMEOUT_MS = 500;
+    private static final long SYNC_TIMEOUT_MS = 500;
+    /** Images an ImageWriter may have dequeued at once; one is written while the other is queued. */
+    private static final int WRITER_MAX_IMAGES = 2;
+    private static final int EGL_RECORDABLE_ANDROID = 0x3142;
+
+    private static final String VERTEX_SHADER =
+            "uniform mat4 uTexMatrix;\n"
+            + "uniform vec2 uCropScale;\n"
+            + "uniform float uFlipY;\n"
+            + "attribute vec2 aPosition;\n"
+            + "attribute vec2 aTexCoord;\n"
+            + "varying vec2 vTexCoord;\n"
+            + "void main() {\n"
+            + "    gl_Position = vec4(aPosition.x, aPosition.y * uFlipY, 0.0, 1.0);\n"
+            + "    vec2 tc = (aTexCoord - 0.5) * uCropScale + 0.5;\n"
+            + "    vTexCoord = (uTexMatrix * vec4(tc, 0.0, 1.0)).xy;\n"
+            + "}\n";
+    private static final String FRAGMENT_SHADER =
+            "#extension GL_OES_EGL_image_external : require\n"
+            + "precision mediump float;\n"
+            + "uniform samplerExternalOES sTexture;\n"
+            + "uniform float uSwapRB;\n"
+            + "varying vec2 vTexCoord;\n"
+            + "void main() {\n"
+            + "    vec4 c = texture2D(sTexture, vTexCoord);\n"
+            + "    gl_FragColor = mix(c, c.bgra, uSwapRB);\n"
+            + "}\n";
+    private static final float[] QUAD = {
+            -1f, -1f, 0f, 0f,
+            1f, -1f, 1f, 0f,
+            -1f, 1f, 0f, 1f,
+            1f, 1f, 1f, 1f,
+    };
+
+    private static final HashMap<String, DecodeSession> sessions = new HashMap<>();
+
+    private final String path;
+    private int refs;
+    private final HandlerThread glThread;
+    private final Handler handler;
+    private final CopyOnWriteArrayList<Surface> surfaces = new CopyOnWriteArrayList<>();
+    /** YUV readers and their {@link ImageFormat}, see {@link #addYuvSurface}. */
+    private final ConcurrentHashMap<Surface, Integer> yuvSurfaces = new ConcurrentHashMap<>();
+    private final CopyOnWriteArrayList<ByteSink> byteSinks = new CopyOnWriteArrayList<>();
+    private volatile boolean closed;
+    private volatile VideoToFrames decoder;
+    private volatile long framesDrawn;
+    private final ConcurrentHashMap<Surface, FirstFrameListener> firstFrameListeners = new ConcurrentHashMap<>();
+
+    // Everything below is touched on the GL thread only.
+    private final IdentityHashMap<Surface, EGLSurface> outputs = new IdentityHashMap<>();
+    private final IdentityHashMap<Surface, YuvOutput> yuvOutputs = new IdentityHashMap<>();
+    /** Whether any of {@link #yuvOutputs} is fed from the readback. */
+    private boolean yuvWriters;
+    /** Outputs not drawn into yet. */
+    private final Set<Surface> undrawn = Collections.newSetFromMap(new IdentityHashMap<Surface, Boolean>());
+    private final float[] texMatrix = new float[16];
+    /** Scratch for EGL queries: an output's width and height, or the EGL version. */
+    private final int[] eglPair = new int[2];
+    private long lastTimestampNs;
+    private EGLDisplay display = EGL14.EGL_NO_DISPLAY;
+    private EGLContext context = EGL14.EGL_NO_CONTEXT;
+    private EGLConfig config;
+    private EGLSurface idleSurface = EGL14.EGL_NO_SURFACE;
+    private EGLSurface readbackSurface = EGL14.EGL_NO_SURFACE;
+    private int program;
+    private int uTexMatrix;
+    private int uCropScale;
+    private int uFlipY;
+    private int uSwapRB;
+    private int aPosition;
+    private int aTexCoord;
+    private int textureId;
+    private FloatBuffer quad;
+    private SurfaceTexture texture;
+    private Surface decoderSurface;
+    private int videoWidth;
+    private int videoHeight;
+    private ByteBuffer readbackPixels;
+    private int[] readbackArgb;
+    private byte[] readbackNv21;
+    private ByteBuffer readbackNv21Buffer;
+    private RgbToYuvConverter readbackConverter;
+
+    private DecodeSession(String path) {
+        this.path = path;
+        glThread = new HandlerThread("vcam-decode-session");
+        glThread.start();
+        handler = new Handler(glThread.getLooper());
+    }
+
+    /** Returns the session decoding {@code path}, starting one if none is running. */
+    public static DecodeSession acquire(String path) {
+        synchronized (sessions) {
+            DecodeSession session = sessions.get(path);
+            if (session == null) {
+                session = new DecodeSession(path);
+                sessions.put(path, session);
+                session.handler.post(session::open);
+                Logger.i("decode session: started for " + path);
+            }
+            session.refs++;
+            return session;
+        }
+    }
+
+    /**
+     * Drops one reference; the last one stops the decode and waits briefly until every output
+     * surface has been let go, so callers may hand the surfaces to someone else right away.
+     */
+    public void release() {
+        synchronized (sessions) {
+            if (--refs > 0) return;
+            sessions.remove(path);
+        }
+        closed = true;
+        runAndWait(this::close);
+        glThread.quitSafely();
+        Logger.i("decode session: stopped for " + path + " after " + framesDrawn + " frames");
+    }
+
+    public String path() {
+        return path;
+    }
+
+    /**
+     * Adds an output surface. It is drawn the current frame straight away, if one was decoded
+     * yet, and every frame after.
+     */
+    public void addSurface(Surface surface) {
+        addSurface(surface, null);
+    }
+
+    /** Like {@link #addSurface(Surface)}, telling {@code listener} once the first frame is in. */
+    public void addSurface(Surface surface, FirstFrameListener listener) {
+        if (surface == null) return;
+        if (listener != null) firstFrameListeners.put(surface, listener);
+        if (surfaces.addIfAbsent(surface)) {
+            Logger.i("decode session: output added %s (%s total)", surface, surfaces.size());
+            handler.post(this::drawIntoNewOutputs);
+        }
+    }
+
+    /**
+     * Adds an ImageReader surface in a format GL can't render into: YUV_420_888, YV12 or
+     * PRIVATE, given as {@code format}. From API 23 CPU-writable formats are written the NV21
+     * readback through an ImageWriter, scaled and center-cropped to the reader's size. PRIVATE
+     * readers, and every YUV reader below API 23, get a decoder of their own rendering straight
+     * into them, as readers were fed before decodes were shared.
+     */
+    public void addYuvSurface(Surface surface, int format, FirstFrameListener listener) {
+        if (surface == null) return;
+        if (listener != null) firstFrameListeners.put(surface, listener);
+        if (yuvSurfaces.putIfAbsent(surface, format) == null) {
+            Logger.i("decode session: YUV output added %s format=%s (%s total)", surface, format, yuvSurfaces.size());
+            handler.post(this::syncOutputs);
+        }
+    }
+
+    /** Removes an output surface and waits until the session no longer draws into it. */
+    public void removeSurface(Surface surface) {
+        firstFrameListeners.remove(surface);
+        if (surfaces.remove(surface) | yuvSurfaces.remove(surface) != null) {
+            runAndWait(this::syncOutputs);
+            Logger.i("decode session: output removed %s (%s total)", surface, surfaces.size() + yuvSurfaces.size());
+        }
+    }
+
+    /** Makes {@code wanted} the set of output surfaces, adding and removing the difference. */
+    public void setSurfaces(List<Surface> wanted) {
+        boolean removed = false;
+        for (Surface s : surfaces) {
+            if (!wanted.contains(s)) removed |= surfaces.remove(s);
+        }
+        for (Surface s : wanted) addSurface(s);
+        if (removed) runAndWait(this::syncOutputs);
+    }
+
+    /**
+     * Feeds an encoder that was configured for surface input and not started yet; returns its
+     * input surface, which is removed again with {@link #removeSurface}.
+     */
+    public Surface addEncoder(MediaCodec encoder) {
+        Surface input = encoder.createInputSurface();
+        addSurface(input);
+        return input;
+    }
+
+    public void addByteSink(ByteSink sink) {
+        if (sink != null) byteSinks.addIfAbsent(sink);
+    }
+
+    public void removeByteSink(ByteSink sink) {
+        byteSinks.remove(sink);
+    }
+
+    /** Pacing counters of the shared decode, or null before it started. */
+    public PresentationClock clock() {
+        VideoToFrames d = decoder;
+        return d == null ? null : d.clock();
+    }
+
+    /** Frames drawn so far, counted once however many outputs each went to. */
+    public long framesDrawn() {
+        return framesDrawn;
+    }
+
+    /** Runs {@code task} on the GL thread and waits for it, up to {@link #SYNC_TIMEOUT_MS}. */
+    private void runAndWait(Runnable task) {
+        if (Looper.myLooper() == glThread.getLooper()) {
+            task.run();
+            return;
+        }
+        CountDownLatch done = new CountDownLatch(1);
+        if (!handler.post(() -> {
+            try {
+                task.run();
+            } finally {
+                done.countDown();
+            }
+        })) {
+            return;
+        }
+        try {
+            if (!done.await(SYNC_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                Logger.i("decode session: GL thread busy, continuing without waiting");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void open() {
+        if (closed) return;
+        try {
+            if (!readVideoSize()) return;
+            setUpEgl();
+            setUpProgram();
+            texture = new SurfaceTexture(textureId);
+            texture.setDefaultBufferSize(videoWidth, videoHeight);
+            texture.setOnFrameAvailableListener(st -> drawFrame(), handler);
+            decoderSurface = new Surface(texture);
+            VideoToFrames d = new VideoToFrames();
+            d.setSurface(decoderSurface);
+            d.decode(path);
+            decoder = d;
+        } catch (Throwable t) {
+            Logger.i("decode session: cannot start for " + path + ": " + t);
+        }
+    }
+
+    private boolean readVideoSize() throws Exception {
+        MediaExtractor extractor = new MediaExtractor();
+        try {
+            extractor.setDataSource(path);
+            int track = VideoToFrames.selectTrack(extractor);
+            if (track < 0) {
+                Logger.i("decode session: no video track in " + path);
+                return false;
+            }
+            MediaFormat format = extractor.getTrackFormat(track);
+            videoWidth = format.getInteger(MediaFormat.KEY_WIDTH);
+            videoHeight = format.getInteger(MediaFormat.KEY_HEIGHT);
+            return true;
+        } finally {
+            extractor.release();
+        }
+    }
+
+    private void setUpEgl() {
+        display = EGL14.eglGetDisplay(EGL14.EGL_DEFAULT_DISPLAY);
+        if (!EGL14.eglInitialize(display, eglPair, 0, eglPair, 1)) {
+            throw new IllegalStateException("eglInitialize: 0x" + Integer.toHexString(EGL14.eglGetError()));
+        }
+        int[] attribs = {
+                EGL14.EGL_RED_SIZE, 8,
+                EGL14.EGL_GREEN_SIZE, 8,
+                EGL14.EGL_BLUE_SIZE, 8,
+                EGL14.EGL_ALPHA_SIZE, 8,
+                EGL14.EGL_RENDERABLE_TYPE, EGL14.EGL_OPENGL_ES2_BIT,
+                EGL14.EGL_SURFACE_TYPE, EGL14.EGL_WINDOW_BIT | EGL14.EGL_PBUFFER_BIT,
+                // Lets encoder input surfaces be outputs too.
+                EGL_RECORDABLE_ANDROID, 1,
+                EGL14.EGL_NONE
+        };
+        EGLConfig[] configs = new EGLConfig[1];
+        int[] count = new int[1];
+        if (!EGL14.eglChooseConfig(display, attribs, 0, configs, 0, 1, count, 0) || count[0] == 0) {
+            throw new IllegalStateException("no EGL config");
+        }
+        config = configs[0];
+        context = EGL14.eglCreateContext(display, config, EGL14.EGL_NO_CONTEXT,
+                new int[]{EGL14.EGL_CONTEXT_CLIENT_VERSION, 2, EGL14.EGL_NONE}, 0);
+        if (context == null || context == EGL14.EGL_NO_CONTEXT) {
+            throw new IllegalStateException("eglCreateContext: 0x" + Integer.toHexString(EGL14.eglGetError()));
+        }
+        idleSurface = createPbuffer(1, 1);
+        makeCurrent(idleSurface);
+    }
+
+    private EGLSurface createPbuffer(int width, int height) {
+        return EGL14.eglCreatePbufferSurface(display, config,
+                new int[]{EGL14.EGL_WIDTH, width, EGL14.EGL_HEIGHT, height, EGL14.EGL_NONE}, 0);
+    }
+
+    private boolean makeCurrent(EGLSurface surface) {
+        return EGL14.eglMakeCurrent(display, surface, surface, context);
+    }
+
+    private void setUpProgram() {
+        program = GLES20.glCreateProgram();
+        GLES20.glAttachShader(program, compileShader(GLES20.GL_VERTEX_SHADER, VERTEX_SHADER));
+        GLES20.glAttachShader(program, compileShader(GLES20.GL_FRAGMENT_SHADER, FRAGMENT_SHADER));
+        GLES20.glLinkProgram(program);
+        int[] status = new int[1];
+        GLES20.glGetProgramiv(program, GLES20.GL_LINK_STATUS, status, 0);
+        if (status[0] == 0) {
+            throw new IllegalStateException("link: " + GLES20.glGetProgramInfoLog(program));
+        }
+        uTexMatrix = GLES20.glGetUniformLocation(program, "uTexMatrix");
+        uCropScale = GLES20.glGetUniformLocation(program, "uCropScale");
+        uFlipY = GLES20.glGetUniformLocation(program, "uFlipY");
+        uSwapRB = GLES20.glGetUniformLocation(program, "uSwapRB");
+        aPosition = GLES20.glGetAttribLocation(program, "aPosition");
+        aTexCoord = GLES20.glGetAttribLocation(program, "aTexCoord");
+        quad = ByteBuffer.allocateDirect(QUAD.length * 4).order(ByteOrder.nativeOrder()).asFloatBuffer();
+        quad.put(QUAD);
+
+        int[] tex = new int[1];
+        GLES20.glGenTextures(1, tex, 0);
+        textureId = tex[0];
+        GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, textureId);
+        GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
+        GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
+        GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+        GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+    }
+
+    private static int compileShader(int type, String source) {
+        int shader = GLES20.glCreateShader(type);
+        GLES20.glShaderSource(shader, source);
+        GLES20.glCompileShader(shader);
+        int[] status = new int[1];
+        GLES20.glGetShaderiv(shader, GLES20.GL_COMPILE_STATUS, status, 0);
+        if (status[0] == 0) {
+            String log = GLES20.glGetShaderInfoLog(shader);
+            GLES20.glDeleteShader(shader);
+            throw new IllegalStateException("compile: " + log);
+        }
+        return shader;
+    }
+
+    /** Latches the newest decoded frame and draws it into every output. */
+    private void drawFrame() {
+        if (closed) return;
+        long startNs = System.nanoTime();
+        makeCurrent(idleSurface);
+        texture.updateTexImage();
+        texture.getTransformMatrix(texMatrix);
+        long timestampNs = texture.getTimestamp();
+        if (timestampNs == 0) timestampNs = System.nanoTime();
+        lastTimestampNs = timestampNs;
+        syncOutputs();
+        List<Surface> lost = null;
+        for (Map.Entry<Surface, EGLSurface> e : outputs.entrySet()) {
+            if (!drawInto(e.getKey(), e.getValue(), timestampNs)) lost = addLost(lost, e.getKey());
+        }
+        dropLost(lost);
+        PipelineMetrics.recordSince(PipelineMetrics.Stage.SURFACE_DRAW, startNs);
+        PipelineMetrics.queueDepth(PipelineMetrics.Queue.SESSION_OUTPUTS, outputs.size() + yuvOutputs.size());
+        if (!byteSinks.isEmpty() || yuvWriters) {
+            long readbackStartNs = System.nanoTime();
+            readBack(timestampNs);
+            PipelineMetrics.recordSince(PipelineMetrics.Stage.READBACK, readbackStartNs);
+        }
+        makeCurrent(idleSurface);
+        framesDrawn++;
+    }
+
+    /**
+     * Shows outputs added since the last frame the latched frame now, instead of leaving them
+     * empty until the next one is decoded.
+     */
+    private void drawIntoNewOutputs() {
+        if (closed || framesDrawn == 0) return;
+        syncOutputs();
+        if (undrawn.isEmpty()) return;
+        List<Surface> lost = null;
+        for (Surface s : new ArrayList<>(undrawn)) {
+            EGLSurface out = outputs.get(s);
+            if (out != null && !drawInto(s, out, lastTimestampNs)) lost = addLost(lost, s);
+        }
+        dropLost(lost);
+        makeCurrent(idleSurface);
+    }
+
+    /** Draws the latched frame into one output; false if the output is gone. */
+    private boolean drawInto(Surface surface, EGLSurface out, long timestampNs) {
+        if (!makeCurrent(out)) return false;
+        EGL14.eglQuerySurface(display, out, EGL14.EGL_WIDTH, eglPair, 0);
+        EGL14.eglQuerySurface(display, out, EGL14.EGL_HEIGHT, eglPair, 1);
+        draw(eglPair[0], eglPair[1], false);
+        EGLExt.eglPresentationTimeANDROID(display, out, timestampNs);
+        if (!EGL14.eglSwapBuffers(display, out)) return false;
+        if (undrawn.remove(surface)) {
+            FirstFrameListener listener = firstFrameListeners.remove(surface);
+            if (listener != null) listener.onFirstFrame(surface);
+        }
+        return true;
+    }
+
+    private void dropLost(List<Surface> lost) {
+        if (lost == null) return;
+        for (Surface s : lost) {
+            Logger.i("decode session: output gone " + s + ": 0x" + Integer.toHexString(EGL14.eglGetError()));
+            surfaces.remove(s);
+            firstFrameListeners.remove(s);
+        }
+        syncOutputs();
+    }
+
+    private static List<Surface> addLost(List<Surface> lost, Surface s) {
+        if (lost == null) lost = new ArrayList<>(2);
+        lost.add(s);
+        return lost;
+    }
+
+    /** Brings the EGL surfaces and YUV outputs in line with the requested output surfaces. */
+    private void syncOutputs() {
+        if (closed || display == EGL14.EGL_NO_DISPLAY) return;
+        syncYuvOutputs();
+        Iterator<Map.Entry<Surface, EGLSurface>> it = outputs.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Surface, EGLSurface> e = it.next();
+            if (!surfaces.contains(e.getKey())) {
+                destroyOutput(e.getValue());
+                undrawn.remove(e.getKey());
+                it.remove();
+            }
+        }
+        for (Surface s : surfaces) {
+            if (outputs.containsKey(s)) continue;
+            EGLSurface out = s.isValid()
+                    ? EGL14.eglCreateWindowSurface(display, config, s, new int[]{EGL14.EGL_NONE}, 0)
+                    : EGL14.EGL_NO_SURFACE;
+            if (out == null || out == EGL14.EGL_NO_SURFACE) {
+                // Invalid, already connected elsewhere, or a format GL can't draw (e.g. JPEG).
+                Logger.i("decode session: cannot draw into " + s + ": 0x" + Integer.toHexString(EGL14.eglGetError()));
+                surfaces.remove(s);
+                continue;
+            }
+            outputs.put(s, out);
+            undrawn.add(s);
+        }
+    }
+
+    private void syncYuvOutputs() {
+        Iterator<Map.Entry<Surface, YuvOutput>> it = yuvOutputs.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Surface, YuvOutput> e = it.next();
+            if (!yuvSurfaces.containsKey(e.getKey())) {
+                e.getValue().close();
+                it.remove();
+            }
+        }
+        for (Map.Entry<Surface, Integer> e : yuvSurfaces.entrySet()) {
+            Surface s = e.getKey();
+            if (yuvOutputs.containsKey(s)) continue;
+            YuvOutput out = null;
+            try {
+                if (!s.isValid()) throw new IllegalStateException("surface released");
+                out = Build.VERSION.SDK_INT >= Build.VERSION_CODES.M && e.getValue() != ImageFormat.PRIVATE
+                        ? new WriterOutput(s) : new DecoderOutput(s);
+            } catch (Throwable t) {
+                Logger.i("decode session: cannot feed " + s + ": " + t);
+                yuvSurfaces.remove(s);
+                firstFrameListeners.remove(s);
+                continue;
+            }
+            yuvOutputs.put(s, out);
+        }
+        yuvWriters = false;
+        for (YuvOutput out : yuvOutputs.values()) yuvWriters |= out instanceof WriterOutput;
+    }
+
+    private void destroyOutput(EGLSurface out) {
+        makeCurrent(idleSurface);
+        EGL14.eglDestroySurface(display, out);
+    }
+
+    /** Draws the current frame center-cropped to a {@code width} x {@code height} viewport. */
+    private void draw(int width, int height, boolean readback) {
+        GLES20.glViewport(0, 0, width, height);
+        GLES20.glUseProgram(program);
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+        GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, textureId);
+        GLES20.glUniformMatrix4fv(uTexMatrix, 1, false, texMatrix, 0);
+        float src = (float) videoWidth / videoHeight;
+        float dst = height == 0 ? src : (float) width / height;
+        GLES20.glUniform2f(uCropScale, dst < src ? dst / src : 1f, dst > src ? src / dst : 1f);
+        // Read back top row first, with bytes in an order that loads as ARGB ints.
+        GLES20.glUniform1f(uFlipY, readback ? -1f : 1f);
+        GLES20.glUniform1f(uSwapRB, readback ? 1f : 0f);
+        quad.position(0);
+        GLES20.glEnableVertexAttribArray(aPosition);
+        GLES20.glVertexAttribPointer(aPosition, 2, GLES20.GL_FLOAT, false, 16, quad);
+        quad.position(2);
+        GLES20.glEnableVertexAttribArray(aTexCoord);
+        GLES20.glVertexAttribPointer(aTexCoord, 2, GLES20.GL_FLOAT, false, 16, quad);
+        GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
+    }
+
+    /** Renders the frame once at the video's size and hands it as NV21 to the byte sinks and YUV writers. */
+    private void readBack(long timestampNs) {
+        int w = videoWidth;
+        int h = videoHeight;
+        if (readbackSurface == EGL14.EGL_NO_SURFACE) {
+            readbackSurface = createPbuffer(w, h);
+            readbackPixels = ByteBuffer.allocateDirect(w * h * 4).order(ByteOrder.LITTLE_ENDIAN);
+            readbackArgb = new int[w * h];
+            readbackNv21 = new byte[YuvPlaneConverter.frameSize(w, h)];
+            readbackNv21Buffer = ByteBuffer.wrap(readbackNv21);
+            readbackConverter = new RgbToYuvConverter(RgbToYuvConverter.Matrix.BT601,
+                    RgbToYuvConverter.Range.LIMITED, YuvPlaneConverter.OutputFormat.NV21);
+        }
+        if (!makeCurrent(readbackSurface)) return;
+        draw(w, h, true);
+        readbackPixels.clear();
+        GLES20.glReadPixels(0, 0, w, h, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, readbackPixels);
+        readbackPixels.asIntBuffer().get(readbackArgb);
+        readbackConverter.convert(readbackArgb, 0, w, w, h, readbackNv21);
+        for (ByteSink sink : byteSinks) {
+            try {
+                sink.onFrame(readbackNv21, w, h, timestampNs);
+            } catch (RuntimeException e) {
+                Logger.i("decode session: byte sink failed: " + e);
+            }
+        }
+        if (!yuvWriters) return;
+        List<Surface> lost = null;
+        for (Map.Entry<Surface, YuvOutput> e : yuvOutputs.entrySet()) {
+            YuvOutput out = e.getValue();
+            if (!(out instanceof WriterOutput)) continue;
+            if (!((WriterOutput) out).write(timestampNs)) {
+                lost = addLost(lost, e.getKey());
+            } else if (!out.notified) {
+                out.notified = true;
+                FirstFrameListener listener = firstFrameListeners.remove(e.getKey());
+                if (listener != null) listener.onFirstFrame(e.getKey());
+            }
+        }
+        if (lost == null) return;
+        for (Surface s : lost) {
+            Logger.i("decode session: YUV output gone " + s);
+            yuvSurfaces.remove(s);
+            firstFrameListeners.remove(s);
+        }
+        syncYuvOutputs();
+    }
+
+    /** A YUV reader output; GL thread only. */
+    private abstract static class YuvOutput {
+        /** Whether its first-frame listener was told. */
+        boolean notified;
+
+        abstract void close();
+    }
+
+    /** Writes the NV21 readback into a CPU-writable YUV reader through an ImageWriter (API 23). */
+    private final class WriterOutput extends YuvOutput {
+        private final ImageWriter writer;
+        private final YuvPlaneConverter.Planes planes = new YuvPlaneConverter.Planes();
+        private Nv21Scaler scaler;
+        private byte[] scaled;
+
+        WriterOutput(Surface surface) {
+            writer = ImageWriter.newInstance(surface, WRITER_MAX_IMAGES);
+        }
+
+        /** Writes the current readback; false once the reader is gone. */
+        boolean write(long timestampNs) {
+            Image image;
+            try {
+                image = writer.dequeueInputImage();
+            } catch (RuntimeException e) {
+                Logger.i("decode session: ImageWriter: " + e);
+                return false;
+            }
+            try {
+                int w = image.getWidth();
+                int h = image.getHeight();
+                byte[] nv21 = readbackNv21;
+                if (w != videoWidth || h != videoHeight) {
+                    if (scaler == null || scaler.dstWidth() != w || scaler.dstHeight() != h) {
+                        scaler = new Nv21Scaler(w, h, Nv21Scaler.Filter.BILINEAR, Nv21Scaler.Fit.CENTER_CROP);
+                        scaled = new byte[Nv21Scaler.frameSize(w, h)];
+                    }
+                    scaler.scale(readbackNv21Buffer, videoWidth, videoHeight, scaled);
+                    nv21 = scaled;
+                }
+                Image.Plane[] p = image.getPlanes();
+                planes.y = p[0].getBuffer();
+                planes.yRowStride = p[0].getRowStride();
+                planes.u = p[1].getBuffer();
+                planes.uRowStride = p[1].getRowStride();
+                planes.uPixelStride = p[1].getPixelStride();
+                planes.v = p[2].getBuffer();
+                planes.vRowStride = p[2].getRowStride();
+                planes.vPixelStride = p[2].getPixelStride();
+                planes.width = w;
+                planes.height = h;
+                YuvPlaneConverter.writeNv21(nv21, planes);
+                image.setTimestamp(timestampNs);
+                writer.queueInputImage(image);
+                return true;
+            } catch (RuntimeException e) {
+                Logger.i("decode session: YUV write: " + e);
+                image.close();
+                return false;
+            }
+        }
+
+        @Override
+        void close() {
+            writer.close();
+        }
+    }
+
+    /** A decoder of its own rendering into a reader the session can't write (PRIVATE, or below API 23). */
+    private final class DecoderOutput extends YuvOutput {
+        private final VideoToFrames decoder = new VideoToFrames();
+
+        DecoderOutput(final Surface surface) throws Throwable {
+            decoder.setSurface(surface);
+            decoder.setCallback(new VideoToFrames.Callback() {
+                @Override
+                public void onFinishDecode() {
+                }
+
+                @Override
+                public void onDecodeFrame(int index) {
+                    if (notified) return;
+                    notified = true;
+                    handler.post(() -> {
+                        FirstFrameListener listener = firstFrameListeners.remove(surface);
+                        if (listener != null) listener.onFirstFrame(surface);
+                    });
+                }
+            });
+            decoder.decode(path);
+        }
+
+        @Override
+        void close() {
+            decoder.stopDecode();
+            try {
+                if (!decoder.awaitStop(STOP_TIMEOUT_MS)) Logger.i("decode session: reader decoder slow to stop");
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void close() {
+        VideoToFrames d = decoder;
+        if (d != null) {
+            d.stopDecode();
+            try {
+                if (!d.awaitStop(STOP_TIMEOUT_MS)) Logger.i("decode session: decoder slow to stop");
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            decoder = null;
+        }
+        if (display != EGL14.EGL_NO_DISPLAY) {
+            for (EGLSurface out : outputs.values()) destroyOutput(out);
+            outputs.clear();
+            for (YuvOutput out : yuvOutputs.values()) out.close();
+            yuvOutputs.clear();
+            undrawn.clear();
+            if (readbackSurface != EGL14.EGL_NO_SURFACE) EGL14.eglDestroySurface(display, readbackSurface);
+            if (program != 0) GLES20.glDeleteProgram(program);
+            if (textureId != 0) GLES20.glDeleteTextures(1, new int[]{textureId}, 0);
+            EGL14.eglMakeCurrent(display, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_CONTEXT);
+            if (idleSurface != EGL14.EGL_NO_SURFACE) EGL14.eglDestroySurface(display, idleSurface);
+            EGL14.eglDestroyContext(display, context);
+            // No eglTerminate: the display is shared with the host app's own rendering.
+            EGL14.eglReleaseThread();
+            display = EGL14.EGL_NO_DISPLAY;
+        }
+        if (decoderSurface != null) decoderSurface.release();
+        if (texture != null) texture.release();
+        surfaces.clear();
+        yuvSurfaces.clear();
+        byteSinks.clear();
+        firstFrameListeners.clear();
+    }
+}
@@ -0,0 +1,100 @@
+package com.android.vcam;
+
+import java.lang.reflect.Member;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import de.robv.android.xposed.XC_MethodHook;
+import de.robv.android.xposed.XposedBridge;
+import de.robv.android.xposed.XposedHelpers;
+
+/**
+ * Installs each hook at most once per process. A hook is identified by the method it targets
+ * plus the class of its {@link XC_MethodHook}, so calling a {@code hookOnce} variant again with
+ * a fresh instance of the same anonymous hook class is a no-op, while different hooks on the
+ * same method still stack. Hook bodies must therefore read whatever they need from current
+ * state rather than from values captured when they were created.
+ */
+public final class HookRegistry {
+
+    private static final ConcurrentHashMap<Key, XC_MethodHook.Unhook> installed = new ConcurrentHashMap<>();
+    private static final AtomicInteger skipped = new AtomicInteger();
+
+    private HookRegistry() {}
+
+    /** Same arguments as {@link XposedHelpers#findAndHookMethod(Class, String, Object...)}. */
+    public static XC_MethodHook.Unhook hookOnce(Class<?> clazz, String methodName, Object... parameterTypesAndCallback) {
+        XC_MethodHook callback = callback(parameterTypesAndCallback);
+        Object[] parameterTypes = Arrays.copyOf(parameterTypesAndCallback, parameterTypesAndCallback.length - 1);
+        Member method = XposedHelpers.findMethodExact(clazz, methodName, parameterTypes);
+        return hookOnce(method, callback);
+    }
+
+    /** Same arguments as {@link XposedHelpers#findAndHookMethod(String, ClassLoader, String, Object...)}. */
+    public static XC_MethodHook.Unhook hookOnce(String className, ClassLoader classLoader, String methodName,
+                                                Object... parameterTypesAndCallback) {
+        return hookOnce(XposedHelpers.findClass(className, classLoader), methodName, parameterTypesAndCallback);
+    }
+
+    public static XC_MethodHook.Unhook hookOnce(Member method, XC_MethodHook callback) {
+        Key key = new Key(method, callback.getClass());
+        XC_MethodHook.Unhook existing = installed.get(key);
+        if (existing != null) {
+            skipped.incrementAndGet();
+            return existing;
+        }
+        synchronized (installed) {
+            existing = installed.get(key);
+            if (existing != null) {
+                skipped.incrementAndGet();
+                return existing;
+            }
+            XC_MethodHook.Unhook unhook = XposedBridge.hookMethod(method, callback);
+            installed.put(key, unhook);
+            Logger.i("hook installed: %s#%s (%s total)",
+                    method.getDeclaringClass().getName(), method.getName(), installed.size());
+            return unhook;
+        }
+    }
+
+    /** Hooks currently installed through the registry. */
+    public static int installedCount() {
+        return installed.size();
+    }
+
+    /** Requests that found their hook already installed. */
+    public static int skippedCount() {
+        return skipped.get();
+    }
+
+    private static XC_MethodHook callback(Object[] parameterTypesAndCallback) {
+        if (parameterTypesAndCallback.length == 0
+                || !(parameterTypesAndCallback[parameterTypesAndCallback.length - 1] instanceof XC_MethodHook)) {
+            throw new IllegalArgumentException("no callback defined");
+        }
+        return (XC_MethodHook) parameterTypesAndCallback[parameterTypesAndCallback.length - 1];
+    }
+
+    private static final class Key {
+        final Member method;
+        final Class<?> hookClass;
+
+        Key(Member method, Class<?> hookClass) {
+            this.method = method;
+            this.hookClass = hookClass;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) return false;
+            Key k = (Key) o;
+            return method.equals(k.method) && hookClass == k.hookClass;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * method.hashCode() + hookClass.hashCode();
+        }
+    }
+}
@@ -2,65 +2,314 @@ package com.android.vcam;
 
 import android.util.Log;
 
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
 /**
- * Central logger using android.util.Log.
- * Provides i/d/w/e levels; default log() maps to info.
+ * Central logger on top of android.util.Log, built for calls on hook hot paths.
+ *
+ * <p>The level is checked before anything else, so a call below {@link #level()} costs one
+ * volatile read. Formatting is deferred: format strings ({@link String#format} syntax) and
+ * {@link MessageSupplier}s are only evaluated by a background thread that drains a preallocated
+ * ring of events in batches and writes them to logcat, tagged with the calling thread. Arguments
+ * are therefore formatted a little later than the call; pass values, not objects that are about
+ * to change. When the ring is full, events are dropped and counted rather than blocking the
+ * caller. {@link RateLimit} thins out messages on per-frame paths.
  */
 public final class Logger {
 
     private static final String TAG = "VCAM";
 
+    public static final int DEBUG = Log.DEBUG;
+    public static final int INFO = Log.INFO;
+    public static final int WARN = Log.WARN;
+    public static final int ERROR = Log.ERROR;
+
+    /** Builds a message on the logging thread, only if the level is enabled. */
+    public interface MessageSupplier {
+        String get();
+    }
+
+    private static final int CAPACITY = 1024;
+    private static final int MASK = CAPACITY - 1;
+    /** How long the drain thread sleeps when nothing urgent wakes it. */
+    private static final long DRAIN_INTERVAL_NS = 100_000_000L;
+    private static final Object[] NO_ARGS = {};
+
+    private static volatile int minLevel = BuildConfig.DEBUG ? DEBUG : INFO;
+
+    private static final Event[] ring = new Event[CAPACITY];
+    private static final AtomicLong head = new AtomicLong();
+    private static volatile long tail;
+    private static final AtomicLong dropped = new AtomicLong();
+    private static volatile Thread drainer;
+
+    static {
+        for (int i = 0; i < CAPACITY; i++) ring[i] = new Event(i - CAPACITY);
+    }
+
     private Logger() {}
 
-    private static String message(String msg) {
-        return msg != null ? msg : "";
+    /** Messages below this level are discarded before any work is done for them. */
+    public static void setLevel(int level) {
+        minLevel = level;
+    }
+
+    public static int level() {
+        return minLevel;
+    }
+
+    public static boolean isLoggable(int level) {
+        return level >= minLevel;
     }
 
     public static void d(String msg) {
-        Log.d(TAG, message(msg));
+        if (DEBUG >= minLevel) enqueue(DEBUG, msg, null, 0, null, null, NO_ARGS, null, null, 0);
+    }
+
+    public static void d(String format, Object arg) {
+        if (DEBUG >= minLevel) enqueue(DEBUG, null, format, 1, arg, null, null, null, null, 0);
+    }
+
+    public static void d(String format, Object arg0, Object arg1) {
+        if (DEBUG >= minLevel) enqueue(DEBUG, null, format, 2, arg0, arg1, null, null, null, 0);
     }
 
     public static void d(String format, Object... args) {
-        Log.d(TAG, message(String.format(format, args)));
+        if (DEBUG >= minLevel) enqueue(DEBUG, null, format, -1, null, null, args, null, null, 0);
+    }
+
+    public static void d(MessageSupplier supplier) {
+        if (DEBUG >= minLevel) enqueue(DEBUG, null, null, 0, null, null, NO_ARGS, supplier, null, 0);
     }
 
     public static void i(String msg) {
-        Log.i(TAG, message(msg));
+        if (INFO >= minLevel) enqueue(INFO, msg, null, 0, null, null, NO_ARGS, null, null, 0);
+    }
+
+    public static void i(String format, Object arg) {
+        if (INFO >= minLevel) enqueue(INFO, null, format, 1, arg, null, null, null, null, 0);
+    }
+
+    public static void i(String format, Object arg0, Object arg1) {
+        if (INFO >= minLevel) enqueue(INFO, null, format, 2, arg0, arg1, null, null, null, 0);
     }
 
     public static void i(String format, Object... args) {
-        Log.i(TAG, message(String.format(format, args)));
+        if (INFO >= minLevel) enqueue(INFO, null, format, -1, null, null, args, null, null, 0);
+    }
+
+    public static void i(MessageSupplier supplier) {
+        if (INFO >= minLevel) enqueue(INFO, null, null, 0, null, null, NO_ARGS, supplier, null, 0);
+    }
+
+    /** Logs at most once per interval of {@code limit}; the next message reports how many were skipped. */
+    public static void i(RateLimit limit, String format, Object arg) {
+        if (INFO >= minLevel && limit.allow()) {
+            enqueue(INFO, null, format, 1, arg, null, null, null, null, limit.takeSuppressed());
+        }
+    }
+
+    public static void i(RateLimit limit, String format, Object arg0, Object arg1) {
+        if (INFO >= minLevel && limit.allow()) {
+            enqueue(INFO, null, format, 2, arg0, arg1, null, null, null, limit.takeSuppressed());
+        }
     }
 
     public static void w(String msg) {
-        Log.w(TAG, message(msg));
+        if (WARN >= minLevel) enqueue(WARN, msg, null, 0, null, null, NO_ARGS, null, null, 0);
     }
 
     public static void w(String format, Object... args) {
-        Log.w(TAG, message(String.format(format, args)));
+        if (WARN >= minLevel) enqueue(WARN, null, format, -1, null, null, args, null, null, 0);
     }
 
-    public static void w(Throwable t) {
-        if (t != null) {
-            Log.w(TAG, t);
+    public static void w(RateLimit limit, String format, Object arg) {
+        if (WARN >= minLevel && limit.allow()) {
+            enqueue(WARN, null, format, 1, arg, null, null, null, null, limit.takeSuppressed());
         }
     }
 
+    public static void w(Throwable t) {
+        if (t != null && WARN >= minLevel) enqueue(WARN, "", null, 0, null, null, NO_ARGS, null, t, 0);
+    }
+
     public static void e(String msg) {
-        Log.e(TAG, message(msg));
+        if (ERROR >= minLevel) enqueue(ERROR, msg, null, 0, null, null, NO_ARGS, null, null, 0);
     }
 
     public static void e(String format, Object... args) {
-        Log.e(TAG, message(String.format(format, args)));
+        if (ERROR >= minLevel) enqueue(ERROR, null, format, -1, null, null, args, null, null, 0);
     }
 
     public static void e(Throwable t) {
-        if (t != null) {
-            Log.e(TAG, t.getMessage(), t);
-        }
+        if (t != null && ERROR >= minLevel) enqueue(ERROR, t.getMessage(), null, 0, null, null, NO_ARGS, null, t, 0);
     }
 
     public static void e(String msg, Throwable t) {
-        Log.e(TAG, message(msg), t);
+        if (ERROR >= minLevel) enqueue(ERROR, msg, null, 0, null, null, NO_ARGS, null, t, 0);
+    }
+
+    /** Events lost because the ring was full. */
+    public static long droppedCount() {
+        return dropped.get();
+    }
+
+    /** Waits up to {@code timeoutMs} until everything logged so far has been written. */
+    public static void flush(long timeoutMs) {
+        long target = head.get();
+        long deadline = System.nanoTime() + timeoutMs * 1_000_000L;
+        while (tail < target && System.nanoTime() - deadline < 0) {
+            LockSupport.unpark(drainer);
+            LockSupport.parkNanos(1_000_000L);
+        }
+    }
+
+    private static void enqueue(int level, String msg, String format, int argc, Object arg0, Object arg1,
+                                Object[] args, MessageSupplier supplier, Throwable t, int suppressed) {
+        long seq;
+        do {
+            seq = head.get();
+            if (seq - tail >= CAPACITY) {
+                dropped.incrementAndGet();
+                wakeDrainer();
+                return;
+            }
+        } while (!head.compareAndSet(seq, seq + 1));
+        Event e = ring[(int) (seq & MASK)];
+        e.level = level;
+        e.thread = Thread.currentThread().getName();
+        e.msg = msg;
+        e.format = format;
+        e.argc = argc;
+        e.arg0 = arg0;
+        e.arg1 = arg1;
+        e.args = args;
+        e.supplier = supplier;
+        e.throwable = t;
+        e.suppressed = suppressed;
+        e.published = seq;
+        if (level >= WARN || seq - tail >= CAPACITY / 2 || drainer == null) wakeDrainer();
+    }
+
+    private static void wakeDrainer() {
+        Thread t = drainer;
+        if (t == null) {
+            synchronized (Logger.class) {
+                t = drainer;
+                if (t == null) {
+                    t = new Thread(Logger::drainLoop, "vcam-log");
+                    t.setDaemon(true);
+                    drainer = t;
+                    t.start();
+                    return;
+                }
+            }
+        }
+        LockSupport.unpark(t);
+    }
+
+    private static void drainLoop() {
+        while (true) {
+            long lost = dropped.getAndSet(0);
+            if (lost > 0) Log.w(TAG, lost + " log messages dropped, ring full");
+            long next = tail;
+            Event e = ring[(int) (next & MASK)];
+            while (e.published == next) {
+                write(e);
+                e.clear();
+                tail = ++next;
+                e = ring[(int) (next & MASK)];
+            }
+            LockSupport.parkNanos(DRAIN_INTERVAL_NS);
+        }
+    }
+
+    private static void write(Event e) {
+        String text;
+        try {
+            text = e.render();
+        } catch (RuntimeException ex) {
+            text = "unformattable log message " + e.format + ": " + ex;
+        }
+        if (text == null) text = "";
+        StringBuilder sb = new StringBuilder(text.length() + 32);
+        sb.append('[').append(e.thread).append("] ").append(text);
+        if (e.suppressed > 0) sb.append(" (").append(e.suppressed).append(" similar suppressed)");
+        if (e.throwable != null) sb.append('\n').append(Log.getStackTraceString(e.throwable));
+        Log.println(e.level, TAG, sb.toString());
+    }
+
+    /**
+     * Lets a message through at most once per interval and counts the ones held back; shared
+     * by all threads logging the same message.
+     */
+    public static final class RateLimit {
+        private final long intervalNs;
+        private final AtomicLong nextNs;
+        private final AtomicInteger suppressed = new AtomicInteger();
+
+        public RateLimit(long intervalMs) {
+            intervalNs = intervalMs * 1_000_000L;
+            nextNs = new AtomicLong(System.nanoTime());
+        }
+
+        public boolean allow() {
+            long now = System.nanoTime();
+            long next = nextNs.get();
+            if (now - next >= 0 && nextNs.compareAndSet(next, now + intervalNs)) return true;
+            suppressed.incrementAndGet();
+            return false;
+        }
+
+        /** Messages held back since the last one let through, resetting the count. */
+        public int takeSuppressed() {
+            return suppressed.getAndSet(0);
+        }
+    }
+
+    /** A ring slot; {@link #published} holds the sequence it was last filled for. */
+    private static final class Event {
+        volatile long published;
+        int level;
+        String thread;
+        String msg;
+        String format;
+        int argc;
+        Object arg0;
+        Object arg1;
+        Object[] args;
+        MessageSupplier supplier;
+        Throwable throwable;
+        int suppressed;
+
+        Event(long published) {
+            this.published = published;
+        }
+
+        String render() {
+            if (supplier != null) return supplier.get();
+            if (format == null) return msg;
+            switch (argc) {
+                case 1:
+                    return String.format(format, arg0);
+                case 2:
+                    return String.format(format, arg0, arg1);
+                default:
+                    return String.format(format, args);
+            }
+        }
+
+        void clear() {
+            thread = null;
+            msg = null;
+            format = null;
+            arg0 = null;
+            arg1 = null;
+            args = null;
+            supplier = null;
+            throwable = null;
+        }
     }
 }
@@ -22,17 +22,13 @@ public class MainActivity extends Activity {
 
     private static final String TAG_VCAM = "VCAM";
     private static final String DIR_CAMERA1 = "DCIM/Camera1";
-    private static final String FILE_DISABLE = "disable.jpg";
-    private static final String FILE_FORCE_SHOW = "force_show.jpg";
-    private static final String FILE_NO_SILENT = "no-silent.jpg";
-    private static final String FILE_PRIVATE_DIR = "private_dir.jpg";
-    private static final String FILE_NO_TOAST = "no_toast.jpg";
 
     private Switch forceShowSwitch;
     private Switch disableSwitch;
     private Switch playSoundSwitch;
     private Switch forcePrivateDirSwitch;
     private Switch disableToastSwitch;
+    private VcamConfig config;
 
     private static File getCamera1Dir() {
         return new File(Environment.getExternalStorageDirectory().getAbsolutePath(), DIR_CAMERA1);
@@ -77,11 +73,11 @@ public class MainActivity extends Activity {
         findViewById(R.id.button).setOnClickListener(v -> openUrl("https://github.com/w2016561536/android_virtual_cam"));
         findViewById(R.id.button2).setOnClickListener(v -> openUrl("https://gitee.com/w2016561536/android_virtual_cam"));
 
-        disableSwitch.setOnCheckedChangeListener((v, checked) -> onSwitchChanged(v, checked, FILE_DISABLE));
-        forceShowSwitch.setOnCheckedChangeListener((v, checked) -> onSwitchChanged(v, checked, FILE_FORCE_SHOW));
-        playSoundSwitch.setOnCheckedChangeListener((v, checked) -> onSwitchChanged(v, checked, FILE_NO_SILENT));
-        forcePrivateDirSwitch.setOnCheckedChangeListener((v, checked) -> onSwitchChanged(v, checked, FILE_PRIVATE_DIR));
-        disableToastSwitch.setOnCheckedChangeListener((v, checked) -> onSwitchChanged(v, checked, FILE_NO_TOAST));
+        disableSwitch.setOnCheckedChangeListener((v, checked) -> onSwitchChanged(v, checked, VcamConfig.FILE_DISABLE));
+        forceShowSwitch.setOnCheckedChangeListener((v, checked) -> onSwitchChanged(v, checked, VcamConfig.FILE_FORCE_SHOW));
+        playSoundSwitch.setOnCheckedChangeListener((v, checked) -> onSwitchChanged(v, checked, VcamConfig.FILE_NO_SILENT));
+        forcePrivateDirSwitch.setOnCheckedChangeListener((v, checked) -> onSwitchChanged(v, checked, VcamConfig.FILE_PRIVATE_DIR));
+        disableToastSwitch.setOnCheckedChangeListener((v, checked) -> onSwitchChanged(v, checked, VcamConfig.FILE_NO_TOAST));
     }
 
     private void openUrl(String url) {
@@ -143,10 +139,20 @@ public class MainActivity extends Activity {
             cameraDir.mkdir();
         }
 
-        disableSwitch.setChecked(getFlagFile(FILE_DISABLE).exists());
-        forceShowSwitch.setChecked(getFlagFile(FILE_FORCE_SHOW).exists());
-        playSoundSwitch.setChecked(getFlagFile(FILE_NO_SILENT).exists());
-        forcePrivateDirSwitch.setChecked(getFlagFile(FILE_PRIVATE_DIR).exists());
-        disableToastSwitch.setChecked(getFlagFile(FILE_NO_TOAST).exists());
+        // Publishes the marker files to the config block that hooked processes read.
+        if (config == null) {
+            config = new VcamConfig(cameraDir, HookMain.VIDEO_FILE);
+        }
+        try {
+            config.sync();
+        } catch (IOException e) {
+            Log.w(TAG_VCAM, "config block sync failed", e);
+        }
+        int flags = config.flags();
+        disableSwitch.setChecked((flags & VcamConfig.FLAG_DISABLE) != 0);
+        forceShowSwitch.setChecked((flags & VcamConfig.FLAG_FORCE_SHOW) != 0);
+        playSoundSwitch.setChecked((flags & VcamConfig.FLAG_NO_SILENT) != 0);
+        forcePrivateDirSwitch.setChecked((flags & VcamConfig.FLAG_PRIVATE_DIR) != 0);
+        disableToastSwitch.setChecked((flags & VcamConfig.FLAG_NO_TOAST) != 0);
     }
 }
@@ -0,0 +1,121 @@
+package com.android.vcam;
+
+import android.media.MediaPlayer;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.view.Surface;
+
+import java.util.ArrayDeque;
+
+/**
+ * Looping {@link MediaPlayer}s for preview surfaces and audio, kept off the app's thread.
+ * {@link #start} and {@link #stop} only post to one worker thread and return at once; the
+ * worker sets the data source, prepares asynchronously and attaches the surface only once the
+ * player is prepared. Stopped players are {@code reset()} and kept for the next start instead
+ * of being released, so a camera restart skips creating the native player.
+ *
+ * <p>Every player call happens on the worker, in the order posted, and players are created
+ * there too, so their callbacks also arrive on the worker.
+ */
+final class PlayerPool {
+
+    /** Idle players kept for reuse; one per preview target of two cameras plus audio. */
+    private static final int MAX_IDLE = 4;
+
+    private static Handler handler;
+    /** Reset players; worker thread only. */
+    private static final ArrayDeque<MediaPlayer> idle = new ArrayDeque<>();
+
+    /** One started playback; pass it to {@link #stop} when the target goes away. */
+    static final class Lease {
+        final String path;
+        /** Worker thread only. */
+        private MediaPlayer player;
+        private volatile boolean stopped;
+
+        private Lease(String path) {
+            this.path = path;
+        }
+    }
+
+    private PlayerPool() {}
+
+    /**
+     * Loops {@code path} into {@code surface}, or plays its sound only if {@code surface} is
+     * null. Sound is muted if {@code muted}. Returns before anything is prepared.
+     */
+    static Lease start(final Surface surface, String path, final boolean muted) {
+        final Lease lease = new Lease(path);
+        worker().post(() -> prepare(lease, surface, muted));
+        return lease;
+    }
+
+    /** Stops {@code lease}'s playback and recycles its player; null is ignored. */
+    static void stop(final Lease lease) {
+        if (lease == null || lease.stopped) return;
+        lease.stopped = true;
+        worker().post(() -> {
+            MediaPlayer player = lease.player;
+            lease.player = null;
+            if (player != null) recycle(player);
+        });
+    }
+
+    private static synchronized Handler worker() {
+        if (handler == null) {
+            HandlerThread thread = new HandlerThread("vcam-player");
+            thread.start();
+            handler = new Handler(thread.getLooper());
+        }
+        return handler;
+    }
+
+    private static void prepare(final Lease lease, final Surface surface, boolean muted) {
+        if (lease.stopped) return;
+        MediaPlayer player = idle.poll();
+        if (player == null) player = new MediaPlayer();
+        lease.player = player;
+        final long startNs = System.nanoTime();
+        try {
+            player.setDataSource(lease.path);
+            player.setLooping(true);
+            player.setVolume(muted ? 0 : 1, muted ? 0 : 1);
+            player.setOnPreparedListener(mp -> {
+                if (lease.stopped) return;
+                if (surface != null) {
+                    if (!surface.isValid()) {
+                        Logger.i("player: surface gone before prepared: %s", surface);
+                        return;
+                    }
+                    mp.setSurface(surface);
+                }
+                mp.start();
+                PipelineMetrics.recordSince(PipelineMetrics.Stage.PLAYER_PREPARE, startNs);
+            });
+            player.setOnErrorListener((mp, what, extra) -> {
+                Logger.i("player error: what=%s extra=%s path=%s", what, extra, lease.path);
+                return true;
+            });
+            player.prepareAsync();
+        } catch (Exception e) {
+            Logger.i("player: " + e);
+            lease.player = null;
+            recycle(player);
+        }
+    }
+
+    private static void recycle(MediaPlayer player) {
+        try {
+            player.reset();
+        } catch (Exception e) {
+            Logger.i("player reset: " + e);
+            player.release();
+            return;
+        }
+        if (idle.size() < MAX_IDLE) {
+            idle.push(player);
+        } else {
+            player.release();
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package com.android.vcam;
+
+import android.graphics.ImageFormat;
+import android.graphics.PixelFormat;
+import android.view.Surface;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Where the app's Surfaces came from, recorded as they are handed out (ImageReader.getSurface,
+ * new Surface(SurfaceTexture), SurfaceHolder.getSurface) so addTarget can tell an ImageReader
+ * from a preview with one lookup, and knows the consumer's format and size. Surface keeps
+ * Object's equals and hashCode, so the weak map is keyed by identity and forgets a Surface once
+ * the app drops it.
+ */
+final class SurfaceRegistry {
+
+    enum Source {
+        IMAGE_READER,
+        SURFACE_TEXTURE,
+        SURFACE_HOLDER
+    }
+
+    static final class Info {
+        final Source source;
+        /** An {@link ImageFormat} constant; {@link ImageFormat#UNKNOWN} when the producer decides. */
+        final int format;
+        /** 0 when not known at the time the Surface was handed out. */
+        final int width;
+        final int height;
+
+        private Info(Source source, int format, int width, int height) {
+            this.source = source;
+            this.format = format;
+            this.width = width;
+            this.height = height;
+        }
+
+        boolean isReader() {
+            return source == Source.IMAGE_READER;
+        }
+
+        /**
+         * True for previews, SurfaceTextures and RGB readers, the only targets GL can render
+         * into; YUV readers take {@link #needsYuv()}, and anything else (JPEG, RAW, depth) is
+         * not fed at all.
+         */
+        boolean isDrawable() {
+            if (!isReader()) return true;
+            switch (format) {
+                case PixelFormat.RGBA_8888:
+                case PixelFormat.RGBX_8888:
+                case PixelFormat.RGB_565:
+                    return true;
+                default:
+                    return false;
+            }
+        }
+
+        /**
+         * True for YUV and PRIVATE readers: GL would switch their producer to RGBA, so they are
+         * fed YUV instead.
+         */
+        boolean needsYuv() {
+            if (!isReader()) return false;
+            switch (format) {
+                case ImageFormat.YUV_420_888:
+                case ImageFormat.YV12:
+                case ImageFormat.NV21:
+                case ImageFormat.PRIVATE:
+                    return true;
+                default:
+                    return false;
+            }
+        }
+
+        private boolean matches(Source source, int format, int width, int height) {
+            return this.source == source && this.format == format && this.width == width && this.height == height;
+        }
+
+        @Override
+        public String toString() {
+            return source + " format=" + format + " " + width + "x" + height;
+        }
+    }
+
+    private static final Map<Surface, Info> surfaces = Collections.synchronizedMap(new WeakHashMap<Surface, Info>());
+
+    private SurfaceRegistry() {}
+
+    /** Records that {@code surface} came from {@code source}; repeated calls only store changes. */
+    static void record(Surface surface, Source source, int format, int width, int height) {
+        if (surface == null) return;
+        Info info = surfaces.get(surface);
+        if (info != null && info.matches(source, format, width, height)) return;
+        surfaces.put(surface, new Info(source, format, width, height));
+    }
+
+    /** Where {@code surface} came from, or null if it wasn't handed out through a hooked call. */
+    static Info lookup(Surface surface) {
+        return surfaces.get(surface);
+    }
+}
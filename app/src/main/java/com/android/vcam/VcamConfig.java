@@ -0,0 +1,160 @@
+package com.android.vcam;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Module switches and video presence for one directory, served from a {@link ConfigBlock}
+ * stored there as {@value #BLOCK_FILE}. The block mirrors the legacy marker files
+ * ({@code disable.jpg} and friends), which remain the user-visible switches. At most once per
+ * {@link #REVALIDATE_NS} the markers and the video are stat'ed themselves and compared with the
+ * block, which is rewritten only if they differ; every other lookup is a seqlock read of the
+ * mapped block. The directory's mtime is no use for this: the module's own frame caches and
+ * metrics dumps live next to the markers and change it all the time.
+ *
+ * <p>Processes that can't map the block fall back to the scanned values, refreshed on the
+ * same schedule.
+ */
+public final class VcamConfig {
+
+    public static final String FILE_DISABLE = "disable.jpg";
+    public static final String FILE_FORCE_SHOW = "force_show.jpg";
+    public static final String FILE_NO_SILENT = "no-silent.jpg";
+    public static final String FILE_PRIVATE_DIR = "private_dir.jpg";
+    public static final String FILE_NO_TOAST = "no_toast.jpg";
+    /** While present, hooked processes write their pipeline metrics next to it at every loop. */
+    public static final String FILE_DUMP_METRICS = "dump_metrics.jpg";
+    static final String BLOCK_FILE = ".vcam_config";
+
+    public static final int FLAG_DISABLE = 1;
+    public static final int FLAG_FORCE_SHOW = 1 << 1;
+    public static final int FLAG_NO_SILENT = 1 << 2;
+    public static final int FLAG_PRIVATE_DIR = 1 << 3;
+    public static final int FLAG_NO_TOAST = 1 << 4;
+    public static final int FLAG_VIDEO_PRESENT = 1 << 5;
+    public static final int FLAG_DUMP_METRICS = 1 << 6;
+
+    private static final String[] MARKER_FILES = {
+            FILE_DISABLE, FILE_FORCE_SHOW, FILE_NO_SILENT, FILE_PRIVATE_DIR, FILE_NO_TOAST, FILE_DUMP_METRICS
+    };
+    private static final int[] MARKER_FLAGS = {
+            FLAG_DISABLE, FLAG_FORCE_SHOW, FLAG_NO_SILENT, FLAG_PRIVATE_DIR, FLAG_NO_TOAST, FLAG_DUMP_METRICS
+    };
+
+    /** How often the marker files and the video are compared against the block. */
+    static final long REVALIDATE_NS = 1_000_000_000L;
+
+    private final File dir;
+    private final File video;
+    private final File blockFile;
+    private ConfigBlock block;
+    private final ConfigBlock.Values values = new ConfigBlock.Values();
+    private volatile boolean blockCurrent;
+    private volatile int scannedFlags;
+    private volatile long scannedVideoMtime;
+    private volatile long nextCheckNs = System.nanoTime();
+
+    public VcamConfig(File dir, String videoName) {
+        this.dir = dir;
+        this.video = new File(dir, videoName);
+        this.blockFile = new File(dir, BLOCK_FILE);
+    }
+
+    public File directory() {
+        return dir;
+    }
+
+    public boolean isSet(int flag) {
+        return (flags() & flag) != 0;
+    }
+
+    public int flags() {
+        revalidateIfDue();
+        ConfigBlock b = block;
+        if (blockCurrent && b != null) {
+            int flags = b.flags();
+            if (flags != -1) return flags;
+        }
+        return scannedFlags;
+    }
+
+    /** Mtime of the video as last recorded, 0 if it is absent. */
+    public long videoMtime() {
+        revalidateIfDue();
+        ConfigBlock b = block;
+        if (blockCurrent && b != null) {
+            long mtime = b.videoMtime();
+            if (mtime != -1) return mtime;
+        }
+        return scannedVideoMtime;
+    }
+
+    /**
+     * Rescans the marker files now and publishes the result. Used by the module app after it
+     * changes a switch, and on its first start to migrate the legacy markers into the block.
+     */
+    public synchronized void sync() throws IOException {
+        if (block == null || !block.isWritable()) {
+            block = ConfigBlock.openWriter(blockFile);
+        }
+        scanAndPublish();
+        nextCheckNs = System.nanoTime() + REVALIDATE_NS;
+    }
+
+    private void revalidateIfDue() {
+        if (System.nanoTime() - nextCheckNs >= 0) {
+            revalidate();
+        }
+    }
+
+    private synchronized void revalidate() {
+        long now = System.nanoTime();
+        if (now - nextCheckNs < 0) return;
+        nextCheckNs = now + REVALIDATE_NS;
+        if (block == null) block = openBlock();
+        try {
+            scanAndPublish();
+        } catch (IOException e) {
+            blockCurrent = false;
+        }
+    }
+
+    /**
+     * Must hold the lock. Writes the block only when the scan differs from it; falls back to
+     * the scanned values when the block can't be written.
+     */
+    private void scanAndPublish() throws IOException {
+        int flags = 0;
+        for (int i = 0; i < MARKER_FILES.length; i++) {
+            if (new File(dir, MARKER_FILES[i]).exists()) flags |= MARKER_FLAGS[i];
+        }
+        long videoMtime = video.lastModified();
+        long videoLength = video.length();
+        if (videoMtime != 0) flags |= FLAG_VIDEO_PRESENT;
+        scannedFlags = flags;
+        scannedVideoMtime = videoMtime;
+        if (block != null && block.read(values) && values.flags == flags
+                && values.videoMtime == videoMtime && values.videoLength == videoLength) {
+            blockCurrent = true;
+            return;
+        }
+        if (block == null || !block.isWritable()) {
+            blockCurrent = false;
+            return;
+        }
+        block.write(flags, videoMtime, videoLength);
+        blockCurrent = true;
+    }
+
+    /** Maps the block read-write where allowed, read-only otherwise. */
+    private ConfigBlock openBlock() {
+        if (blockFile.exists() ? blockFile.canWrite() : dir.canWrite()) {
+            try {
+                return ConfigBlock.openWriter(blockFile);
+            } catch (IOException | RuntimeException e) {
+                // Fall through to a read-only mapping.
+            }
+        }
+        return ConfigBlock.openReader(blockFile);
+    }
+}
@@ -8,12 +8,18 @@ import android.media.MediaCodec;
 import android.media.MediaCodecInfo;
 import android.media.MediaExtractor;
 import android.media.MediaFormat;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.util.Log;
 import android.view.Surface;
 
+import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 /**
  * 视频解码为帧，供虚拟摄像头使用。
@@ -24,12 +30,13 @@ public class VideoToFrames implements Runnable {
     private static final String TAG = "VideoToFrames";
     private static final boolean VERBOSE = false;
     private static final long DEFAULT_TIMEOUT_US = 10_000L;
-    private static final int COLOR_FORMAT_I420 = 1;
-    private static final int COLOR_FORMAT_NV21 = 2;
+    /** How often a callback-mode decode thread waiting for output checks for stop. */
+    private static final long STOP_POLL_MS = 100L;
+    /** Frames at least this large (roughly 4K) are converted in parallel row stripes. */
+    private static final int PARALLEL_CONVERT_PIXELS = 3840 * 2160 / 2;
 
     private final int decodeColorFormat = MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Flexible;
 
-    private LinkedBlockingQueue<byte[]> mQueue;
     private OutputImageFormat outputImageFormat;
     private volatile boolean stopDecode;
 
@@ -40,6 +47,26 @@ public class VideoToFrames implements Runnable {
 
     private Callback callback;
 
+    private FrameExchanger frameExchanger;
+    /** Decode thread only once decoding started. */
+    private PrerollBuffer preroll;
+    private final YuvPlaneConverter.Planes imagePlanes = new YuvPlaneConverter.Planes();
+    private YuvPlaneConverter converter;
+    private FrameCache.Writer cacheWriter;
+    private PresentationClock.LatePolicy latePolicy = PresentationClock.LatePolicy.DROP_LATE;
+    private long dropThresholdNs = PresentationClock.DEFAULT_DROP_THRESHOLD_NS;
+    private volatile PresentationClock clock = new PresentationClock(latePolicy, dropThresholdNs);
+    private int cacheWidth;
+    private int cacheHeight;
+    private boolean seamlessLoop = true;
+    private boolean asyncDecoding = true;
+    private int passFrames;
+    private final PipelineMetrics.InFlight inFlight = new PipelineMetrics.InFlight();
+    private long passEndNs;
+    private volatile long loopTransitions;
+    private volatile long lastLoopTransitionNs;
+    private volatile long maxLoopTransitionNs;
+
     public interface Callback {
         void onFinishDecode();
         void onDecodeFrame(int index);
@@ -49,8 +76,18 @@ public class VideoToFrames implements Runnable {
         this.callback = callback;
     }
 
-    public void setEnqueue(LinkedBlockingQueue<byte[]> queue) {
-        mQueue = queue;
+    /** Decoded NV21 frames are published here when an output format is set and no surface is. */
+    public void setFrameExchanger(FrameExchanger exchanger) {
+        frameExchanger = exchanger;
+    }
+
+    /**
+     * Decodes the first frames into {@code preroll} as fast as possible (publishing them to the
+     * frame exchanger as well), then holds until its consumer releases it; pacing starts from
+     * the frame after. Set before {@link #decode}.
+     */
+    public void setPreroll(PrerollBuffer preroll) {
+        this.preroll = preroll;
     }
 
     /** 设置输出格式（JPEG/NV21等），dir 参数保留兼容未使用 */
@@ -58,6 +95,34 @@ public class VideoToFrames implements Runnable {
         outputImageFormat = imageFormat;
     }
 
+    /** How frames that decode too late are handled; takes effect on the next {@link #decode}. */
+    public void setLatePolicy(PresentationClock.LatePolicy policy, long dropThresholdNs) {
+        this.latePolicy = policy;
+        this.dropThresholdNs = dropThresholdNs;
+    }
+
+    /**
+     * Loops by seeking and flushing the running codec (the default) rather than stopping and
+     * reconfiguring it at every pass; takes effect on the next {@link #decode}.
+     */
+    public void setSeamlessLoop(boolean seamless) {
+        seamlessLoop = seamless;
+    }
+
+    /**
+     * Drives the codec through {@link MediaCodec#setCallback} (the default) instead of polling
+     * it with timeouts; falls back to polling below API 23. Takes effect on the next
+     * {@link #decode}.
+     */
+    public void setAsyncDecoding(boolean async) {
+        asyncDecoding = async;
+    }
+
+    /** Pacing counters of the current (or last) decode. */
+    public PresentationClock clock() {
+        return clock;
+    }
+
     public void setSurface(Surface surface) {
         if (surface != null) {
             playSurface = surface;
@@ -73,6 +138,17 @@ public class VideoToFrames implements Runnable {
         stopDecode = true;
     }
 
+    /**
+     * Waits up to {@code timeoutMs} for the decode thread to exit after {@link #stopDecode}, so
+     * the codec has released the output surface. Returns false if it is still running.
+     */
+    public boolean awaitStop(long timeoutMs) throws InterruptedException {
+        Thread t = childThread;
+        if (t == null) return true;
+        t.join(timeoutMs);
+        return !t.isAlive();
+    }
+
     public void decode(String videoFilePath) throws Throwable {
         this.videoFilePath = videoFilePath;
         if (childThread == null) {
@@ -96,8 +172,11 @@ public class VideoToFrames implements Runnable {
     @SuppressLint("WrongConstant")
     public void videoDecode(String path) throws IOException {
         Logger.i("decoder: start decoding");
+        clock = new PresentationClock(latePolicy, dropThresholdNs);
+        passEndNs = 0;
         MediaExtractor extractor = null;
         MediaCodec decoder = null;
+        AsyncDecoding async = null;
         try {
             extractor = new MediaExtractor();
             extractor.setDataSource(path);
@@ -108,6 +187,17 @@ public class VideoToFrames implements Runnable {
             }
             extractor.selectTrack(trackIndex);
             MediaFormat mediaFormat = extractor.getTrackFormat(trackIndex);
+            if (playSurface == null && frameExchanger != null && outputImageFormat != null) {
+                File video = new File(path);
+                cacheWidth = mediaFormat.getInteger(MediaFormat.KEY_WIDTH);
+                cacheHeight = mediaFormat.getInteger(MediaFormat.KEY_HEIGHT);
+                FrameCache cache = openFrameCache(video, cacheWidth, cacheHeight);
+                if (cache != null) {
+                    playFromCache(cache);
+                    return;
+                }
+                cacheWriter = newFrameCacheWriter(video, cacheWidth, cacheHeight);
+            }
             String mime = mediaFormat.getString(MediaFormat.KEY_MIME);
             decoder = MediaCodec.createDecoderByType(mime);
             MediaCodecInfo.CodecCapabilities caps = decoder.getCodecInfo().getCapabilitiesForType(mime);
@@ -121,16 +211,32 @@ public class VideoToFrames implements Runnable {
                 Log.i(TAG, "unable to set decode color format, type " + decodeColorFormat + " not supported");
                 Logger.i("decoder: unable to set decode color format, type " + decodeColorFormat + " not supported");
             }
-            decodeFramesToImage(decoder, extractor, mediaFormat);
-            decoder.stop();
+            async = startAsyncDecoding(decoder, extractor);
+            decoder.configure(mediaFormat, playSurface, null, 0);
+            decoder.start();
+            Logger.i("decoder: " + (async != null ? "callback" : "polling") + " mode");
+            if (async != null) async.decodePass(decoder);
+            else decodeFramesToImage(decoder, extractor);
+            finishFrameCache();
+            endOfPass();
             while (!stopDecode) {
-                extractor.seekTo(0, 0);
-                decodeFramesToImage(decoder, extractor, mediaFormat);
-                decoder.stop();
+                if (async != null) {
+                    async.rewind(decoder, mediaFormat);
+                    async.decodePass(decoder);
+                } else {
+                    extractor.seekTo(0, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+                    rewindDecoder(decoder, mediaFormat);
+                    decodeFramesToImage(decoder, extractor);
+                }
+                endOfPass();
             }
         } catch (Exception e) {
             Logger.i("videofile error: " + e);
         } finally {
+            if (cacheWriter != null) {
+                cacheWriter.abort();
+                cacheWriter = null;
+            }
             if (decoder != null) {
                 try {
                     decoder.stop();
@@ -140,6 +246,9 @@ public class VideoToFrames implements Runnable {
                 }
                 decoder = null;
             }
+            if (async != null) {
+                async.quit();
+            }
             if (extractor != null) {
                 extractor.release();
                 extractor = null;
@@ -147,6 +256,23 @@ public class VideoToFrames implements Runnable {
         }
     }
 
+    /**
+     * Switches the codec to callback mode when enabled and available (API 23, for the
+     * handler); returns null to keep the polling loop.
+     */
+    private AsyncDecoding startAsyncDecoding(MediaCodec decoder, MediaExtractor extractor) {
+        if (!asyncDecoding || Build.VERSION.SDK_INT < Build.VERSION_CODES.M) return null;
+        AsyncDecoding async = new AsyncDecoding(extractor);
+        try {
+            decoder.setCallback(async, async.handler);
+            return async;
+        } catch (RuntimeException e) {
+            Logger.i("decoder: callback mode unavailable, polling instead: " + e);
+            async.quit();
+            return null;
+        }
+    }
+
     private void logSupportedColorFormats(MediaCodecInfo.CodecCapabilities caps) {
         StringBuilder sb = new StringBuilder("supported color format: ");
         for (int c : caps.colorFormats) {
@@ -162,87 +288,457 @@ public class VideoToFrames implements Runnable {
         return false;
     }
 
-    private void decodeFramesToImage(MediaCodec decoder, MediaExtractor extractor, MediaFormat mediaFormat) {
-        long startWhen = 0;
-        boolean isFirstFrame = true;
-        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+    /**
+     * Makes a started decoder ready for another pass from the beginning of the clip. A flush
+     * keeps the codec's buffers and configuration; codecs that reject it are torn down and
+     * reconfigured instead, as every pass used to be.
+     */
+    private void rewindDecoder(MediaCodec decoder, MediaFormat mediaFormat) {
+        if (flushForLoop(decoder)) return;
+        decoder.stop();
         decoder.configure(mediaFormat, playSurface, null, 0);
+        decoder.start();
+    }
+
+    /** Flushes for the next pass if seamless looping is on and the codec allows it. */
+    private boolean flushForLoop(MediaCodec decoder) {
+        if (!seamlessLoop) return false;
+        try {
+            decoder.flush();
+            return true;
+        } catch (IllegalStateException e) {
+            seamlessLoop = false;
+            Logger.i("decoder: flush not supported, reconfiguring at each loop: " + e);
+            return false;
+        }
+    }
+
+    /** Decodes one pass of the clip on a started decoder, until end of stream or stop. */
+    private void decodeFramesToImage(MediaCodec decoder, MediaExtractor extractor) {
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
         boolean sawInputEOS = false;
         boolean sawOutputEOS = false;
-        decoder.start();
-        int outputFrameCount = 0;
+        startPass();
 
         while (!sawOutputEOS && !stopDecode) {
             if (!sawInputEOS) {
                 int inputBufferId = decoder.dequeueInputBuffer(DEFAULT_TIMEOUT_US);
                 if (inputBufferId >= 0) {
-                    ByteBuffer inputBuffer = decoder.getInputBuffer(inputBufferId);
-                    int sampleSize = extractor.readSampleData(inputBuffer, 0);
-                    if (sampleSize < 0) {
-                        decoder.queueInputBuffer(inputBufferId, 0, 0, 0L, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
-                        sawInputEOS = true;
-                    } else {
-                        decoder.queueInputBuffer(inputBufferId, 0, sampleSize, extractor.getSampleTime(), 0);
-                        extractor.advance();
-                    }
+                    sawInputEOS = queueInput(decoder, extractor, inputBufferId);
                 }
             }
             int outputBufferId = decoder.dequeueOutputBuffer(info, DEFAULT_TIMEOUT_US);
             if (outputBufferId >= 0) {
-                if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
-                    sawOutputEOS = true;
-                }
-                if (info.size != 0) {
-                    outputFrameCount++;
-                    if (callback != null) {
-                        callback.onDecodeFrame(outputFrameCount);
-                    }
-                    if (isFirstFrame) {
-                        startWhen = System.currentTimeMillis();
-                        isFirstFrame = false;
-                    }
-                    if (playSurface == null) {
-                        Image image = decoder.getOutputImage(outputBufferId);
-                        if (image != null) {
-                            try {
-                                ByteBuffer buffer = image.getPlanes()[0].getBuffer();
-                                byte[] arr = new byte[buffer.remaining()];
-                                buffer.get(arr);
-                                if (mQueue != null) {
-                                    try {
-                                        mQueue.put(arr);
-                                    } catch (InterruptedException e) {
-                                        Thread.currentThread().interrupt();
-                                        Logger.i(String.valueOf(e));
-                                    }
-                                }
-                                if (outputImageFormat != null) {
-                                    HookMain.data_buffer = getDataFromImage(image, COLOR_FORMAT_NV21);
-                                }
-                            } finally {
-                                image.close();
-                            }
-                        }
-                    }
-                    long sleepTime = info.presentationTimeUs / 1000 - (System.currentTimeMillis() - startWhen);
-                    if (sleepTime > 0) {
-                        try {
-                            Thread.sleep(sleepTime);
-                        } catch (InterruptedException e) {
-                            Thread.currentThread().interrupt();
-                            Logger.i("decode thread sleep interrupted");
+                sawOutputEOS = (info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
+                renderOutput(decoder, outputBufferId, info);
+            }
+        }
+        finishPass();
+    }
+
+    /** Fills an input buffer with the next sample; returns true once end of stream is queued. */
+    private boolean queueInput(MediaCodec decoder, MediaExtractor extractor, int inputBufferId) {
+        ByteBuffer inputBuffer = decoder.getInputBuffer(inputBufferId);
+        int sampleSize = extractor.readSampleData(inputBuffer, 0);
+        if (sampleSize < 0) {
+            decoder.queueInputBuffer(inputBufferId, 0, 0, 0L, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+            return true;
+        }
+        long sampleTimeUs = extractor.getSampleTime();
+        inFlight.queued(sampleTimeUs, System.nanoTime());
+        decoder.queueInputBuffer(inputBufferId, 0, sampleSize, sampleTimeUs, 0);
+        extractor.advance();
+        return false;
+    }
+
+    /**
+     * The output stage shared by both decoding modes: drops late frames, converts and publishes
+     * the rest at their due time, and hands the buffer back to the codec.
+     */
+    private void renderOutput(MediaCodec decoder, int outputBufferId, MediaCodec.BufferInfo info) {
+        if (info.size == 0) {
+            decoder.releaseOutputBuffer(outputBufferId, false);
+            return;
+        }
+        long decodedNs = System.nanoTime();
+        inFlight.decoded(info.presentationTimeUs, decodedNs);
+        PipelineMetrics.increment(PipelineMetrics.Counter.FRAMES_DECODED);
+        if (passFrames == 0 && passEndNs != 0) {
+            recordLoopTransition(decodedNs - passEndNs);
+        }
+        passFrames++;
+        if (callback != null) {
+            callback.onDecodeFrame(passFrames);
+        }
+        boolean prerolling = prerolling();
+        // The caching pass must keep every frame; later passes may drop.
+        if (!prerolling && cacheWriter == null && clock.shouldDrop(info.presentationTimeUs)) {
+            PipelineMetrics.increment(PipelineMetrics.Counter.FRAMES_DROPPED);
+            decoder.releaseOutputBuffer(outputBufferId, false);
+            return;
+        }
+        boolean paced = false;
+        if (playSurface == null) {
+            Image image = decoder.getOutputImage(outputBufferId);
+            if (image != null) {
+                try {
+                    if (outputImageFormat != null && frameExchanger != null) {
+                        Rect crop = image.getCropRect();
+                        ByteBuffer frame = frameExchanger.beginWrite(
+                                YuvPlaneConverter.frameSize(crop.width(), crop.height()));
+                        long convertStartNs = System.nanoTime();
+                        copyImageToFrame(image, frame);
+                        PipelineMetrics.recordSince(PipelineMetrics.Stage.CONVERT, convertStartNs);
+                        appendToFrameCache(frame, crop.width(), crop.height(), info.presentationTimeUs);
+                        paced = true;
+                        if (!prerolling || !prerollFrame(frame, crop.width(), crop.height())) {
+                            // Publish at the due time, not as soon as the frame is converted.
+                            awaitPresentation(info.presentationTimeUs);
+                            frameExchanger.publish(frame, crop.width(), crop.height(), System.nanoTime());
                         }
                     }
-                    decoder.releaseOutputBuffer(outputBufferId, true);
+                } finally {
+                    image.close();
                 }
             }
         }
+        if (!paced) awaitPresentation(info.presentationTimeUs);
+        // Codec timestamps restart every pass; the clock's keep increasing.
+        decoder.releaseOutputBuffer(outputBufferId, clock.lastDueNs());
+        PipelineMetrics.increment(PipelineMetrics.Counter.FRAMES_DELIVERED);
+    }
+
+    /** Whether frames still go to the preroll; ends it once its consumer released it. */
+    private boolean prerolling() {
+        PrerollBuffer p = preroll;
+        if (p == null) return false;
+        if (!p.isReleased()) return true;
+        endPreroll();
+        return false;
+    }
+
+    /**
+     * Keeps {@code frame} in the preroll and publishes it at once; holds here when that filled
+     * the preroll. Returns false if the preroll was released meanwhile, leaving the frame to be
+     * paced as usual.
+     */
+    private boolean prerollFrame(ByteBuffer frame, int width, int height) {
+        PrerollBuffer p = preroll;
+        if (!p.offer(frame, width, height)) {
+            endPreroll();
+            return false;
+        }
+        frameExchanger.publish(frame, width, height, System.nanoTime());
+        if (p.isFull()) {
+            Logger.i("decoder: %s preroll frames ready, holding", p.size());
+            try {
+                while (!stopDecode && !p.awaitRelease(STOP_POLL_MS)) { }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            endPreroll();
+        }
+        return true;
+    }
+
+    private void endPreroll() {
+        preroll = null;
+        // The next frame is due at once and anchors the timeline from there.
+        clock.reset();
+    }
+
+    private void awaitPresentation(long ptsUs) {
+        long startNs = System.nanoTime();
+        clock.awaitPresentation(ptsUs);
+        PipelineMetrics.recordSince(PipelineMetrics.Stage.PACE_WAIT, startNs);
+    }
+
+    /** Per-pass bookkeeping; codec timestamps start over with every pass. */
+    private void startPass() {
+        passFrames = 0;
+        inFlight.clear();
+    }
+
+    private void finishPass() {
+        passEndNs = System.nanoTime();
         if (callback != null) {
             callback.onFinishDecode();
         }
     }
 
-    private static int selectTrack(MediaExtractor extractor) {
+    /**
+     * An output buffer handed over by the codec callback, waiting for the output stage. Records
+     * are recycled once rendered, so steady decoding allocates none.
+     */
+    private static final class PendingOutput {
+        int index;
+        final MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+
+        void set(int index, MediaCodec.BufferInfo source) {
+            this.index = index;
+            info.set(source.offset, source.size, source.presentationTimeUs, source.flags);
+        }
+    }
+
+    /**
+     * Callback mode. Input buffers are filled on the codec's handler thread the moment they
+     * free up; output buffers are queued for the decode thread, which runs the same pacing and
+     * output stage as the polling loop, so pacing never holds up input.
+     */
+    private final class AsyncDecoding extends MediaCodec.Callback {
+        /**
+         * Bound on queued outputs; each holds one of the codec's output buffers, and codecs
+         * have far fewer than this.
+         */
+        private static final int MAX_PENDING_OUTPUTS = 64;
+
+        private final MediaExtractor extractor;
+        private final HandlerThread thread = new HandlerThread("VideoToFrames-codec");
+        private final Handler handler;
+        private final ArrayBlockingQueue<PendingOutput> outputs = new ArrayBlockingQueue<>(MAX_PENDING_OUTPUTS);
+        /**
+         * Rendered records waiting for the next output; new ones are only made while the
+         * codec has more buffers out than ever before, so this settles at its buffer count.
+         */
+        private final ArrayBlockingQueue<PendingOutput> freeOutputs = new ArrayBlockingQueue<>(MAX_PENDING_OUTPUTS);
+        /** Queued by onError to wake the decode thread; never recycled. */
+        private final PendingOutput errorMark = new PendingOutput();
+        // Handler thread only.
+        private boolean inputDone;
+        private boolean rewinding;
+        private volatile MediaCodec.CodecException error;
+
+        AsyncDecoding(MediaExtractor extractor) {
+            this.extractor = extractor;
+            thread.start();
+            handler = new Handler(thread.getLooper());
+        }
+
+        @Override
+        public void onInputBufferAvailable(MediaCodec codec, int index) {
+            if (inputDone || rewinding || stopDecode) return;
+            try {
+                inputDone = queueInput(codec, extractor, index);
+            } catch (IllegalStateException e) {
+                // The codec is stopping.
+            }
+        }
+
+        @Override
+        public void onOutputBufferAvailable(MediaCodec codec, int index, MediaCodec.BufferInfo info) {
+            if (rewinding) return;
+            PendingOutput out = freeOutputs.poll();
+            if (out == null) out = new PendingOutput();
+            out.set(index, info);
+            if (!outputs.offer(out)) {
+                Log.w(TAG, "output queue full, dropping buffer " + index);
+                codec.releaseOutputBuffer(index, false);
+            }
+        }
+
+        @Override
+        public void onError(MediaCodec codec, MediaCodec.CodecException e) {
+            error = e;
+            outputs.offer(errorMark);
+        }
+
+        @Override
+        public void onOutputFormatChanged(MediaCodec codec, MediaFormat format) {
+            if (VERBOSE) Log.d(TAG, "output format changed: " + format);
+        }
+
+        /** Runs one pass on the decode thread, taking output buffers as the codec hands them over. */
+        void decodePass(MediaCodec decoder) throws InterruptedException {
+            startPass();
+            while (!stopDecode) {
+                PendingOutput out = outputs.poll(STOP_POLL_MS, TimeUnit.MILLISECONDS);
+                if (out == null) continue;
+                PipelineMetrics.queueDepth(PipelineMetrics.Queue.CODEC_OUTPUT, outputs.size());
+                if (error != null) throw error;
+                renderOutput(decoder, out.index, out.info);
+                boolean end = (out.info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
+                freeOutputs.offer(out);
+                if (end) break;
+            }
+            finishPass();
+        }
+
+        /**
+         * Seeks back to the start and flushes (or reconfigures) on the handler thread, so no
+         * input callback runs in between. Callbacks the codec queued before the flush are
+         * delivered after it and ignored; the codec is started again once they are through.
+         * Returns early if the decode is stopped meanwhile.
+         */
+        void rewind(MediaCodec decoder, MediaFormat mediaFormat) throws InterruptedException {
+            CountDownLatch done = new CountDownLatch(1);
+            RuntimeException[] failure = new RuntimeException[1];
+            boolean posted = handler.post(() -> {
+                try {
+                    rewinding = true;
+                    extractor.seekTo(0, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+                    if (!flushForLoop(decoder)) {
+                        decoder.stop();
+                        decoder.setCallback(this, handler);
+                        decoder.configure(mediaFormat, playSurface, null, 0);
+                    }
+                } catch (RuntimeException e) {
+                    failure[0] = e;
+                    done.countDown();
+                    return;
+                }
+                boolean restartPosted = handler.post(() -> {
+                    try {
+                        outputs.drainTo(freeOutputs);
+                        freeOutputs.remove(errorMark);
+                        inputDone = false;
+                        rewinding = false;
+                        decoder.start();
+                    } catch (RuntimeException e) {
+                        failure[0] = e;
+                    } finally {
+                        done.countDown();
+                    }
+                });
+                if (!restartPosted) {
+                    failure[0] = new IllegalStateException("codec thread quit during rewind");
+                    done.countDown();
+                }
+            });
+            if (!posted) throw new IllegalStateException("codec thread quit before rewind");
+            // A stop while the codec thread is stuck in flush or start must not hang this thread.
+            while (!done.await(STOP_POLL_MS, TimeUnit.MILLISECONDS)) {
+                if (stopDecode) return;
+            }
+            if (failure[0] != null) throw failure[0];
+        }
+
+        /** Stops the handler thread once the codec is released, before the extractor goes. */
+        void quit() {
+            thread.quitSafely();
+            try {
+                thread.join(STOP_POLL_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Continues the presentation timeline into the next pass, logs the pacing counters and
+     * dumps the pipeline metrics if asked to.
+     */
+    private void endOfPass() {
+        clock.startNextLoop();
+        Logger.i(() -> "decoder pacing: " + clock + " loopTransitions=" + loopTransitions
+                + " lastLoopMs=" + lastLoopTransitionNs / 1_000_000 + " maxLoopMs=" + maxLoopTransitionNs / 1_000_000);
+        HookMain.dumpMetricsIfRequested();
+    }
+
+    private void recordLoopTransition(long ns) {
+        loopTransitions++;
+        lastLoopTransitionNs = ns;
+        if (ns > maxLoopTransitionNs) maxLoopTransitionNs = ns;
+    }
+
+    /** Passes that followed an earlier one (loop boundaries crossed) in this decode. */
+    public long loopTransitions() {
+        return loopTransitions;
+    }
+
+    /**
+     * Time from the end of one pass to the first decoded frame of the next, for the latest
+     * loop boundary.
+     */
+    public long lastLoopTransitionNs() {
+        return lastLoopTransitionNs;
+    }
+
+    public long maxLoopTransitionNs() {
+        return maxLoopTransitionNs;
+    }
+
+    private static FrameCache openFrameCache(File video, int width, int height) {
+        try {
+            return FrameCache.open(video, width, height);
+        } catch (IOException e) {
+            Logger.i("frame cache: cannot open for " + video + ": " + e);
+            return null;
+        }
+    }
+
+    private static FrameCache.Writer newFrameCacheWriter(File video, int width, int height) {
+        try {
+            return FrameCache.newWriter(video, width, height, FrameCache.DEFAULT_MAX_BYTES);
+        } catch (IOException e) {
+            // Usually a read-only video directory; decoding works the same without a cache.
+            Logger.i("frame cache: not writable next to " + video + ": " + e);
+            return null;
+        }
+    }
+
+    private void appendToFrameCache(ByteBuffer frame, int width, int height, long presentationTimeUs) {
+        if (cacheWriter == null) return;
+        try {
+            if (width != cacheWidth || height != cacheHeight
+                    || !cacheWriter.append(frame, presentationTimeUs)) {
+                cacheWriter.abort();
+                cacheWriter = null;
+            }
+        } catch (IOException e) {
+            Logger.i("frame cache: write failed: " + e);
+            cacheWriter.abort();
+            cacheWriter = null;
+        }
+    }
+
+    /** Commits the cache after a complete first pass; a pass cut short by stopDecode is discarded. */
+    private void finishFrameCache() {
+        if (cacheWriter == null) return;
+        try {
+            if (stopDecode) {
+                cacheWriter.abort();
+            } else {
+                cacheWriter.commit();
+                Logger.i("frame cache: saved " + FrameCache.cacheFile(new File(videoFilePath), cacheWidth, cacheHeight));
+            }
+        } catch (IOException e) {
+            Logger.i("frame cache: commit failed: " + e);
+        } finally {
+            cacheWriter = null;
+        }
+    }
+
+    /** Serves frames straight from a mapped cache, looping until stopped; no codec is created. */
+    private void playFromCache(FrameCache cache) {
+        Logger.i("decoder: serving " + cache.frameCount() + " cached frames");
+        while (!stopDecode) {
+            for (int i = 0; i < cache.frameCount() && !stopDecode; i++) {
+                long pts = cache.presentationTimeUs(i);
+                boolean prerolling = prerolling();
+                if (!prerolling && clock.shouldDrop(pts)) {
+                    PipelineMetrics.increment(PipelineMetrics.Counter.FRAMES_DROPPED);
+                    continue;
+                }
+                if (callback != null) {
+                    callback.onDecodeFrame(i + 1);
+                }
+                ByteBuffer frame = frameExchanger.beginWrite(cache.frameSize());
+                cache.copyFrame(i, frame);
+                frame.clear();
+                if (!prerolling || !prerollFrame(frame, cache.width(), cache.height())) {
+                    awaitPresentation(pts);
+                    frameExchanger.publish(frame, cache.width(), cache.height(), System.nanoTime());
+                }
+                PipelineMetrics.increment(PipelineMetrics.Counter.FRAMES_DELIVERED);
+            }
+            if (callback != null) {
+                callback.onFinishDecode();
+            }
+            endOfPass();
+        }
+    }
+
+    static int selectTrack(MediaExtractor extractor) {
         for (int i = 0; i < extractor.getTrackCount(); i++) {
             MediaFormat format = extractor.getTrackFormat(i);
             if (format.getString(MediaFormat.KEY_MIME).startsWith("video/")) {
@@ -262,69 +758,37 @@ public class VideoToFrames implements Runnable {
                 || format == ImageFormat.YV12;
     }
 
-    private static byte[] getDataFromImage(Image image, int colorFormat) {
-        if (colorFormat != COLOR_FORMAT_I420 && colorFormat != COLOR_FORMAT_NV21) {
-            throw new IllegalArgumentException("only support COLOR_FormatI420 and COLOR_FormatNV21");
-        }
+    /** Converts the image's planes into {@code out} in the session's output layout. */
+    private void copyImageToFrame(Image image, ByteBuffer out) {
         if (!isImageFormatSupported(image)) {
             throw new RuntimeException("can't convert Image to byte array, format " + image.getFormat());
         }
         Rect crop = image.getCropRect();
-        int format = image.getFormat();
-        int width = crop.width();
-        int height = crop.height();
         Image.Plane[] planes = image.getPlanes();
-        byte[] data = new byte[width * height * ImageFormat.getBitsPerPixel(format) / 8];
-        byte[] rowData = new byte[planes[0].getRowStride()];
-        if (VERBOSE) Log.v(TAG, "get data from " + planes.length + " planes");
-
-        int channelOffset = 0;
-        int outputStride = 1;
-        for (int i = 0; i < planes.length; i++) {
-            switch (i) {
-                case 0:
-                    channelOffset = 0;
-                    outputStride = 1;
-                    break;
-                case 1:
-                    channelOffset = colorFormat == COLOR_FORMAT_I420 ? width * height : width * height + 1;
-                    outputStride = colorFormat == COLOR_FORMAT_NV21 ? 2 : 1;
-                    break;
-                case 2:
-                    channelOffset = colorFormat == COLOR_FORMAT_I420 ? (int) (width * height * 1.25) : width * height;
-                    outputStride = colorFormat == COLOR_FORMAT_NV21 ? 2 : 1;
-                    break;
-            }
-            ByteBuffer buffer = planes[i].getBuffer();
-            int rowStride = planes[i].getRowStride();
-            int pixelStride = planes[i].getPixelStride();
-            if (VERBOSE) {
-                Log.v(TAG, "plane " + i + " pixelStride=" + pixelStride + " rowStride=" + rowStride);
-            }
-            int shift = (i == 0) ? 0 : 1;
-            int w = width >> shift;
-            int h = height >> shift;
-            buffer.position(rowStride * (crop.top >> shift) + pixelStride * (crop.left >> shift));
-            for (int row = 0; row < h; row++) {
-                int length;
-                if (pixelStride == 1 && outputStride == 1) {
-                    length = w;
-                    buffer.get(data, channelOffset, length);
-                    channelOffset += length;
-                } else {
-                    length = (w - 1) * pixelStride + 1;
-                    buffer.get(rowData, 0, length);
-                    for (int col = 0; col < w; col++) {
-                        data[channelOffset] = rowData[col * pixelStride];
-                        channelOffset += outputStride;
-                    }
-                }
-                if (row < h - 1) {
-                    buffer.position(buffer.position() + rowStride - length);
-                }
-            }
+        YuvPlaneConverter.Planes p = imagePlanes;
+        p.y = planes[0].getBuffer();
+        p.yRowStride = planes[0].getRowStride();
+        p.u = planes[1].getBuffer();
+        p.uRowStride = planes[1].getRowStride();
+        p.uPixelStride = planes[1].getPixelStride();
+        p.v = planes[2].getBuffer();
+        p.vRowStride = planes[2].getRowStride();
+        p.vPixelStride = planes[2].getPixelStride();
+        p.cropLeft = crop.left;
+        p.cropTop = crop.top;
+        p.width = crop.width();
+        p.height = crop.height();
+        if (converter == null || converter.format() != converterFormat()) {
+            converter = new YuvPlaneConverter(converterFormat());
         }
-        return data;
+        converter.setStripes(p.width * p.height >= PARALLEL_CONVERT_PIXELS ? FrameWorkers.parallelism() : 1);
+        converter.convert(p, out);
+        if (VERBOSE) Log.v(TAG, "converted frame with " + converter.kernel() + " chroma kernel");
+    }
+
+    private YuvPlaneConverter.OutputFormat converterFormat() {
+        return outputImageFormat == OutputImageFormat.I420
+                ? YuvPlaneConverter.OutputFormat.I420 : YuvPlaneConverter.OutputFormat.NV21;
     }
 }
 
@@ -0,0 +1,33 @@
+package com.android.vcam.bench;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/** Test frames shared by the benchmarks; contents are random so no kernel can skip work. */
+final class BenchFrames {
+
+    private BenchFrames() {}
+
+    /** Parses a {@code "WIDTHxHEIGHT"} benchmark parameter. */
+    static int[] size(String param) {
+        int x = param.indexOf('x');
+        return new int[]{Integer.parseInt(param.substring(0, x)), Integer.parseInt(param.substring(x + 1))};
+    }
+
+    static ByteBuffer randomDirect(int size, long seed) {
+        byte[] bytes = new byte[size];
+        new Random(seed).nextBytes(bytes);
+        ByteBuffer buf = ByteBuffer.allocateDirect(size);
+        buf.put(bytes).flip();
+        return buf;
+    }
+
+    static int[] randomArgb(int pixels, long seed) {
+        Random random = new Random(seed);
+        int[] argb = new int[pixels];
+        for (int i = 0; i < pixels; i++) {
+            argb[i] = 0xff000000 | random.nextInt(0x1000000);
+        }
+        return argb;
+    }
+}
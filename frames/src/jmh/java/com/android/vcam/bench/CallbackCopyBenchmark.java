@@ -0,0 +1,58 @@
+package com.android.vcam.bench;
+
+import com.android.vcam.FrameBufferPool;
+import com.android.vcam.FrameExchanger;
+import com.android.vcam.Nv21Scaler;
+import com.android.vcam.YuvPlaneConverter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Copying the latest decoded frame into an app's preview callback array, as
+ * PreviewFrameDelivery does for Camera1Hook. A 1080p frame is published once; each call reads
+ * it again, so only the copy (or scale) into the callback buffer is measured.
+ */
+@State(Scope.Thread)
+public class CallbackCopyBenchmark {
+
+    private static final int SRC_WIDTH = 1920;
+    private static final int SRC_HEIGHT = 1080;
+
+    /** Preview size the app asked for; the source size means a plain copy. */
+    @Param({"1920x1080", "1280x720", "640x480"})
+    public String target;
+
+    @Param({"NEAREST", "BILINEAR"})
+    public Nv21Scaler.Filter filter;
+
+    private FrameExchanger.Reader reader;
+    private FrameExchanger.FrameCopier copier;
+    private byte[] callbackBuffer;
+
+    @Setup
+    public void setUp() {
+        int[] wh = BenchFrames.size(target);
+        FrameExchanger exchanger = new FrameExchanger(new FrameBufferPool(2), true);
+        int frameSize = YuvPlaneConverter.frameSize(SRC_WIDTH, SRC_HEIGHT);
+        ByteBuffer frame = exchanger.beginWrite(frameSize);
+        frame.put(BenchFrames.randomDirect(frameSize, 5));
+        exchanger.publish(frame, SRC_WIDTH, SRC_HEIGHT, 0);
+
+        reader = exchanger.newReader();
+        boolean sameSize = wh[0] == SRC_WIDTH && wh[1] == SRC_HEIGHT;
+        copier = sameSize ? null : new Nv21Scaler(wh[0], wh[1], filter, Nv21Scaler.Fit.CENTER_CROP);
+        callbackBuffer = new byte[Nv21Scaler.frameSize(wh[0], wh[1])];
+    }
+
+    @Benchmark
+    public byte[] readIntoCallbackBuffer() {
+        reader.read(callbackBuffer, 0, copier);
+        return callbackBuffer;
+    }
+}
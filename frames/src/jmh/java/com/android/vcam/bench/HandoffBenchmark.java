@@ -0,0 +1,129 @@
+package com.android.vcam.bench;
+
+import com.android.vcam.FrameBufferPool;
+import com.android.vcam.FrameExchanger;
+import com.android.vcam.FrameRing;
+import com.android.vcam.YuvPlaneConverter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decoder thread to camera callback thread handoff, one producer and one consumer running
+ * concurrently. {@code exchanger} is the latest-frame FrameExchanger path, {@code ring} the
+ * FIFO FrameRing, and {@code queue} the pooled-array blocking queue they replaced, kept as the
+ * baseline. All producers copy a whole frame in, as the decoder does, and drop or overwrite
+ * rather than block when the consumer falls behind. The consumer's sampled time is the
+ * latency to get the next frame into its own array.
+ */
+@State(Scope.Group)
+public class HandoffBenchmark {
+
+    private static final long READ_TIMEOUT_NS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    @Param({"640x480", "1920x1080"})
+    public String size;
+
+    private int width;
+    private int height;
+    private int frameSize;
+    private ByteBuffer decoded;
+
+    private FrameExchanger exchanger;
+    private FrameExchanger.Reader reader;
+    private long timestamp;
+
+    private FrameRing ring;
+
+    private FrameBufferPool pool;
+    private ArrayBlockingQueue<byte[]> queue;
+
+    @Setup
+    public void setUp() {
+        int[] wh = BenchFrames.size(size);
+        width = wh[0];
+        height = wh[1];
+        frameSize = YuvPlaneConverter.frameSize(width, height);
+        decoded = BenchFrames.randomDirect(frameSize, 6);
+
+        exchanger = new FrameExchanger(new FrameBufferPool(4), true);
+        reader = exchanger.newReader();
+
+        ring = new FrameRing(4, FrameRing.OverflowPolicy.OVERWRITE_OLDEST, 0);
+
+        pool = new FrameBufferPool(4);
+        queue = new ArrayBlockingQueue<>(2);
+    }
+
+    /** Per-thread destination, like the app's callback buffer. */
+    @State(Scope.Thread)
+    public static class Consumer {
+        byte[] dst;
+
+        @Setup
+        public void setUp(HandoffBenchmark shared) {
+            dst = new byte[shared.frameSize];
+        }
+    }
+
+    @Benchmark
+    @Group("exchanger")
+    @GroupThreads(1)
+    public long exchangerPublish() {
+        ByteBuffer frame = exchanger.beginWrite(frameSize);
+        frame.put(decoded.duplicate());
+        return exchanger.publish(frame, width, height, ++timestamp);
+    }
+
+    @Benchmark
+    @Group("exchanger")
+    @GroupThreads(1)
+    public boolean exchangerRead(Consumer consumer) {
+        return reader.read(consumer.dst, READ_TIMEOUT_NS);
+    }
+
+    @Benchmark
+    @Group("ring")
+    @GroupThreads(1)
+    public boolean ringOffer() {
+        return ring.offer(decoded.duplicate());
+    }
+
+    @Benchmark
+    @Group("ring")
+    @GroupThreads(1)
+    public int ringTake(Consumer consumer) {
+        return ring.take(consumer.dst, READ_TIMEOUT_NS);
+    }
+
+    @Benchmark
+    @Group("queue")
+    @GroupThreads(1)
+    public boolean queueOffer() {
+        byte[] frame = pool.acquire(frameSize);
+        decoded.duplicate().get(frame);
+        if (queue.offer(frame)) return true;
+        pool.release(frame);
+        return false;
+    }
+
+    @Benchmark
+    @Group("queue")
+    @GroupThreads(1)
+    public boolean queuePoll(Consumer consumer) throws InterruptedException {
+        byte[] frame = queue.poll(READ_TIMEOUT_NS, TimeUnit.NANOSECONDS);
+        if (frame == null) return false;
+        System.arraycopy(frame, 0, consumer.dst, 0, frameSize);
+        pool.release(frame);
+        return true;
+    }
+}
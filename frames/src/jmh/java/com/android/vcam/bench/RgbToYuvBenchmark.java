@@ -0,0 +1,55 @@
+package com.android.vcam.bench;
+
+import com.android.vcam.RgbToYuvConverter;
+import com.android.vcam.YuvPlaneConverter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * ARGB to YUV, the step behind GL readback in DecodeSession and still-image capture payloads.
+ * {@code convertInto} reuses the destination like the hot paths do; {@code convertAllocating}
+ * shows what a fresh array per frame costs in the gc profiler's allocation rate.
+ */
+@State(Scope.Thread)
+public class RgbToYuvBenchmark {
+
+    @Param({"640x480", "1920x1080", "4000x3000"})
+    public String size;
+
+    @Param({"BT601", "BT709"})
+    public RgbToYuvConverter.Matrix matrix;
+
+    @Param({"NV21", "I420"})
+    public YuvPlaneConverter.OutputFormat format;
+
+    private RgbToYuvConverter converter;
+    private int width;
+    private int height;
+    private int[] argb;
+    private byte[] dst;
+
+    @Setup
+    public void setUp() {
+        int[] wh = BenchFrames.size(size);
+        width = wh[0];
+        height = wh[1];
+        argb = BenchFrames.randomArgb(width * height, 4);
+        converter = new RgbToYuvConverter(matrix, RgbToYuvConverter.Range.LIMITED, format);
+        dst = new byte[YuvPlaneConverter.frameSize(width, height)];
+    }
+
+    @Benchmark
+    public byte[] convertInto() {
+        converter.convert(argb, 0, width, width, height, dst);
+        return dst;
+    }
+
+    @Benchmark
+    public byte[] convertAllocating() {
+        return converter.convert(argb, width, height);
+    }
+}
@@ -0,0 +1,86 @@
+package com.android.vcam.bench;
+
+import com.android.vcam.YuvPlaneConverter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Decoder output planes to a packed preview frame, the per-frame conversion in VideoToFrames.
+ * Layouts mirror what MediaCodec hands out: separate planes (I420), interleaved VU planes
+ * sharing one buffer (NV21-style semi-planar), and semi-planar with rows padded to a
+ * 64-byte-aligned stride plus a crop offset, as many hardware decoders produce.
+ */
+@State(Scope.Thread)
+public class YuvPlaneConverterBenchmark {
+
+    @Param({"640x480", "1280x720", "1920x1080", "3840x2160"})
+    public String size;
+
+    @Param({"PLANAR", "SEMIPLANAR", "PADDED"})
+    public String layout;
+
+    @Param({"NV21", "I420"})
+    public YuvPlaneConverter.OutputFormat format;
+
+    @Param({"1", "4"})
+    public int stripes;
+
+    private YuvPlaneConverter converter;
+    private final YuvPlaneConverter.Planes planes = new YuvPlaneConverter.Planes();
+    private ByteBuffer dst;
+
+    @Setup
+    public void setUp() {
+        int[] wh = BenchFrames.size(size);
+        int width = wh[0];
+        int height = wh[1];
+        boolean padded = "PADDED".equals(layout);
+        int cropTop = padded ? 8 : 0;
+        int stride = padded ? (width + 16 + 63) & ~63 : width;
+        int rows = height + cropTop;
+
+        planes.width = width;
+        planes.height = height;
+        planes.cropLeft = padded ? 16 : 0;
+        planes.cropTop = cropTop;
+        planes.y = BenchFrames.randomDirect(stride * rows, 1);
+        planes.yRowStride = stride;
+        if ("PLANAR".equals(layout)) {
+            planes.u = BenchFrames.randomDirect(stride / 2 * rows / 2, 2);
+            planes.v = BenchFrames.randomDirect(stride / 2 * rows / 2, 3);
+            planes.uRowStride = planes.vRowStride = stride / 2;
+            planes.uPixelStride = planes.vPixelStride = 1;
+        } else {
+            // One VU-interleaved buffer; U is the same memory one byte in, as Image planes expose it.
+            ByteBuffer vu = BenchFrames.randomDirect(stride * rows / 2, 2);
+            ByteBuffer v = vu.duplicate();
+            v.limit(vu.limit() - 1);
+            ByteBuffer u = vu.duplicate();
+            u.position(1);
+            planes.v = v.slice();
+            planes.u = u.slice();
+            planes.uRowStride = planes.vRowStride = stride;
+            planes.uPixelStride = planes.vPixelStride = 2;
+        }
+
+        converter = new YuvPlaneConverter(format);
+        converter.setStripes(stripes);
+        dst = ByteBuffer.allocateDirect(YuvPlaneConverter.frameSize(width, height));
+        // Settle layout detection so the benchmark measures the steady-state kernel.
+        for (int i = 0; i < 40; i++) {
+            convert();
+        }
+    }
+
+    @Benchmark
+    public ByteBuffer convert() {
+        converter.convert(planes, dst);
+        return dst;
+    }
+}
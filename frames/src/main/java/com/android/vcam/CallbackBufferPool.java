@@ -0,0 +1,91 @@
+package com.android.vcam;
+
+import java.util.IdentityHashMap;
+
+/**
+ * Stand-in arrays for the preview callback buffers an app queues with addCallbackBuffer, so the
+ * camera fills an array of ours instead of the app's. Each stand-in is mapped to the app buffer
+ * it replaced; when the camera hands a stand-in back, {@link #reclaim} returns the app's own
+ * buffer and recycles the stand-in for the next addCallbackBuffer. Once every queued buffer has
+ * been round once, nothing is allocated.
+ *
+ * <p>One tracker per camera; stand-ins are pooled by size in a {@link FrameBufferPool} shared by
+ * all of them, so a camera reopened at the same preview size starts warm. Hits, misses and the
+ * bytes parked in the pool go to {@link PipelineMetrics.Pool#CALLBACK_BUFFERS}.
+ */
+public final class CallbackBufferPool {
+
+    /** Stand-ins parked per size between a frame's callback and the app queuing its buffer again. */
+    private static final int BUFFERS_PER_SIZE = 4;
+
+    private static final FrameBufferPool SHARED = new FrameBufferPool(BUFFERS_PER_SIZE);
+
+    private final FrameBufferPool pool;
+    /** Stand-in queued to the camera to the app buffer it replaced. */
+    private final IdentityHashMap<byte[], byte[]> owners = new IdentityHashMap<>();
+
+    public CallbackBufferPool() {
+        this(SHARED);
+    }
+
+    /** Uses {@code pool} for stand-ins; it should not be shared with anything but other trackers. */
+    public CallbackBufferPool(FrameBufferPool pool) {
+        this.pool = pool;
+    }
+
+    /** Returns the stand-in to queue in place of {@code appBuffer}; null stays null. */
+    public byte[] substitute(byte[] appBuffer) {
+        if (appBuffer == null) return null;
+        byte[] standIn;
+        synchronized (pool) {
+            long hits = pool.hits();
+            standIn = pool.acquire(appBuffer.length);
+            PipelineMetrics.poolAcquired(PipelineMetrics.Pool.CALLBACK_BUFFERS, pool.hits() != hits);
+            PipelineMetrics.poolRetained(PipelineMetrics.Pool.CALLBACK_BUFFERS, pool.retainedBytes());
+        }
+        int queued;
+        synchronized (this) {
+            owners.put(standIn, appBuffer);
+            queued = owners.size();
+        }
+        PipelineMetrics.queueDepth(PipelineMetrics.Queue.CALLBACK_BUFFERS, queued);
+        return standIn;
+    }
+
+    /**
+     * Returns the app buffer {@code buffer} stood in for, recycling the stand-in, or
+     * {@code buffer} itself if it isn't one of ours (the camera's own arrays in non-buffer mode,
+     * or a stand-in queued before {@link #forget}). With {@code copyFrame} the camera's frame is
+     * copied over into the app buffer first.
+     */
+    public byte[] reclaim(byte[] buffer, boolean copyFrame) {
+        if (buffer == null) return null;
+        byte[] appBuffer;
+        int queued;
+        synchronized (this) {
+            appBuffer = owners.remove(buffer);
+            queued = owners.size();
+        }
+        if (appBuffer == null) return buffer;
+        if (copyFrame) System.arraycopy(buffer, 0, appBuffer, 0, Math.min(buffer.length, appBuffer.length));
+        PipelineMetrics.queueDepth(PipelineMetrics.Queue.CALLBACK_BUFFERS, queued);
+        synchronized (pool) {
+            pool.release(buffer);
+            PipelineMetrics.poolRetained(PipelineMetrics.Pool.CALLBACK_BUFFERS, pool.retainedBytes());
+        }
+        return appBuffer;
+    }
+
+    /**
+     * Stops tracking the stand-ins queued so far, once the camera has dropped its buffer queue.
+     * They are not recycled: a callback already posted may still hand one to the app.
+     */
+    public synchronized void forget() {
+        owners.clear();
+    }
+
+    /** Stand-ins queued to the camera and not handed back yet. */
+    public synchronized int queued() {
+        return owners.size();
+    }
+}
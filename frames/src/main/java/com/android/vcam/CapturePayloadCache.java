@@ -0,0 +1,226 @@
+package com.android.vcam;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Encoded still-capture payloads (JPEG or NV21 bytes made from an image file), keyed by the
+ * file's path, mtime and length plus the target format and size. Each payload is encoded once
+ * and then served as a copy, so a burst of {@code onPictureTaken} calls costs one array copy per
+ * shot instead of a decode and an encode. Entries are evicted least-recently-used once the
+ * retained bytes pass the budget.
+ *
+ * <p>Concurrent requests for the same key share one encode, including one started by
+ * {@link #prewarm}.
+ */
+public final class CapturePayloadCache {
+
+    public enum Format {
+        JPEG,
+        NV21
+    }
+
+    /** Produces the payload for a source file, or null if the file can't be decoded. */
+    public interface Encoder {
+        byte[] encode(File source, Format format, int width, int height) throws Exception;
+    }
+
+    /** Room for a 12 MP image as both JPEG and NV21 with space to spare. */
+    public static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+
+    private final Encoder encoder;
+    private final long maxBytes;
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(8, 0.75f, true);
+    private long retainedBytes;
+    private long hits;
+    private long misses;
+    private ExecutorService warmer;
+
+    public CapturePayloadCache(Encoder encoder, long maxBytes) {
+        this.encoder = encoder;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Returns a private copy of the payload for {@code source}, encoding it if needed.
+     * {@code width} and {@code height} of 0 mean the source's own size. Returns null when the
+     * file is missing or can't be decoded.
+     */
+    public byte[] get(File source, Format format, int width, int height) throws Exception {
+        Entry entry = entry(source, format, width, height, true);
+        if (entry == null) return null;
+        byte[] payload = await(entry);
+        return payload == null ? null : payload.clone();
+    }
+
+    /** Starts encoding {@code source} on a background thread unless it is already cached. */
+    public void prewarm(File source, Format format, int width, int height) {
+        Entry entry = entry(source, format, width, height, false);
+        if (entry == null || entry.task.isDone()) return;
+        warmer().execute(() -> {
+            try {
+                await(entry);
+            } catch (Exception ignored) {
+                // The entry is dropped; the next get() encodes again and reports the failure.
+            }
+        });
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        retainedBytes = 0;
+    }
+
+    public synchronized long hits() {
+        return hits;
+    }
+
+    public synchronized long misses() {
+        return misses;
+    }
+
+    public synchronized long retainedBytes() {
+        return retainedBytes;
+    }
+
+    private Entry entry(File source, Format format, int width, int height, boolean count) {
+        long length = source.length();
+        long mtime = source.lastModified();
+        if (length == 0 || mtime == 0) return null;
+        Key key = new Key(source.getAbsolutePath(), mtime, length, format, width, height);
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            if (entry != null) {
+                if (count) hits++;
+                return entry;
+            }
+            if (count) misses++;
+            dropStale(key);
+            entry = new Entry(key, () -> encoder.encode(source, format, width, height));
+            entries.put(key, entry);
+            return entry;
+        }
+    }
+
+    /** Runs the encode on this thread unless another thread already is, then waits for it. */
+    private byte[] await(Entry entry) throws Exception {
+        entry.task.run();
+        byte[] payload;
+        try {
+            payload = entry.task.get();
+        } catch (ExecutionException e) {
+            forget(entry);
+            Throwable cause = e.getCause();
+            throw cause instanceof Exception ? (Exception) cause : e;
+        }
+        if (payload == null) {
+            forget(entry);
+            return null;
+        }
+        synchronized (this) {
+            if (entry.bytes < 0 && entries.get(entry.key) == entry) {
+                entry.bytes = payload.length;
+                retainedBytes += payload.length;
+                trim();
+            }
+        }
+        return payload;
+    }
+
+    private synchronized void forget(Entry entry) {
+        if (entries.get(entry.key) == entry) {
+            entries.remove(entry.key);
+            if (entry.bytes > 0) retainedBytes -= entry.bytes;
+        }
+    }
+
+    /** Drops payloads of an older version of the same file. */
+    private void dropStale(Key key) {
+        Iterator<Map.Entry<Key, Entry>> it = entries.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Key, Entry> e = it.next();
+            Key other = e.getKey();
+            if (other.path.equals(key.path) && (other.mtime != key.mtime || other.length != key.length)) {
+                if (e.getValue().bytes > 0) retainedBytes -= e.getValue().bytes;
+                it.remove();
+            }
+        }
+    }
+
+    /** Evicts least recently used finished payloads until under budget, keeping at least one. */
+    private void trim() {
+        Iterator<Entry> it = entries.values().iterator();
+        while (retainedBytes > maxBytes && entries.size() > 1 && it.hasNext()) {
+            Entry eldest = it.next();
+            if (eldest.bytes < 0) continue;
+            retainedBytes -= eldest.bytes;
+            it.remove();
+        }
+    }
+
+    private synchronized ExecutorService warmer() {
+        if (warmer == null) {
+            warmer = Executors.newSingleThreadExecutor(r -> {
+                Thread t = new Thread(r, "vcam-capture-warm");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        return warmer;
+    }
+
+    private static final class Entry {
+        final Key key;
+        final FutureTask<byte[]> task;
+        /** Retained size once the payload is accounted for, -1 until then. */
+        long bytes = -1;
+
+        Entry(Key key, Callable<byte[]> encode) {
+            this.key = key;
+            this.task = new FutureTask<>(encode);
+        }
+    }
+
+    private static final class Key {
+        final String path;
+        final long mtime;
+        final long length;
+        final Format format;
+        final int width;
+        final int height;
+
+        Key(String path, long mtime, long length, Format format, int width, int height) {
+            this.path = path;
+            this.mtime = mtime;
+            this.length = length;
+            this.format = format;
+            this.width = width;
+            this.height = height;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) return false;
+            Key k = (Key) o;
+            return mtime == k.mtime && length == k.length && width == k.width && height == k.height
+                    && format == k.format && path.equals(k.path);
+        }
+
+        @Override
+        public int hashCode() {
+            int h = path.hashCode();
+            h = 31 * h + (int) (mtime ^ (mtime >>> 32));
+            h = 31 * h + (int) (length ^ (length >>> 32));
+            h = 31 * h + format.hashCode();
+            h = 31 * h + width;
+            return 31 * h + height;
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package com.android.vcam;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Recycling pool for frame-sized buffers used by the decode pipeline.
+ * Buffers are bucketed by exact size; heap arrays back the byte[] handoffs and
+ * direct buffers keep frame staging memory off the host app's Java heap.
+ * Once warm, acquire/release allocate nothing.
+ */
+public final class FrameBufferPool {
+
+    /** Distinct frame sizes kept at once; a decode session rarely uses more than two. */
+    private static final int MAX_SIZE_CLASSES = 4;
+    private static final int DEFAULT_BUFFERS_PER_SIZE = 6;
+
+    private static final FrameBufferPool SHARED = new FrameBufferPool(DEFAULT_BUFFERS_PER_SIZE);
+
+    private final int buffersPerSize;
+    private final SizeClass[] classes = new SizeClass[MAX_SIZE_CLASSES];
+    private long useCounter;
+    private long hits;
+    private long misses;
+
+    public FrameBufferPool(int buffersPerSize) {
+        if (buffersPerSize <= 0) {
+            throw new IllegalArgumentException("buffersPerSize must be positive: " + buffersPerSize);
+        }
+        this.buffersPerSize = buffersPerSize;
+    }
+
+    /** Process-wide pool shared by every decoder in the hooked app. */
+    public static FrameBufferPool shared() {
+        return SHARED;
+    }
+
+    public synchronized byte[] acquire(int size) {
+        SizeClass sc = sizeClass(size);
+        if (sc.arrayCount > 0) {
+            hits++;
+            byte[] arr = sc.arrays[--sc.arrayCount];
+            sc.arrays[sc.arrayCount] = null;
+            return arr;
+        }
+        misses++;
+        return new byte[size];
+    }
+
+    public synchronized void release(byte[] arr) {
+        if (arr == null) return;
+        SizeClass sc = sizeClass(arr.length);
+        if (sc.arrayCount < sc.arrays.length) {
+            sc.arrays[sc.arrayCount++] = arr;
+        }
+    }
+
+    /**
+     * Returns a cleared buffer of exactly {@code size} bytes, direct when {@code direct}
+     * is set; heap buffers always expose their backing array.
+     */
+    public synchronized ByteBuffer acquireBuffer(int size, boolean direct) {
+        SizeClass sc = sizeClass(size);
+        ByteBuffer[] free = direct ? sc.direct : sc.heap;
+        int count = direct ? sc.directCount : sc.heapCount;
+        ByteBuffer buf;
+        if (count > 0) {
+            hits++;
+            buf = free[--count];
+            free[count] = null;
+            if (direct) sc.directCount = count;
+            else sc.heapCount = count;
+            buf.clear();
+        } else {
+            misses++;
+            buf = direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+        }
+        return buf;
+    }
+
+    public synchronized void release(ByteBuffer buf) {
+        if (buf == null) return;
+        SizeClass sc = sizeClass(buf.capacity());
+        if (buf.isDirect()) {
+            if (sc.directCount < sc.direct.length) sc.direct[sc.directCount++] = buf;
+        } else if (sc.heapCount < sc.heap.length) {
+            sc.heap[sc.heapCount++] = buf;
+        }
+    }
+
+    public synchronized long hits() {
+        return hits;
+    }
+
+    public synchronized long misses() {
+        return misses;
+    }
+
+    /** Bytes currently parked in the pool, heap and direct combined. */
+    public synchronized long retainedBytes() {
+        long total = 0;
+        for (SizeClass sc : classes) {
+            if (sc != null) {
+                total += (long) sc.size * (sc.arrayCount + sc.heapCount + sc.directCount);
+            }
+        }
+        return total;
+    }
+
+    public synchronized void clear() {
+        for (int i = 0; i < classes.length; i++) {
+            classes[i] = null;
+        }
+    }
+
+    /** Finds the bucket for {@code size}, evicting the least recently used one when all are taken. */
+    private SizeClass sizeClass(int size) {
+        useCounter++;
+        int victimIndex = -1;
+        long victimUse = Long.MAX_VALUE;
+        for (int i = 0; i < classes.length; i++) {
+            SizeClass sc = classes[i];
+            if (sc == null) {
+                if (victimUse != Long.MIN_VALUE) {
+                    victimIndex = i;
+                    victimUse = Long.MIN_VALUE;
+                }
+            } else if (sc.size == size) {
+                sc.lastUse = useCounter;
+                return sc;
+            } else if (sc.lastUse < victimUse) {
+                victimIndex = i;
+                victimUse = sc.lastUse;
+            }
+        }
+        SizeClass sc = new SizeClass(size, buffersPerSize);
+        sc.lastUse = useCounter;
+        classes[victimIndex] = sc;
+        return sc;
+    }
+
+    private static final class SizeClass {
+        final int size;
+        final byte[][] arrays;
+        final ByteBuffer[] heap;
+        final ByteBuffer[] direct;
+        int arrayCount;
+        int heapCount;
+        int directCount;
+        long lastUse;
+
+        SizeClass(int size, int capacity) {
+            this.size = size;
+            this.arrays = new byte[capacity][];
+            this.heap = new ByteBuffer[capacity];
+            this.direct = new ByteBuffer[capacity];
+        }
+    }
+}
@@ -0,0 +1,257 @@
+package com.android.vcam;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * On-disk cache of decoded NV21 frames, stored next to the source video.
+ * A cache file is keyed by the video's path, mtime, length and the output resolution, and is
+ * read through a read-only {@link FileChannel#map} so every session (and every hooked process)
+ * serves frames straight from the page cache without decoding. A cache whose key no longer
+ * matches the video is deleted on open.
+ *
+ * <p>Layout: a {@value #HEADER_SIZE}-byte header, then one record per frame holding the
+ * presentation time (8 bytes) followed by the frame data. Writers fill a temp file and rename
+ * it into place on commit, so readers never see a partial cache.
+ */
+public final class FrameCache {
+
+    private static final int MAGIC = 0x5643464D; // "VCFM"
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_SIZE = 4096;
+    private static final int MAX_PATH_BYTES = 2048;
+    private static final int PTS_BYTES = 8;
+    /** Caches larger than this are not written; a long 1080p clip would fill the disk. */
+    public static final long DEFAULT_MAX_BYTES = 512L * 1024 * 1024;
+    /** Temp files untouched for this long belong to a writer that died. */
+    private static final long STALE_TEMP_MS = 60_000L;
+
+    private final MappedByteBuffer map;
+    private final ByteBuffer reader;
+    private final int width;
+    private final int height;
+    private final int frameSize;
+    private final int frameCount;
+
+    private FrameCache(MappedByteBuffer map, int width, int height, int frameSize, int frameCount) {
+        this.map = map;
+        this.reader = map.duplicate();
+        this.width = width;
+        this.height = height;
+        this.frameSize = frameSize;
+        this.frameCount = frameCount;
+    }
+
+    public static File cacheFile(File video, int width, int height) {
+        return new File(video.getParentFile(), "." + video.getName() + "." + width + "x" + height + ".nv21cache");
+    }
+
+    /**
+     * Maps the cache for {@code video} at the given output size. Returns null when there is no
+     * cache, or when it is stale, in which case it is also deleted.
+     */
+    public static FrameCache open(File video, int width, int height) throws IOException {
+        File file = cacheFile(video, width, height);
+        if (!file.isFile() || file.length() < HEADER_SIZE) return null;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            FileChannel channel = raf.getChannel();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            while (header.hasRemaining() && channel.read(header) >= 0) { }
+            header.flip();
+            if (!matches(header, video, width, height)) {
+                file.delete();
+                return null;
+            }
+            int frameSize = header.getInt(16);
+            int frameCount = header.getInt(20);
+            long expected = HEADER_SIZE + (long) frameCount * (PTS_BYTES + frameSize);
+            if (frameCount <= 0 || expected > Integer.MAX_VALUE || channel.size() != expected) {
+                file.delete();
+                return null;
+            }
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, expected);
+            // The mapping stays valid after the channel is closed.
+            return new FrameCache(map, width, height, frameSize, frameCount);
+        }
+    }
+
+    public static Writer newWriter(File video, int width, int height, long maxBytes) throws IOException {
+        return new Writer(video, width, height, maxBytes);
+    }
+
+    private static boolean matches(ByteBuffer header, File video, int width, int height) {
+        if (header.getInt(0) != MAGIC || header.getInt(4) != FORMAT_VERSION) return false;
+        if (header.getInt(8) != width || header.getInt(12) != height) return false;
+        if (header.getLong(24) != video.length() || header.getLong(32) != video.lastModified()) return false;
+        byte[] path = video.getAbsolutePath().getBytes(StandardCharsets.UTF_8);
+        int pathLength = header.getInt(40);
+        if (pathLength != path.length) return false;
+        for (int i = 0; i < pathLength; i++) {
+            if (header.get(44 + i) != path[i]) return false;
+        }
+        return true;
+    }
+
+    public int width() {
+        return width;
+    }
+
+    public int height() {
+        return height;
+    }
+
+    public int frameSize() {
+        return frameSize;
+    }
+
+    public int frameCount() {
+        return frameCount;
+    }
+
+    public long presentationTimeUs(int index) {
+        return map.getLong(recordOffset(index));
+    }
+
+    /** Copies frame {@code index} into {@code dst} at its current position. Not thread-safe. */
+    public void copyFrame(int index, ByteBuffer dst) {
+        int offset = recordOffset(index) + PTS_BYTES;
+        reader.limit(offset + frameSize);
+        reader.position(offset);
+        dst.put(reader);
+    }
+
+    private int recordOffset(int index) {
+        if (index < 0 || index >= frameCount) {
+            throw new IndexOutOfBoundsException("frame " + index + " of " + frameCount);
+        }
+        return HEADER_SIZE + index * (PTS_BYTES + frameSize);
+    }
+
+    /**
+     * Appends decoded frames to a temp file and publishes it as the cache on {@link #commit}.
+     * Gives up quietly (see {@link #append}) once frames stop fitting the cache.
+     */
+    public static final class Writer implements Closeable {
+
+        private final File video;
+        private final File target;
+        private final File temp;
+        private final int width;
+        private final int height;
+        private final long maxBytes;
+        private final RandomAccessFile raf;
+        private final FileChannel channel;
+        private final ByteBuffer pts = ByteBuffer.allocateDirect(PTS_BYTES);
+        private int frameSize = -1;
+        private int frameCount;
+        private boolean abandoned;
+
+        private Writer(File video, int width, int height, long maxBytes) throws IOException {
+            this.video = video;
+            this.target = cacheFile(video, width, height);
+            this.temp = new File(target.getPath() + ".tmp" + System.nanoTime());
+            this.width = width;
+            this.height = height;
+            this.maxBytes = maxBytes;
+            deleteStaleTemps(target);
+            this.raf = new RandomAccessFile(temp, "rw");
+            this.channel = raf.getChannel();
+            channel.position(HEADER_SIZE);
+        }
+
+        /**
+         * Appends the remaining bytes of {@code frame}, leaving its position untouched. Returns
+         * false, and abandons the cache, if the frame size changes or the size limit is hit.
+         */
+        public boolean append(ByteBuffer frame, long presentationTimeUs) throws IOException {
+            if (abandoned) return false;
+            int size = frame.remaining();
+            if (frameSize < 0) frameSize = size;
+            if (size != frameSize || HEADER_SIZE + (long) (frameCount + 1) * (PTS_BYTES + size) > maxBytes) {
+                abort();
+                return false;
+            }
+            pts.clear();
+            pts.putLong(0, presentationTimeUs);
+            while (pts.hasRemaining()) channel.write(pts);
+            int position = frame.position();
+            while (frame.hasRemaining()) channel.write(frame);
+            frame.position(position);
+            frameCount++;
+            return true;
+        }
+
+        public boolean isAbandoned() {
+            return abandoned;
+        }
+
+        /** Writes the header and atomically moves the finished cache into place. */
+        public void commit() throws IOException {
+            if (abandoned) return;
+            if (frameCount == 0) {
+                abort();
+                return;
+            }
+            byte[] path = video.getAbsolutePath().getBytes(StandardCharsets.UTF_8);
+            if (path.length > MAX_PATH_BYTES) {
+                abort();
+                return;
+            }
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(0, MAGIC);
+            header.putInt(4, FORMAT_VERSION);
+            header.putInt(8, width);
+            header.putInt(12, height);
+            header.putInt(16, frameSize);
+            header.putInt(20, frameCount);
+            header.putLong(24, video.length());
+            header.putLong(32, video.lastModified());
+            header.putInt(40, path.length);
+            header.position(44);
+            header.put(path);
+            header.clear();
+            while (header.hasRemaining()) channel.write(header, header.position());
+            channel.force(false);
+            close();
+            abandoned = true;
+            if (!temp.renameTo(target)) {
+                temp.delete();
+                throw new IOException("cannot move frame cache into place: " + target);
+            }
+        }
+
+        /** Discards everything written so far. */
+        public void abort() {
+            abandoned = true;
+            try {
+                close();
+            } catch (IOException ignored) {
+                // Nothing useful to do; the temp file is deleted below either way.
+            }
+            temp.delete();
+        }
+
+        @Override
+        public void close() throws IOException {
+            raf.close();
+        }
+
+        private static void deleteStaleTemps(File target) {
+            File[] siblings = target.getParentFile().listFiles();
+            if (siblings == null) return;
+            String prefix = target.getName() + ".tmp";
+            long cutoff = System.currentTimeMillis() - STALE_TEMP_MS;
+            for (File f : siblings) {
+                if (f.getName().startsWith(prefix) && f.lastModified() < cutoff) {
+                    f.delete();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,258 @@
+package com.android.vcam;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Latest-frame handoff between a decoder thread and the hook threads reading it.
+ * Every published frame carries a sequence number and timestamp so readers can tell a new
+ * frame from a repeat. Readers are lock-free: they pin the slot they copy from, and a writer
+ * only ever fills a slot that is neither the latest nor pinned, so nothing is copied while
+ * being overwritten. Writers briefly lock to claim a slot, which keeps a decoder that is
+ * still winding down from colliding with its replacement.
+ */
+public final class FrameExchanger {
+
+    private static final int SLOT_COUNT = 4;
+    private static final int MAX_WAITERS = 8;
+
+    private final FrameBufferPool pool;
+    private final boolean direct;
+    private final Slot[] slots = new Slot[SLOT_COUNT];
+    private final AtomicReferenceArray<Thread> waiters = new AtomicReferenceArray<>(MAX_WAITERS);
+
+    private volatile int latestIndex = -1;
+    private volatile long publishedSequence;
+    private int writeIndex;
+
+    public FrameExchanger(FrameBufferPool pool, boolean direct) {
+        this.pool = pool;
+        this.direct = direct;
+        for (int i = 0; i < SLOT_COUNT; i++) {
+            slots[i] = new Slot();
+        }
+    }
+
+    /**
+     * Claims a slot and returns its cleared buffer of {@code size} bytes to fill with the next
+     * frame. Hand the same buffer to {@link #publish} once it is filled.
+     */
+    public ByteBuffer beginWrite(int size) {
+        int index;
+        synchronized (this) {
+            while ((index = claimSlot()) < 0) {
+                // Every spare slot is pinned by a reader mid-copy; that lasts microseconds.
+                Thread.yield();
+            }
+            writeIndex = index;
+        }
+        Slot slot = slots[index];
+        if (slot.buffer == null || slot.buffer.capacity() != size) {
+            pool.release(slot.buffer);
+            slot.buffer = pool.acquireBuffer(size, direct);
+        }
+        slot.buffer.clear();
+        return slot.buffer;
+    }
+
+    /** Makes {@code frame} the latest frame and wakes parked readers. */
+    public long publish(ByteBuffer frame, int width, int height, long timestampNs) {
+        long sequence;
+        synchronized (this) {
+            Slot slot = null;
+            int index = 0;
+            for (; index < SLOT_COUNT; index++) {
+                if (slots[index].writing && slots[index].buffer == frame) {
+                    slot = slots[index];
+                    break;
+                }
+            }
+            if (slot == null) {
+                throw new IllegalStateException("buffer was not obtained from beginWrite");
+            }
+            slot.writing = false;
+            sequence = publishedSequence + 1;
+            slot.width = width;
+            slot.height = height;
+            slot.timestampNs = timestampNs;
+            slot.sequence = sequence;
+            latestIndex = index;
+            publishedSequence = sequence;
+        }
+        for (int i = 0; i < MAX_WAITERS; i++) {
+            Thread waiter = waiters.get(i);
+            if (waiter != null) {
+                LockSupport.unpark(waiter);
+            }
+        }
+        return sequence;
+    }
+
+    public long sequence() {
+        return publishedSequence;
+    }
+
+    /** Drops every published frame and returns idle slot memory to the pool. */
+    public synchronized void reset() {
+        latestIndex = -1;
+        for (Slot slot : slots) {
+            if (slot.writing) continue;
+            while (slot.readers.get() != 0) {
+                Thread.yield();
+            }
+            pool.release(slot.buffer);
+            slot.buffer = null;
+        }
+    }
+
+    private int claimSlot() {
+        int latest = latestIndex;
+        for (int i = 1; i <= SLOT_COUNT; i++) {
+            int candidate = (writeIndex + i) % SLOT_COUNT;
+            Slot slot = slots[candidate];
+            if (candidate != latest && !slot.writing && slot.readers.get() == 0) {
+                slot.writing = true;
+                return candidate;
+            }
+        }
+        return -1;
+    }
+
+    public Reader newReader() {
+        return new Reader();
+    }
+
+    /**
+     * Moves a published frame into a consumer's array, e.g. scaling it to the consumer's size.
+     * {@code src} is a reader-private view; its position and limit may be changed freely.
+     */
+    public interface FrameCopier {
+        void copy(ByteBuffer src, int width, int height, byte[] dst);
+    }
+
+    private static final class Slot {
+        final AtomicInteger readers = new AtomicInteger();
+        boolean writing;
+        ByteBuffer buffer;
+        int width;
+        int height;
+        long timestampNs;
+        long sequence;
+    }
+
+    /**
+     * Per-consumer read handle. Not thread-safe: each reading thread (one camera callback
+     * thread, normally) keeps its own.
+     */
+    public final class Reader {
+
+        private final ByteBuffer[] views = new ByteBuffer[SLOT_COUNT];
+        private final ByteBuffer[] viewSources = new ByteBuffer[SLOT_COUNT];
+        private long lastSequence;
+        private long timestampNs;
+        private int width;
+        private int height;
+        private boolean repeat;
+
+        private Reader() {
+        }
+
+        /**
+         * Waits up to {@code timeoutNs} for a frame newer than the last one read and copies it
+         * into {@code dst}. On timeout the latest frame is copied again and {@link #isRepeat()}
+         * reports it. Returns false only if nothing has been published yet.
+         */
+        public boolean read(byte[] dst, long timeoutNs) {
+            return read(dst, timeoutNs, null);
+        }
+
+        /** Like {@link #read(byte[], long)}, but hands the frame to {@code copier} when one is given. */
+        public boolean read(byte[] dst, long timeoutNs, FrameCopier copier) {
+            if (publishedSequence <= lastSequence) {
+                awaitNewer(timeoutNs);
+            }
+            for (;;) {
+                int index = latestIndex;
+                if (index < 0) return false;
+                Slot slot = slots[index];
+                slot.readers.incrementAndGet();
+                try {
+                    if (latestIndex != index) continue;
+                    ByteBuffer src = view(index, slot.buffer);
+                    src.clear();
+                    if (copier != null) {
+                        copier.copy(src, slot.width, slot.height, dst);
+                    } else {
+                        src.get(dst, 0, Math.min(src.capacity(), dst.length));
+                    }
+                    repeat = slot.sequence == lastSequence;
+                    lastSequence = slot.sequence;
+                    timestampNs = slot.timestampNs;
+                    width = slot.width;
+                    height = slot.height;
+                    return true;
+                } finally {
+                    slot.readers.decrementAndGet();
+                }
+            }
+        }
+
+        /** Counts every frame published so far as read; the next read waits for a newer one. */
+        public void skipPublished() {
+            lastSequence = publishedSequence;
+        }
+
+        public boolean isRepeat() {
+            return repeat;
+        }
+
+        public long sequence() {
+            return lastSequence;
+        }
+
+        public long timestampNs() {
+            return timestampNs;
+        }
+
+        public int width() {
+            return width;
+        }
+
+        public int height() {
+            return height;
+        }
+
+        private void awaitNewer(long timeoutNs) {
+            Thread self = Thread.currentThread();
+            int waiterSlot = -1;
+            for (int i = 0; i < MAX_WAITERS && waiterSlot < 0; i++) {
+                if (waiters.compareAndSet(i, null, self)) waiterSlot = i;
+            }
+            try {
+                // Without a waiter slot we miss unparks, so poll in short parks instead.
+                long maxPark = waiterSlot >= 0 ? timeoutNs : TimeUnit.MILLISECONDS.toNanos(1);
+                long deadline = System.nanoTime() + timeoutNs;
+                long remaining = timeoutNs;
+                while (publishedSequence <= lastSequence && remaining > 0) {
+                    LockSupport.parkNanos(this, Math.min(remaining, maxPark));
+                    if (self.isInterrupted()) break;
+                    remaining = deadline - System.nanoTime();
+                }
+            } finally {
+                if (waiterSlot >= 0) waiters.set(waiterSlot, null);
+            }
+        }
+
+        /** Reader-private view of a slot buffer, so concurrent readers never share a position. */
+        private ByteBuffer view(int index, ByteBuffer source) {
+            if (viewSources[index] != source) {
+                viewSources[index] = source;
+                views[index] = source.duplicate();
+            }
+            return views[index];
+        }
+    }
+}
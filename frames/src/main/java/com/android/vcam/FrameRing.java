@@ -0,0 +1,232 @@
+package com.android.vcam;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded FIFO of decoded frames from one producer (the decode thread) to any number of
+ * consumers. Slots and their arrays are allocated once and reused, so a steady stream
+ * allocates nothing and memory stays bounded however slow the consumers are; what happens when
+ * the ring is full is chosen by an {@link OverflowPolicy}. Frames are copied in and out, so no
+ * array is ever shared with a consumer. Consumers pin the slot they copy from, and the producer
+ * waits for the pin to go before reusing a slot, the same scheme as {@link FrameExchanger}.
+ *
+ * <p>Nothing in the app consumes a FIFO of frames yet (every consumer wants only the newest,
+ * through {@link FrameExchanger}), so the app does not feed one.
+ */
+public final class FrameRing {
+
+    public enum OverflowPolicy {
+        /** Discard the oldest queued frame to make room; the producer never waits. */
+        OVERWRITE_OLDEST,
+        /** Wait up to the block timeout for a consumer to make room, then drop the new frame. */
+        BLOCK,
+        /** Drop the new frame at once. */
+        DROP_NEWEST
+    }
+
+    private static final int MAX_WAITERS = 8;
+    private static final long WRITING = -1;
+
+    private final Slot[] slots;
+    private final int mask;
+    private final OverflowPolicy policy;
+    private final long blockTimeoutNs;
+
+    /** Next position to write; only the producer moves it. */
+    private volatile long head;
+    /** Next position to read; consumers claim frames, and OVERWRITE_OLDEST skips them, by CAS. */
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicReferenceArray<Thread> waiters = new AtomicReferenceArray<>(MAX_WAITERS);
+    private volatile Thread blockedProducer;
+
+    private final AtomicLong overwritten = new AtomicLong();
+    private volatile long dropped;
+    private volatile long maxDepth;
+
+    /**
+     * Holds up to {@code capacity} frames, rounded up to a power of two. {@code blockTimeoutNs}
+     * is the longest {@link #offer} waits under {@link OverflowPolicy#BLOCK}.
+     */
+    public FrameRing(int capacity, OverflowPolicy policy, long blockTimeoutNs) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) size <<= 1;
+        slots = new Slot[size];
+        for (int i = 0; i < size; i++) {
+            slots[i] = new Slot();
+        }
+        mask = size - 1;
+        this.policy = policy;
+        this.blockTimeoutNs = blockTimeoutNs;
+    }
+
+    /**
+     * Copies the remaining bytes of {@code frame} into the ring. Returns false if the frame was
+     * dropped under the overflow policy. Producer thread only.
+     */
+    public boolean offer(ByteBuffer frame) {
+        long pos = head;
+        if (pos - tail.get() >= slots.length && !makeRoom(pos)) {
+            dropped++;
+            return false;
+        }
+        Slot slot = slots[(int) (pos & mask)];
+        slot.stamp = WRITING;
+        while (slot.readers.get() != 0) {
+            // A consumer is still copying the frame this slot held; that lasts microseconds.
+            Thread.yield();
+        }
+        int length = frame.remaining();
+        if (slot.data == null || slot.data.length < length) {
+            slot.data = new byte[length];
+        }
+        frame.get(slot.data, 0, length);
+        slot.length = length;
+        slot.stamp = pos + 1;
+        head = pos + 1;
+        long depth = pos + 1 - tail.get();
+        if (depth > maxDepth) maxDepth = depth;
+        for (int i = 0; i < MAX_WAITERS; i++) {
+            Thread waiter = waiters.get(i);
+            if (waiter != null) {
+                LockSupport.unpark(waiter);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Waits up to {@code timeoutNs} for the oldest queued frame and copies it into {@code dst}
+     * (truncated if {@code dst} is shorter). Returns the frame's length, or -1 on timeout.
+     * Safe to call from several threads; each frame goes to exactly one of them.
+     */
+    public int take(byte[] dst, long timeoutNs) {
+        long deadline = System.nanoTime() + timeoutNs;
+        for (;;) {
+            long t = tail.get();
+            if (t >= head) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0 || !awaitFrame(t, remaining)) return -1;
+                continue;
+            }
+            Slot slot = slots[(int) (t & mask)];
+            slot.readers.incrementAndGet();
+            try {
+                // A stale stamp means the producer has moved past t: taken or overwritten.
+                if (slot.stamp != t + 1 || !tail.compareAndSet(t, t + 1)) continue;
+                Thread producer = blockedProducer;
+                if (producer != null) LockSupport.unpark(producer);
+                int length = slot.length;
+                System.arraycopy(slot.data, 0, dst, 0, Math.min(length, dst.length));
+                return length;
+            } finally {
+                slot.readers.decrementAndGet();
+            }
+        }
+    }
+
+    /** Like {@link #take} without waiting. */
+    public int poll(byte[] dst) {
+        return take(dst, 0);
+    }
+
+    /** Frames queued right now. */
+    public int depth() {
+        return (int) Math.max(0, head - tail.get());
+    }
+
+    public int maxDepth() {
+        return (int) maxDepth;
+    }
+
+    public int capacity() {
+        return slots.length;
+    }
+
+    public OverflowPolicy policy() {
+        return policy;
+    }
+
+    /** Frames offered and accepted since creation. */
+    public long offeredCount() {
+        return head;
+    }
+
+    /** Queued frames discarded under {@link OverflowPolicy#OVERWRITE_OLDEST}. */
+    public long overwrittenCount() {
+        return overwritten.get();
+    }
+
+    /** New frames refused under {@link OverflowPolicy#DROP_NEWEST} or a {@link OverflowPolicy#BLOCK} timeout. */
+    public long droppedCount() {
+        return dropped;
+    }
+
+    /** Returns true once there is room for position {@code pos}. */
+    private boolean makeRoom(long pos) {
+        switch (policy) {
+            case OVERWRITE_OLDEST:
+                for (;;) {
+                    long t = tail.get();
+                    if (pos - t < slots.length) return true;
+                    if (tail.compareAndSet(t, t + 1)) {
+                        overwritten.incrementAndGet();
+                        return true;
+                    }
+                }
+            case BLOCK: {
+                long deadline = System.nanoTime() + blockTimeoutNs;
+                blockedProducer = Thread.currentThread();
+                try {
+                    while (pos - tail.get() >= slots.length) {
+                        long remaining = deadline - System.nanoTime();
+                        if (remaining <= 0) return false;
+                        LockSupport.parkNanos(this, remaining);
+                    }
+                    return true;
+                } finally {
+                    blockedProducer = null;
+                }
+            }
+            default:
+                return false;
+        }
+    }
+
+    /** Parks until something past {@code t} is published; false on timeout or interrupt. */
+    private boolean awaitFrame(long t, long timeoutNs) {
+        Thread self = Thread.currentThread();
+        int waiterSlot = -1;
+        for (int i = 0; i < MAX_WAITERS && waiterSlot < 0; i++) {
+            if (waiters.compareAndSet(i, null, self)) waiterSlot = i;
+        }
+        try {
+            // Without a waiter slot we miss unparks, so poll in short parks instead.
+            long maxPark = waiterSlot >= 0 ? timeoutNs : 1_000_000L;
+            long deadline = System.nanoTime() + timeoutNs;
+            long remaining = timeoutNs;
+            while (head <= t && remaining > 0) {
+                LockSupport.parkNanos(this, Math.min(remaining, maxPark));
+                if (self.isInterrupted()) return false;
+                remaining = deadline - System.nanoTime();
+            }
+            return head > t;
+        } finally {
+            if (waiterSlot >= 0) waiters.set(waiterSlot, null);
+        }
+    }
+
+    private static final class Slot {
+        final AtomicInteger readers = new AtomicInteger();
+        /** Position + 1 of the frame held, or {@link #WRITING} while the producer fills it. */
+        volatile long stamp;
+        byte[] data;
+        int length;
+    }
+}
@@ -0,0 +1,37 @@
+package com.android.vcam;
+
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Fork/join pool shared by the row-striped pixel kernels. Created on first use and sized to
+ * leave a core for the app's own threads; its workers are daemons, so it never keeps the
+ * hooked process alive.
+ */
+public final class FrameWorkers {
+
+    private static final int MAX_PARALLELISM = 4;
+
+    private static volatile ForkJoinPool pool;
+
+    private FrameWorkers() {}
+
+    public static ForkJoinPool pool() {
+        ForkJoinPool p = pool;
+        if (p == null) {
+            synchronized (FrameWorkers.class) {
+                p = pool;
+                if (p == null) {
+                    p = new ForkJoinPool(parallelism());
+                    pool = p;
+                }
+            }
+        }
+        return p;
+    }
+
+    /** Stripes worth splitting a frame into on this device. */
+    public static int parallelism() {
+        int cores = Runtime.getRuntime().availableProcessors();
+        return Math.max(1, Math.min(MAX_PARALLELISM, cores - 1));
+    }
+}
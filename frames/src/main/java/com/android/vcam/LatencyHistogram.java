@@ -0,0 +1,106 @@
+package com.android.vcam;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Durations in log-linear nanosecond buckets, HDR histogram style: every power of two is split
+ * into {@value #SUB_BUCKETS} equal sub-buckets picked by the value's top mantissa bits, and values
+ * below {@value #SUB_BUCKETS} ns get a bucket each. A bucket is at most 1/16 of its values wide,
+ * and quantiles interpolate linearly within their bucket. Recording is a few atomic adds with no
+ * allocation or locking, so any number of threads may record while another reads.
+ */
+public final class LatencyHistogram {
+
+    private static final int SUB_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    /** Exact buckets below {@link #SUB_BUCKETS}, then one row per power of two up to 2^62. */
+    private static final int BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong totalNs = new AtomicLong();
+    private final AtomicLong maxNs = new AtomicLong();
+
+    public void record(long ns) {
+        if (ns < 0) ns = 0;
+        buckets.incrementAndGet(bucketOf(ns));
+        count.incrementAndGet();
+        totalNs.addAndGet(ns);
+        long max;
+        while (ns > (max = maxNs.get()) && !maxNs.compareAndSet(max, ns)) {
+            // Lost a race with a concurrent larger record; re-check.
+        }
+    }
+
+    public long count() {
+        return count.get();
+    }
+
+    public long meanNs() {
+        long n = count.get();
+        return n == 0 ? 0 : totalNs.get() / n;
+    }
+
+    public long maxNs() {
+        return maxNs.get();
+    }
+
+    /** Estimated value at quantile {@code q} (0..1), or 0 when empty. */
+    public long quantileNs(double q) {
+        long n = 0;
+        long[] snapshot = new long[BUCKETS];
+        for (int b = 0; b < BUCKETS; b++) {
+            snapshot[b] = buckets.get(b);
+            n += snapshot[b];
+        }
+        if (n == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(q * n));
+        long seen = 0;
+        for (int b = 0; b < BUCKETS; b++) {
+            long inBucket = snapshot[b];
+            if (seen + inBucket >= rank && inBucket > 0) {
+                // Spread the bucket's values evenly over its width; take the rank's midpoint.
+                double fraction = (rank - seen - 0.5) / inBucket;
+                long value = lowerBound(b) + (long) (fraction * width(b));
+                return Math.min(maxNs.get(), value);
+            }
+            seen += inBucket;
+        }
+        return maxNs.get();
+    }
+
+    /** Bucket of {@code ns}, which is not negative. */
+    static int bucketOf(long ns) {
+        if (ns < SUB_BUCKETS) return (int) ns;
+        int exponent = 63 - Long.numberOfLeadingZeros(ns);
+        int sub = (int) (ns >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    /** Smallest value in bucket {@code b}. */
+    static long lowerBound(int b) {
+        if (b < SUB_BUCKETS) return b;
+        int shift = b / SUB_BUCKETS - 1;
+        return (long) (SUB_BUCKETS + b % SUB_BUCKETS) << shift;
+    }
+
+    /** Number of values bucket {@code b} holds. */
+    static long width(int b) {
+        return b < SUB_BUCKETS ? 1 : 1L << (b / SUB_BUCKETS - 1);
+    }
+
+    public void reset() {
+        for (int b = 0; b < BUCKETS; b++) buckets.set(b, 0);
+        count.set(0);
+        totalNs.set(0);
+        maxNs.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return "n=" + count() + " meanUs=" + meanNs() / 1000 + " p50Us=" + quantileNs(0.5) / 1000
+                + " p90Us=" + quantileNs(0.9) / 1000 + " p99Us=" + quantileNs(0.99) / 1000
+                + " maxUs=" + maxNs() / 1000;
+    }
+}
@@ -0,0 +1,258 @@
+package com.android.vcam;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Scales and crops NV21 frames to a fixed destination size, writing straight into the
+ * destination array. Source-to-destination coordinate tables are built once per source size,
+ * so a steady stream of frames costs only the per-pixel lookups and no allocation.
+ */
+public final class Nv21Scaler implements FrameExchanger.FrameCopier {
+
+    public enum Filter {
+        NEAREST,
+        BILINEAR
+    }
+
+    public enum Fit {
+        /** Fill the destination, cropping the source around its centre to keep the aspect ratio. */
+        CENTER_CROP,
+        /** Show the whole source, centred, with black bars on the sides that don't fit. */
+        LETTERBOX,
+        /** Map the whole source onto the whole destination, ignoring aspect ratio. */
+        STRETCH
+    }
+
+    private static final byte BLACK_Y = 16;
+    private static final byte BLACK_UV = (byte) 128;
+    private static final int FRAC_BITS = 8;
+    private static final int FRAC_ONE = 1 << FRAC_BITS;
+
+    private final int dstWidth;
+    private final int dstHeight;
+    private final Filter filter;
+    private final Fit fit;
+
+    private int srcWidth = -1;
+    private int srcHeight = -1;
+    private Axis lumaX;
+    private Axis lumaY;
+    private Axis chromaX;
+    private Axis chromaY;
+    private byte[] row0 = new byte[0];
+    private byte[] row1 = new byte[0];
+    private int row0Index;
+    private int row1Index;
+
+    public Nv21Scaler(int dstWidth, int dstHeight, Filter filter, Fit fit) {
+        if (dstWidth <= 0 || dstHeight <= 0) {
+            throw new IllegalArgumentException("bad destination size " + dstWidth + "x" + dstHeight);
+        }
+        this.dstWidth = dstWidth;
+        this.dstHeight = dstHeight;
+        this.filter = filter;
+        this.fit = fit;
+    }
+
+    /** Bytes in an NV21 frame of the given size. */
+    public static int frameSize(int width, int height) {
+        return width * height + 2 * (width / 2) * (height / 2);
+    }
+
+    public int dstWidth() {
+        return dstWidth;
+    }
+
+    public int dstHeight() {
+        return dstHeight;
+    }
+
+    @Override
+    public void copy(ByteBuffer src, int width, int height, byte[] dst) {
+        scale(src, width, height, dst);
+    }
+
+    /**
+     * Scales the NV21 frame in {@code src} (read from position 0, which is left moved) into
+     * {@code dst}, which must hold a {@code dstWidth x dstHeight} NV21 frame. Not thread-safe.
+     */
+    public void scale(ByteBuffer src, int width, int height, byte[] dst) {
+        int dstSize = frameSize(dstWidth, dstHeight);
+        if (dst.length < dstSize) {
+            throw new IllegalArgumentException("destination holds " + dst.length + " bytes, need " + dstSize);
+        }
+        if (width == dstWidth && height == dstHeight) {
+            src.position(0);
+            src.get(dst, 0, Math.min(src.remaining(), dstSize));
+            return;
+        }
+        if (width != srcWidth || height != srcHeight) {
+            buildTables(width, height);
+        }
+        scalePlane(src, 0, width, 1, lumaX, lumaY, dst, 0, dstWidth, dstHeight, BLACK_Y);
+        scalePlane(src, width * height, (width / 2) * 2, 2, chromaX, chromaY,
+                dst, dstWidth * dstHeight, dstWidth / 2, dstHeight / 2, BLACK_UV);
+    }
+
+    private void buildTables(int width, int height) {
+        srcWidth = width;
+        srcHeight = height;
+        int cropW = width;
+        int cropH = height;
+        int outW = dstWidth;
+        int outH = dstHeight;
+        if (fit == Fit.CENTER_CROP) {
+            // Pick the largest source window with the destination's aspect ratio.
+            if ((long) width * dstHeight > (long) height * dstWidth) {
+                cropW = (int) ((long) height * dstWidth / dstHeight);
+            } else {
+                cropH = (int) ((long) width * dstHeight / dstWidth);
+            }
+        } else if (fit == Fit.LETTERBOX) {
+            if ((long) width * dstHeight > (long) height * dstWidth) {
+                outH = (int) ((long) dstWidth * height / width);
+            } else {
+                outW = (int) ((long) dstHeight * width / height);
+            }
+        }
+        // Keep windows even so luma and the half-resolution chroma stay aligned.
+        cropW = Math.max(2, cropW & ~1);
+        cropH = Math.max(2, cropH & ~1);
+        outW = Math.max(2, outW & ~1);
+        outH = Math.max(2, outH & ~1);
+        int cropX = ((width - cropW) / 2) & ~1;
+        int cropY = ((height - cropH) / 2) & ~1;
+        int outX = ((dstWidth - outW) / 2) & ~1;
+        int outY = ((dstHeight - outH) / 2) & ~1;
+
+        boolean nearest = filter == Filter.NEAREST;
+        lumaX = new Axis(width, cropX, cropW, dstWidth, outX, outW, lumaEnd(outX, outW, dstWidth), nearest);
+        lumaY = new Axis(height, cropY, cropH, dstHeight, outY, outH, lumaEnd(outY, outH, dstHeight), nearest);
+        chromaX = new Axis(width / 2, cropX / 2, cropW / 2, dstWidth / 2, outX / 2, outW / 2, outX / 2 + outW / 2, nearest);
+        chromaY = new Axis(height / 2, cropY / 2, cropH / 2, dstHeight / 2, outY / 2, outH / 2, outY / 2 + outH / 2, nearest);
+        if (row0.length < width) {
+            row0 = new byte[width];
+            row1 = new byte[width];
+        }
+    }
+
+    /**
+     * End of the luma span: an odd destination's last column or row, which has no chroma of its
+     * own, repeats the edge of the picture when the picture reaches it.
+     */
+    private static int lumaEnd(int outStart, int outSpan, int dstLength) {
+        int end = outStart + outSpan;
+        return end == (dstLength & ~1) ? dstLength : end;
+    }
+
+    /**
+     * Scales one plane. {@code channels} is 1 for luma and 2 for the interleaved VU plane,
+     * whose rows are {@code srcStride} bytes of {@code channels}-byte samples.
+     */
+    private void scalePlane(ByteBuffer src, int srcOffset, int srcStride, int channels, Axis ax, Axis ay,
+                            byte[] dst, int dstOffset, int outWidth, int outHeight, byte fill) {
+        row0Index = -1;
+        row1Index = -1;
+        int dstStride = outWidth * channels;
+        boolean bilinear = filter == Filter.BILINEAR;
+        for (int dy = 0; dy < outHeight; dy++) {
+            int rowStart = dstOffset + dy * dstStride;
+            if (dy < ay.start || dy >= ay.end) {
+                Arrays.fill(dst, rowStart, rowStart + dstStride, fill);
+                continue;
+            }
+            int sy = ay.index[dy];
+            int syNext = ay.next[dy];
+            byte[] top = fetchRow(src, srcOffset, srcStride, sy, syNext);
+            byte[] bottom = bilinear ? fetchRow(src, srcOffset, srcStride, syNext, sy) : top;
+            int fy = ay.frac[dy];
+            if (ax.start > 0) {
+                Arrays.fill(dst, rowStart, rowStart + ax.start * channels, fill);
+            }
+            if (ax.end < outWidth) {
+                Arrays.fill(dst, rowStart + ax.end * channels, rowStart + dstStride, fill);
+            }
+            for (int dx = ax.start; dx < ax.end; dx++) {
+                int i0 = ax.index[dx] * channels;
+                int out = rowStart + dx * channels;
+                if (!bilinear) {
+                    for (int c = 0; c < channels; c++) {
+                        dst[out + c] = top[i0 + c];
+                    }
+                    continue;
+                }
+                int i1 = ax.next[dx] * channels;
+                int fx = ax.frac[dx];
+                for (int c = 0; c < channels; c++) {
+                    int a = top[i0 + c] & 0xFF;
+                    int b = top[i1 + c] & 0xFF;
+                    int upper = (a << FRAC_BITS) + (b - a) * fx;
+                    int d = bottom[i0 + c] & 0xFF;
+                    int e = bottom[i1 + c] & 0xFF;
+                    int lower = (d << FRAC_BITS) + (e - d) * fx;
+                    int value = (upper << FRAC_BITS) + (lower - upper) * fy;
+                    dst[out + c] = (byte) ((value + (1 << (2 * FRAC_BITS - 1))) >> (2 * FRAC_BITS));
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns source row {@code y}, reusing a scratch row that already holds it. A miss
+     * overwrites whichever scratch row isn't holding {@code keep}, the other row this output
+     * row needs.
+     */
+    private byte[] fetchRow(ByteBuffer src, int planeOffset, int stride, int y, int keep) {
+        if (row0Index == y) return row0;
+        if (row1Index == y) return row1;
+        return load(src, planeOffset, stride, y, row0Index != keep);
+    }
+
+    private byte[] load(ByteBuffer src, int planeOffset, int stride, int y, boolean intoRow0) {
+        byte[] row = intoRow0 ? row0 : row1;
+        src.position(planeOffset + y * stride);
+        src.get(row, 0, stride);
+        if (intoRow0) {
+            row0Index = y;
+        } else {
+            row1Index = y;
+        }
+        return row;
+    }
+
+    /** Destination-to-source lookup for one axis of one plane. */
+    private static final class Axis {
+        final int start;
+        final int end;
+        final int[] index;
+        final int[] next;
+        final int[] frac;
+
+        /**
+         * Maps {@code dstSpan} samples from {@code dstStart} onto the source window; samples
+         * past that, up to {@code dstEnd}, repeat the window's edge.
+         */
+        Axis(int srcLength, int srcStart, int srcSpan, int dstLength, int dstStart, int dstSpan, int dstEnd,
+             boolean nearest) {
+            this.start = dstStart;
+            this.end = dstEnd;
+            this.index = new int[dstLength];
+            this.next = new int[dstLength];
+            this.frac = new int[dstLength];
+            for (int d = start; d < end; d++) {
+                // Sample at pixel centres: src = (d + 0.5) * srcSpan / dstSpan - 0.5, in 1/256ths.
+                long pos = ((2L * (d - dstStart) + 1) * srcSpan * FRAC_ONE) / (2L * dstSpan) - FRAC_ONE / 2;
+                if (nearest) pos += FRAC_ONE / 2;
+                if (pos < 0) pos = 0;
+                int s = (int) (pos >> FRAC_BITS);
+                int f = (int) (pos & (FRAC_ONE - 1));
+                int last = Math.min(srcStart + srcSpan, srcLength) - 1;
+                int s0 = Math.min(srcStart + s, last);
+                index[d] = s0;
+                next[d] = Math.min(s0 + 1, last);
+                frac[d] = f;
+            }
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package com.android.vcam;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Process-wide counters and per-stage latency histograms for the frame pipeline, from the
+ * codec to the app's buffers. Recording never allocates, and apart from a decoder's own
+ * {@link InFlight} table never locks, so it stays on in release builds; {@link #snapshot()}
+ * renders everything as text for logcat or a file.
+ */
+public final class PipelineMetrics {
+
+    public enum Stage {
+        /** Sample queued into the codec until its frame comes out. */
+        DECODE,
+        /** Decoded image to NV21 in the exchanger slot. */
+        CONVERT,
+        /** Time spent waiting for a frame's due time. */
+        PACE_WAIT,
+        /** Exchanger frame scaled or copied into the app's preview buffer. */
+        CALLBACK_COPY,
+        /** One decode-session frame drawn into all of its output surfaces. */
+        SURFACE_DRAW,
+        /** Decode-session readback and NV21 conversion for byte sinks. */
+        READBACK,
+        /** Pooled preview/audio player handed a clip until it is prepared and playing. */
+        PLAYER_PREPARE,
+        /** Camera set up (opened, or its preview target set) until its first virtual frame. */
+        FIRST_FRAME
+    }
+
+    public enum Counter {
+        FRAMES_DECODED,
+        /** Frames shown: published, rendered to a surface, or drawn by a decode session. */
+        FRAMES_DELIVERED,
+        FRAMES_DROPPED,
+        /** App buffers filled with a frame they had already received. */
+        FRAMES_REPEATED,
+        /** App buffers blanked because nothing was decoded yet. */
+        FRAMES_BLANK
+    }
+
+    public enum Queue {
+        /** Output buffers waiting for the decode thread in callback mode. */
+        CODEC_OUTPUT,
+        /** Output surfaces of decode sessions. */
+        SESSION_OUTPUTS,
+        /** Stand-in callback buffers queued to a Camera1 camera. */
+        CALLBACK_BUFFERS
+    }
+
+    public enum Pool {
+        /** Stand-ins for the app's Camera1 callback buffers, see {@link CallbackBufferPool}. */
+        CALLBACK_BUFFERS
+    }
+
+    private static final LatencyHistogram[] stages = new LatencyHistogram[Stage.values().length];
+    private static final AtomicLongArray counters = new AtomicLongArray(Counter.values().length);
+    private static final AtomicIntegerArray depths = new AtomicIntegerArray(Queue.values().length);
+    private static final AtomicIntegerArray maxDepths = new AtomicIntegerArray(Queue.values().length);
+    private static final AtomicLongArray poolHits = new AtomicLongArray(Pool.values().length);
+    private static final AtomicLongArray poolMisses = new AtomicLongArray(Pool.values().length);
+    private static final AtomicLongArray poolRetained = new AtomicLongArray(Pool.values().length);
+    private static final long startNs = System.nanoTime();
+
+    static {
+        for (int i = 0; i < stages.length; i++) stages[i] = new LatencyHistogram();
+    }
+
+    private PipelineMetrics() {}
+
+    public static void record(Stage stage, long ns) {
+        stages[stage.ordinal()].record(ns);
+    }
+
+    /** Records the time since {@code startNs}, a {@link System#nanoTime()} reading. */
+    public static void recordSince(Stage stage, long startNs) {
+        stages[stage.ordinal()].record(System.nanoTime() - startNs);
+    }
+
+    public static void increment(Counter counter) {
+        counters.incrementAndGet(counter.ordinal());
+    }
+
+    public static void queueDepth(Queue queue, int depth) {
+        int i = queue.ordinal();
+        depths.set(i, depth);
+        int max;
+        while (depth > (max = maxDepths.get(i)) && !maxDepths.compareAndSet(i, max, depth)) {
+            // Retry against a concurrent update.
+        }
+    }
+
+    /** Counts one buffer taken from {@code pool}, recycled if {@code hit}, newly allocated if not. */
+    public static void poolAcquired(Pool pool, boolean hit) {
+        (hit ? poolHits : poolMisses).incrementAndGet(pool.ordinal());
+    }
+
+    /** Bytes currently parked in {@code pool}. */
+    public static void poolRetained(Pool pool, long bytes) {
+        poolRetained.set(pool.ordinal(), bytes);
+    }
+
+    public static LatencyHistogram histogram(Stage stage) {
+        return stages[stage.ordinal()];
+    }
+
+    public static long count(Counter counter) {
+        return counters.get(counter.ordinal());
+    }
+
+    /** Everything recorded so far, one line per stage, counter, queue and pool. */
+    public static String snapshot() {
+        StringBuilder sb = new StringBuilder(1024);
+        sb.append("pipeline metrics after ").append((System.nanoTime() - startNs) / 1_000_000).append(" ms\n");
+        for (Stage s : Stage.values()) {
+            sb.append("stage ").append(s.name().toLowerCase(Locale.ROOT)).append(": ").append(stages[s.ordinal()]).append('\n');
+        }
+        for (Counter c : Counter.values()) {
+            sb.append("counter ").append(c.name().toLowerCase(Locale.ROOT)).append(": ").append(counters.get(c.ordinal())).append('\n');
+        }
+        for (Queue q : Queue.values()) {
+            sb.append("queue ").append(q.name().toLowerCase(Locale.ROOT)).append(": depth=").append(depths.get(q.ordinal()))
+                    .append(" max=").append(maxDepths.get(q.ordinal())).append('\n');
+        }
+        for (Pool p : Pool.values()) {
+            long hits = poolHits.get(p.ordinal());
+            long total = hits + poolMisses.get(p.ordinal());
+            sb.append("pool ").append(p.name().toLowerCase(Locale.ROOT)).append(": hits=").append(hits)
+                    .append(" misses=").append(total - hits)
+                    .append(" hit_rate=").append(total == 0 ? "-" : String.format(Locale.ROOT, "%.1f%%", 100.0 * hits / total))
+                    .append(" retained_bytes=").append(poolRetained.get(p.ordinal())).append('\n');
+        }
+        return sb.toString();
+    }
+
+    /** Writes {@link #snapshot()} to {@code file}, replacing it. */
+    public static void writeTo(File file) throws IOException {
+        try (Writer out = new OutputStreamWriter(new FileOutputStream(file), Charset.forName("UTF-8"))) {
+            out.write(snapshot());
+        }
+    }
+
+    public static void reset() {
+        for (LatencyHistogram h : stages) h.reset();
+        for (int i = 0; i < counters.length(); i++) counters.set(i, 0);
+        for (int i = 0; i < maxDepths.length(); i++) {
+            depths.set(i, 0);
+            maxDepths.set(i, 0);
+        }
+        for (int i = 0; i < poolHits.length(); i++) {
+            poolHits.set(i, 0);
+            poolMisses.set(i, 0);
+        }
+    }
+
+    /**
+     * Matches codec input to output by presentation time to measure {@link Stage#DECODE}.
+     * Sized for the handful of frames a decoder holds; older entries are overwritten.
+     */
+    public static final class InFlight {
+        private static final int SIZE = 32;
+        private final long[] ptsUs = new long[SIZE];
+        private final long[] queuedNs = new long[SIZE];
+        private int next;
+
+        public synchronized void queued(long pts, long nowNs) {
+            ptsUs[next] = pts;
+            queuedNs[next] = nowNs;
+            next = (next + 1) % SIZE;
+        }
+
+        /** Records the decode latency of the frame with this timestamp, if it was seen going in. */
+        public synchronized void decoded(long pts, long nowNs) {
+            for (int i = 0; i < SIZE; i++) {
+                if (queuedNs[i] != 0 && ptsUs[i] == pts) {
+                    record(Stage.DECODE, nowNs - queuedNs[i]);
+                    queuedNs[i] = 0;
+                    return;
+                }
+            }
+        }
+
+        public synchronized void clear() {
+            for (int i = 0; i < SIZE; i++) queuedNs[i] = 0;
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package com.android.vcam;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The first few NV21 frames of a clip, decoded before anyone asks for them so the first
+ * delivery doesn't wait for the codec to start. The decoder fills it as fast as it can, then
+ * holds until the consumer has used the frames up and {@link #release}s it; from then on frames
+ * go through the normal, paced path. Frames are copied into arrays of their own, so the
+ * consumer may take them at its own rate.
+ *
+ * <p>One producer (the decode thread) and one consumer (the thread delivering to the app).
+ */
+public final class PrerollBuffer {
+
+    private final byte[][] frames;
+    private final int[] widths;
+    private final int[] heights;
+    private volatile int size;
+    private boolean released;
+
+    public PrerollBuffer(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        frames = new byte[capacity][];
+        widths = new int[capacity];
+        heights = new int[capacity];
+    }
+
+    /**
+     * Keeps a copy of the NV21 frame in {@code frame}, read from its start. Returns false, and
+     * keeps nothing, once the preroll is full or released. Producer only.
+     */
+    public synchronized boolean offer(ByteBuffer frame, int width, int height) {
+        if (released || size == frames.length) return false;
+        int index = size;
+        int length = Nv21Scaler.frameSize(width, height);
+        if (frames[index] == null || frames[index].length != length) {
+            frames[index] = new byte[length];
+        }
+        ByteBuffer src = frame.duplicate();
+        src.clear();
+        src.get(frames[index], 0, length);
+        widths[index] = width;
+        heights[index] = height;
+        size = index + 1;
+        notifyAll();
+        return true;
+    }
+
+    /** Ends the preroll: no more frames are taken, and a held producer goes on. Consumer only. */
+    public synchronized void release() {
+        if (released) return;
+        released = true;
+        notifyAll();
+    }
+
+    public synchronized boolean isReleased() {
+        return released;
+    }
+
+    public boolean isFull() {
+        return size == frames.length;
+    }
+
+    /** Frames kept so far. */
+    public int size() {
+        return size;
+    }
+
+    public int capacity() {
+        return frames.length;
+    }
+
+    /**
+     * Holds the producer once the preroll is full, until it is released or {@code timeoutMs}
+     * passes; returns whether it was released.
+     */
+    public synchronized boolean awaitRelease(long timeoutMs) throws InterruptedException {
+        if (!released) wait(timeoutMs);
+        return released;
+    }
+
+    /** Waits up to {@code timeoutNs} for more than {@code count} frames; false on timeout. */
+    public synchronized boolean awaitMoreThan(int count, long timeoutNs) throws InterruptedException {
+        long deadline = System.nanoTime() + timeoutNs;
+        while (size <= count && !released) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) break;
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        return size > count;
+    }
+
+    /**
+     * Hands frame {@code index} to {@code copier}, or copies it unscaled when {@code copier}
+     * is null. Consumer only.
+     */
+    public void read(int index, byte[] dst, FrameExchanger.FrameCopier copier) {
+        if (index >= size) {
+            throw new IndexOutOfBoundsException("frame " + index + " of " + size);
+        }
+        byte[] frame = frames[index];
+        if (copier != null) {
+            copier.copy(ByteBuffer.wrap(frame), widths[index], heights[index], dst);
+        } else {
+            System.arraycopy(frame, 0, dst, 0, Math.min(frame.length, dst.length));
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package com.android.vcam;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Paces decoded frames against {@link System#nanoTime()}. Every frame gets a due time on one
+ * continuous timeline: the first frame anchors it, and each loop of the clip continues where
+ * the previous one ended (one frame duration after its last frame) instead of restarting, so
+ * timing errors never accumulate and loop boundaries don't hiccup.
+ *
+ * <p>Frames that are already badly late can be dropped under {@link LatePolicy#DROP_LATE},
+ * bounded so a slow decoder still shows every few frames; a stall longer than
+ * {@link #RESYNC_THRESHOLD_NS} (or a timestamp jump) re-anchors the timeline instead. Counters
+ * are written by the pacing thread only and may be read from any thread.
+ */
+public final class PresentationClock {
+
+    public enum LatePolicy {
+        /** Show every frame, however late. */
+        KEEP_ALL,
+        /** Drop frames later than the drop threshold. */
+        DROP_LATE
+    }
+
+    public static final long DEFAULT_DROP_THRESHOLD_NS = 50_000_000L;
+    /** Frames shown later than this count as late deliveries. */
+    public static final long LATE_TOLERANCE_NS = 4_000_000L;
+    /** Lateness (or a wait) beyond this is treated as a stall or a timestamp jump. */
+    static final long RESYNC_THRESHOLD_NS = 1_000_000_000L;
+    private static final int MAX_CONSECUTIVE_DROPS = 4;
+    private static final long DEFAULT_FRAME_DURATION_US = 33_333L;
+    /** Below this, waits stop sleeping in bulk and park in short slices. */
+    private static final long COARSE_SLEEP_MARGIN_NS = 1_500_000L;
+    private static final long FINE_PARK_NS = 100_000L;
+
+    private final LatePolicy policy;
+    private final long dropThresholdNs;
+
+    private long anchorNs = -1;
+    private long loopOffsetUs;
+    private long loopFirstPtsUs = -1;
+    private long lastPositionUs;
+    private long lastPtsUs = -1;
+    private long frameDurationUs = DEFAULT_FRAME_DURATION_US;
+    private int consecutiveDrops;
+    private long lastDueNs;
+
+    private volatile long renderedFrames;
+    private volatile long droppedFrames;
+    private volatile long lateFrames;
+    private volatile long resyncs;
+    private volatile long loops;
+    private volatile long totalLatenessNs;
+    private volatile long maxLatenessNs;
+
+    public PresentationClock(LatePolicy policy, long dropThresholdNs) {
+        this.policy = policy;
+        this.dropThresholdNs = dropThresholdNs;
+    }
+
+    /** Forgets the timeline; the next frame becomes due immediately. Counters are kept. */
+    public void reset() {
+        anchorNs = -1;
+        loopOffsetUs = 0;
+        loopFirstPtsUs = -1;
+        lastPositionUs = 0;
+        lastPtsUs = -1;
+        consecutiveDrops = 0;
+    }
+
+    /** Continues the timeline into another pass of the clip, whose timestamps start over. */
+    public void startNextLoop() {
+        if (loopFirstPtsUs >= 0) {
+            loopOffsetUs = lastPositionUs + frameDurationUs;
+            loops++;
+        }
+        loopFirstPtsUs = -1;
+        lastPtsUs = -1;
+    }
+
+    /**
+     * Returns true, and counts a drop, if the frame with this timestamp is too late to show
+     * under the policy. Call before doing any work on the frame.
+     */
+    public boolean shouldDrop(long ptsUs) {
+        long latenessNs = System.nanoTime() - dueNs(ptsUs);
+        if (policy == LatePolicy.DROP_LATE && latenessNs > dropThresholdNs
+                && latenessNs < RESYNC_THRESHOLD_NS && consecutiveDrops < MAX_CONSECUTIVE_DROPS) {
+            consecutiveDrops++;
+            droppedFrames++;
+            return true;
+        }
+        return false;
+    }
+
+    /** Waits until the frame with this timestamp is due and records how late it ended up. */
+    public void awaitPresentation(long ptsUs) {
+        long due = dueNs(ptsUs);
+        long now = System.nanoTime();
+        if (due - now > RESYNC_THRESHOLD_NS || now - due > RESYNC_THRESHOLD_NS) {
+            // A timestamp jump or a long stall: restart the timeline at this frame.
+            anchorNs += now - due;
+            due = now;
+            resyncs++;
+        }
+        while (true) {
+            long remaining = due - now;
+            if (remaining <= 0 || Thread.currentThread().isInterrupted()) break;
+            LockSupport.parkNanos(remaining > COARSE_SLEEP_MARGIN_NS
+                    ? remaining - COARSE_SLEEP_MARGIN_NS / 2 : Math.min(remaining, FINE_PARK_NS));
+            now = System.nanoTime();
+        }
+        lastDueNs = due;
+        long lateness = Math.max(0, now - due);
+        consecutiveDrops = 0;
+        renderedFrames++;
+        totalLatenessNs += lateness;
+        if (lateness > maxLatenessNs) maxLatenessNs = lateness;
+        if (lateness > LATE_TOLERANCE_NS) lateFrames++;
+    }
+
+    private long dueNs(long ptsUs) {
+        if (loopFirstPtsUs < 0) loopFirstPtsUs = ptsUs;
+        if (lastPtsUs >= 0 && ptsUs > lastPtsUs) frameDurationUs = ptsUs - lastPtsUs;
+        lastPtsUs = Math.max(lastPtsUs, ptsUs);
+        long positionUs = loopOffsetUs + Math.max(0, ptsUs - loopFirstPtsUs);
+        lastPositionUs = Math.max(lastPositionUs, positionUs);
+        if (anchorNs < 0) anchorNs = System.nanoTime() - positionUs * 1000;
+        return anchorNs + positionUs * 1000;
+    }
+
+    /**
+     * Due time of the frame last passed to {@link #awaitPresentation}, on the continuous
+     * timeline; usable as a render timestamp that keeps increasing across loops.
+     */
+    public long lastDueNs() {
+        return lastDueNs;
+    }
+
+    public long renderedFrames() {
+        return renderedFrames;
+    }
+
+    public long droppedFrames() {
+        return droppedFrames;
+    }
+
+    /** Frames shown more than {@link #LATE_TOLERANCE_NS} after their due time. */
+    public long lateFrames() {
+        return lateFrames;
+    }
+
+    public long resyncs() {
+        return resyncs;
+    }
+
+    public long loops() {
+        return loops;
+    }
+
+    /** Mean time between a shown frame's due time and its release. */
+    public long meanDriftNs() {
+        long n = renderedFrames;
+        return n == 0 ? 0 : totalLatenessNs / n;
+    }
+
+    public long maxLatenessNs() {
+        return maxLatenessNs;
+    }
+
+    @Override
+    public String toString() {
+        return "rendered=" + renderedFrames + " dropped=" + droppedFrames + " late=" + lateFrames
+                + " resyncs=" + resyncs + " loops=" + loops
+                + " meanDriftUs=" + meanDriftNs() / 1000 + " maxLateUs=" + maxLatenessNs / 1000;
+    }
+}
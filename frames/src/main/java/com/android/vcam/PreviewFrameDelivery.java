@@ -0,0 +1,154 @@
+package com.android.vcam;
+
+import java.util.Arrays;
+
+/**
+ * Fills Camera1 preview callback buffers from a {@link FrameExchanger}: the newest decoded
+ * frame is scaled and centre-cropped to the preview size, waiting a bounded time for one newer
+ * than the last delivery. Frames decoded ahead of time into a {@link PrerollBuffer} are
+ * delivered first, in order. Before the decoder has produced anything the buffer is blanked so
+ * the real camera frame never leaks through. One instance per callback thread, like the
+ * {@link FrameExchanger.Reader} it wraps.
+ */
+public final class PreviewFrameDelivery {
+
+    public enum Result {
+        /** A frame not delivered before. */
+        FRESH,
+        /** No newer frame arrived in time; the previous one was delivered again. */
+        REPEAT,
+        /** Nothing has been decoded yet; the buffer was filled with black. */
+        BLANK
+    }
+
+    private final FrameExchanger.Reader reader;
+    private volatile Nv21Scaler scaler;
+    private volatile PrerollBuffer preroll;
+    private int prerollServed;
+    private volatile long startNs = -1;
+    private volatile long timeToFirstFrameNs = -1;
+
+    public PreviewFrameDelivery(FrameExchanger exchanger) {
+        reader = exchanger.newReader();
+    }
+
+    /**
+     * Sets the app's preview size; frames are copied unscaled until this is called. Call it
+     * again whenever the app changes the size, so later frames fit the new buffers.
+     */
+    public void setPreviewSize(int width, int height) {
+        Nv21Scaler s = scaler;
+        if (s != null && s.dstWidth() == width && s.dstHeight() == height) return;
+        scaler = new Nv21Scaler(width, height, Nv21Scaler.Filter.BILINEAR, Nv21Scaler.Fit.CENTER_CROP);
+    }
+
+    /**
+     * Delivers the frames of {@code preroll} before any from the exchanger, and releases it
+     * once they are used up. Set it before its decoder starts.
+     */
+    public void setPreroll(PrerollBuffer preroll) {
+        prerollServed = 0;
+        this.preroll = preroll;
+    }
+
+    /**
+     * Starts timing the first frame from {@code startNs}, a {@link System#nanoTime()} reading
+     * such as when the camera was set up; the first real delivery records
+     * {@link PipelineMetrics.Stage#FIRST_FRAME}.
+     */
+    public void startTiming(long startNs) {
+        timeToFirstFrameNs = -1;
+        this.startNs = startNs;
+    }
+
+    /** Time from {@link #startTiming} to the first frame delivered, or -1 if none was yet. */
+    public long timeToFirstFrameNs() {
+        return timeToFirstFrameNs;
+    }
+
+    /** Read handle, for the sequence and timestamp of the frame last delivered. */
+    public FrameExchanger.Reader reader() {
+        return reader;
+    }
+
+    /** Fills {@code dst}, parking up to {@code timeoutNs} for a frame newer than the last one. */
+    public Result deliver(byte[] dst, long timeoutNs) {
+        Nv21Scaler s = scaler;
+        if (s != null && dst.length < Nv21Scaler.frameSize(s.dstWidth(), s.dstHeight())) {
+            // Not an NV21 buffer of the preview size (another preview format); copy unscaled.
+            s = null;
+        }
+        long copyStartNs = System.nanoTime();
+        PrerollBuffer p = preroll;
+        if (p != null) {
+            Result result = deliverPreroll(p, dst, timeoutNs, s);
+            if (result != null) return delivered(result, copyStartNs);
+        }
+        if (!reader.read(dst, timeoutNs, s)) {
+            return delivered(blank(dst), copyStartNs);
+        }
+        return delivered(reader.isRepeat() ? Result.REPEAT : Result.FRESH, copyStartNs);
+    }
+
+    /** The next preroll frame, or null once the preroll is over and the exchanger takes over. */
+    private Result deliverPreroll(PrerollBuffer p, byte[] dst, long timeoutNs, Nv21Scaler s) {
+        if (prerollServed >= p.size() && !p.isFull()) {
+            try {
+                p.awaitMoreThan(prerollServed, timeoutNs);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (prerollServed < p.size()) {
+            p.read(prerollServed++, dst, s);
+            if (prerollServed == p.capacity()) finishPreroll(p);
+            return Result.FRESH;
+        }
+        if (prerollServed == 0) {
+            // The decoder is still starting; its first frames still go to the preroll.
+            return blank(dst);
+        }
+        // Delivery outran the preroll: show the last frame again and let pacing take over.
+        p.read(prerollServed - 1, dst, s);
+        finishPreroll(p);
+        return Result.REPEAT;
+    }
+
+    private void finishPreroll(PrerollBuffer p) {
+        // The decoder published the preroll frames too; only frames after them are new.
+        reader.skipPublished();
+        p.release();
+        preroll = null;
+    }
+
+    private static Result blank(byte[] dst) {
+        fillBlackNv21(dst);
+        return Result.BLANK;
+    }
+
+    private Result delivered(Result result, long copyStartNs) {
+        switch (result) {
+            case BLANK:
+                PipelineMetrics.increment(PipelineMetrics.Counter.FRAMES_BLANK);
+                return result;
+            case REPEAT:
+                PipelineMetrics.increment(PipelineMetrics.Counter.FRAMES_REPEATED);
+                break;
+            default:
+                break;
+        }
+        // Includes the wait for a newer frame, which is where a starved decoder shows up.
+        PipelineMetrics.recordSince(PipelineMetrics.Stage.CALLBACK_COPY, copyStartNs);
+        if (timeToFirstFrameNs < 0 && startNs >= 0) {
+            timeToFirstFrameNs = System.nanoTime() - startNs;
+            PipelineMetrics.record(PipelineMetrics.Stage.FIRST_FRAME, timeToFirstFrameNs);
+        }
+        return result;
+    }
+
+    static void fillBlackNv21(byte[] dst) {
+        int lumaSize = dst.length * 2 / 3;
+        Arrays.fill(dst, 0, lumaSize, (byte) 16);
+        Arrays.fill(dst, lumaSize, dst.length, (byte) 128);
+    }
+}
@@ -0,0 +1,246 @@
+package com.android.vcam;
+
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Converts packed ARGB pixels (as returned by {@code Bitmap.getPixels}) into a 4:2:0 YUV frame.
+ * Per-channel coefficient products come from lookup tables built once per instance, and chroma
+ * is computed once per 2x2 block from the block's average colour. Large images are converted
+ * in row stripes on {@link FrameWorkers#pool()}.
+ *
+ * <p>An instance holds no per-call state, so it can be shared between threads.
+ */
+public final class RgbToYuvConverter {
+
+    public enum Matrix {
+        BT601(0.299, 0.114),
+        BT709(0.2126, 0.0722);
+
+        final double kr;
+        final double kb;
+
+        Matrix(double kr, double kb) {
+            this.kr = kr;
+            this.kb = kb;
+        }
+    }
+
+    public enum Range {
+        /** Y in 16..235, chroma in 16..240, as camera preview and capture buffers use. */
+        LIMITED,
+        /** All channels in 0..255 (JFIF). */
+        FULL
+    }
+
+    private static final int SHIFT = 16;
+    private static final int HALF = 1 << (SHIFT - 1);
+    /** Below this many pixels the fork/join hand-off costs more than it saves. */
+    private static final int PARALLEL_MIN_PIXELS = 1024 * 1024;
+
+    private final Matrix matrix;
+    private final Range range;
+    private final YuvPlaneConverter.OutputFormat format;
+    private final int[] yr = new int[256];
+    private final int[] yg = new int[256];
+    private final int[] yb = new int[256];
+    private final int[] ur = new int[256];
+    private final int[] ug = new int[256];
+    private final int[] ub = new int[256];
+    private final int[] vr = new int[256];
+    private final int[] vg = new int[256];
+    private final int[] vb = new int[256];
+    private final int yOffset;
+    private final int yMin;
+    private final int yMax;
+    private final int cMin;
+    private final int cMax;
+
+    public RgbToYuvConverter(Matrix matrix, Range range, YuvPlaneConverter.OutputFormat format) {
+        this.matrix = matrix;
+        this.range = range;
+        this.format = format;
+        double kr = matrix.kr;
+        double kb = matrix.kb;
+        double kg = 1.0 - kr - kb;
+        boolean limited = range == Range.LIMITED;
+        double yScale = limited ? 219.0 / 255.0 : 1.0;
+        double cScale = limited ? 224.0 / 255.0 : 1.0;
+        // Cb = (B - Y) / (2 (1 - Kb)), Cr = (R - Y) / (2 (1 - Kr)), expanded per channel.
+        double cb = cScale / (2.0 * (1.0 - kb));
+        double cr = cScale / (2.0 * (1.0 - kr));
+        for (int i = 0; i < 256; i++) {
+            yr[i] = fixed(kr * yScale * i);
+            yg[i] = fixed(kg * yScale * i);
+            yb[i] = fixed(kb * yScale * i);
+            ur[i] = fixed(-kr * cb * i);
+            ug[i] = fixed(-kg * cb * i);
+            ub[i] = fixed((1.0 - kb) * cb * i);
+            vr[i] = fixed((1.0 - kr) * cr * i);
+            vg[i] = fixed(-kg * cr * i);
+            vb[i] = fixed(-kb * cr * i);
+        }
+        yOffset = ((limited ? 16 : 0) << SHIFT) + HALF;
+        yMin = limited ? 16 : 0;
+        yMax = limited ? 235 : 255;
+        cMin = limited ? 16 : 0;
+        cMax = limited ? 240 : 255;
+    }
+
+    private static int fixed(double value) {
+        return (int) Math.round(value * (1 << SHIFT));
+    }
+
+    public Matrix matrix() {
+        return matrix;
+    }
+
+    public Range range() {
+        return range;
+    }
+
+    public YuvPlaneConverter.OutputFormat format() {
+        return format;
+    }
+
+    /** Converts a tightly packed image into a new frame of {@link YuvPlaneConverter#frameSize} bytes. */
+    public byte[] convert(int[] argb, int width, int height) {
+        byte[] dst = new byte[YuvPlaneConverter.frameSize(width, height)];
+        convert(argb, 0, width, width, height, dst);
+        return dst;
+    }
+
+    /**
+     * Converts {@code width x height} pixels starting at {@code offset}, {@code stride} ints per
+     * row, into {@code dst}. Odd trailing rows and columns get luma only, matching the 4:2:0
+     * frame size used elsewhere.
+     */
+    public void convert(int[] argb, int offset, int stride, int width, int height, byte[] dst) {
+        int size = YuvPlaneConverter.frameSize(width, height);
+        if (dst.length < size) {
+            throw new IllegalArgumentException("destination holds " + dst.length + " bytes, need " + size);
+        }
+        int blockRows = (height + 1) / 2;
+        int stripes = (long) width * height >= PARALLEL_MIN_PIXELS ? Math.min(FrameWorkers.parallelism(), blockRows) : 1;
+        if (stripes <= 1) {
+            convertBlockRows(argb, offset, stride, width, height, dst, 0, blockRows);
+            return;
+        }
+        Stripe[] tasks = new Stripe[stripes];
+        for (int i = 0; i < stripes; i++) {
+            tasks[i] = new Stripe(argb, offset, stride, width, height, dst,
+                    blockRows * i / stripes, blockRows * (i + 1) / stripes);
+        }
+        FrameWorkers.pool().invoke(new RecursiveAction() {
+            @Override
+            protected void compute() {
+                invokeAll(tasks);
+            }
+        });
+    }
+
+    /** Converts the row pairs {@code [blockStart, blockEnd)}. */
+    private void convertBlockRows(int[] argb, int offset, int stride, int width, int height, byte[] dst,
+                                  int blockStart, int blockEnd) {
+        int chromaWidth = width / 2;
+        int chromaHeight = height / 2;
+        int chromaBase = width * height;
+        int planeSize = chromaWidth * chromaHeight;
+        boolean semiPlanar = format == YuvPlaneConverter.OutputFormat.NV21 || format == YuvPlaneConverter.OutputFormat.NV12;
+        boolean vFirst = format == YuvPlaneConverter.OutputFormat.NV21 || format == YuvPlaneConverter.OutputFormat.YV12;
+        for (int block = blockStart; block < blockEnd; block++) {
+            int row0 = block * 2;
+            int row1 = row0 + 1;
+            int src0 = offset + row0 * stride;
+            int src1 = offset + row1 * stride;
+            int out0 = row0 * width;
+            int out1 = row1 * width;
+            boolean pair = row1 < height;
+            boolean chroma = block < chromaHeight;
+            int uPos;
+            int vPos;
+            int step;
+            if (semiPlanar) {
+                int rowStart = chromaBase + block * chromaWidth * 2;
+                vPos = vFirst ? rowStart : rowStart + 1;
+                uPos = vFirst ? rowStart + 1 : rowStart;
+                step = 2;
+            } else {
+                int rowStart = chromaBase + block * chromaWidth;
+                vPos = vFirst ? rowStart : rowStart + planeSize;
+                uPos = vFirst ? rowStart + planeSize : rowStart;
+                step = 1;
+            }
+            int x = 0;
+            for (; x + 1 < width; x += 2) {
+                int p00 = argb[src0 + x];
+                int p01 = argb[src0 + x + 1];
+                dst[out0 + x] = luma(p00);
+                dst[out0 + x + 1] = luma(p01);
+                int r = ((p00 >> 16) & 0xFF) + ((p01 >> 16) & 0xFF);
+                int g = ((p00 >> 8) & 0xFF) + ((p01 >> 8) & 0xFF);
+                int b = (p00 & 0xFF) + (p01 & 0xFF);
+                if (pair) {
+                    int p10 = argb[src1 + x];
+                    int p11 = argb[src1 + x + 1];
+                    dst[out1 + x] = luma(p10);
+                    dst[out1 + x + 1] = luma(p11);
+                    r += ((p10 >> 16) & 0xFF) + ((p11 >> 16) & 0xFF);
+                    g += ((p10 >> 8) & 0xFF) + ((p11 >> 8) & 0xFF);
+                    b += (p10 & 0xFF) + (p11 & 0xFF);
+                }
+                if (chroma) {
+                    // A full block always exists here: chroma rows only cover complete row pairs.
+                    r = (r + 2) >> 2;
+                    g = (g + 2) >> 2;
+                    b = (b + 2) >> 2;
+                    dst[uPos] = clamp((ur[r] + ug[g] + ub[b] + (128 << SHIFT) + HALF) >> SHIFT, cMin, cMax);
+                    dst[vPos] = clamp((vr[r] + vg[g] + vb[b] + (128 << SHIFT) + HALF) >> SHIFT, cMin, cMax);
+                    uPos += step;
+                    vPos += step;
+                }
+            }
+            if (x < width) {
+                dst[out0 + x] = luma(argb[src0 + x]);
+                if (pair) dst[out1 + x] = luma(argb[src1 + x]);
+            }
+        }
+    }
+
+    private byte luma(int pixel) {
+        int y = (yr[(pixel >> 16) & 0xFF] + yg[(pixel >> 8) & 0xFF] + yb[pixel & 0xFF] + yOffset) >> SHIFT;
+        return clamp(y, yMin, yMax);
+    }
+
+    private static byte clamp(int value, int min, int max) {
+        return (byte) (value < min ? min : (value > max ? max : value));
+    }
+
+    private final class Stripe extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int[] argb;
+        private final int offset;
+        private final int stride;
+        private final int width;
+        private final int height;
+        private final byte[] dst;
+        private final int blockStart;
+        private final int blockEnd;
+
+        Stripe(int[] argb, int offset, int stride, int width, int height, byte[] dst, int blockStart, int blockEnd) {
+            this.argb = argb;
+            this.offset = offset;
+            this.stride = stride;
+            this.width = width;
+            this.height = height;
+            this.dst = dst;
+            this.blockStart = blockStart;
+            this.blockEnd = blockEnd;
+        }
+
+        @Override
+        protected void compute() {
+            convertBlockRows(argb, offset, stride, width, height, dst, blockStart, blockEnd);
+        }
+    }
+}
@@ -0,0 +1,427 @@
+package com.android.vcam;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Converts YUV_420_888 planes (as exposed by {@code Image.getPlanes()}) into a packed NV21,
+ * NV12, I420 or YV12 frame. The chroma kernel is picked once per session from the observed
+ * plane layout:
+ * <ul>
+ * <li>planar chroma (pixel stride 1) is copied a row at a time;</li>
+ * <li>semi-planar chroma whose U and V planes are views of one interleaved buffer is copied
+ * as whole interleaved rows, swapping or splitting pairs only when the output order differs;</li>
+ * <li>anything else goes through a strided gather from a bulk-read row.</li>
+ * </ul>
+ * Luma rows are always bulk copies. An instance is not thread-safe; large frames can be split
+ * into row stripes converted in parallel on {@link FrameWorkers#pool()}.
+ */
+public final class YuvPlaneConverter {
+
+    public enum OutputFormat {
+        NV21,
+        NV12,
+        I420,
+        YV12
+    }
+
+    public enum ChromaKernel {
+        /** U and V are separate planes with pixel stride 1. */
+        PLANAR,
+        /** U and V share one buffer laid out VUVU...; the V plane view leads. */
+        INTERLEAVED_VU,
+        /** U and V share one buffer laid out UVUV...; the U plane view leads. */
+        INTERLEAVED_UV,
+        /** Any other layout. */
+        STRIDED
+    }
+
+    /** Frames probed for an interleaved layout before settling on the strided kernel. */
+    private static final int MAX_LAYOUT_PROBES = 30;
+    private static final int PROBE_SAMPLES = 64;
+    /** Probe samples whose U and V differ, needed before trusting an interleave match. */
+    private static final int MIN_INFORMATIVE_SAMPLES = 8;
+
+    /**
+     * One frame's planes. Fill the fields, then call {@link #convert}; the holder can be reused
+     * for every frame. Limits are those of the plane buffers as handed out by the codec.
+     */
+    public static final class Planes {
+        public ByteBuffer y;
+        public ByteBuffer u;
+        public ByteBuffer v;
+        public int yRowStride;
+        public int uRowStride;
+        public int uPixelStride;
+        public int vRowStride;
+        public int vPixelStride;
+        public int cropLeft;
+        public int cropTop;
+        public int width;
+        public int height;
+    }
+
+    private final OutputFormat format;
+    private int stripes = 1;
+
+    private ChromaKernel kernel;
+    private boolean kernelFinal;
+    private int probesLeft = MAX_LAYOUT_PROBES;
+    private int layoutUPixelStride = -1;
+    private int layoutVPixelStride = -1;
+    private int layoutURowStride = -1;
+    private int layoutVRowStride = -1;
+
+    private Worker[] workers = { new Worker() };
+    private StripeTask[] tasks;
+    private final StripeRoot root = new StripeRoot();
+
+    public YuvPlaneConverter(OutputFormat format) {
+        this.format = format;
+    }
+
+    /** Bytes in a packed 4:2:0 frame of the given size. */
+    public static int frameSize(int width, int height) {
+        return width * height + 2 * (width / 2) * (height / 2);
+    }
+
+    public OutputFormat format() {
+        return format;
+    }
+
+    /** Splits each frame into {@code stripes} row bands converted in parallel; 1 disables it. */
+    public void setStripes(int stripes) {
+        this.stripes = Math.max(1, stripes);
+        if (this.stripes > 1 && (tasks == null || tasks.length != this.stripes)) {
+            workers = new Worker[this.stripes];
+            tasks = new StripeTask[this.stripes];
+            for (int i = 0; i < this.stripes; i++) {
+                workers[i] = new Worker();
+                tasks[i] = new StripeTask(workers[i]);
+            }
+        }
+    }
+
+    /** Kernel chosen for the current layout, or null before the first frame. */
+    public ChromaKernel kernel() {
+        return kernel;
+    }
+
+    /**
+     * Converts {@code p} into {@code dst}, starting at position 0 and leaving the buffer
+     * cleared. {@code dst} needs {@link #frameSize} bytes.
+     */
+    public void convert(Planes p, ByteBuffer dst) {
+        selectKernel(p);
+        int chromaHeight = p.height / 2;
+        if (stripes == 1) {
+            workers[0].bind(p, dst, false);
+            workers[0].convertRows(0, p.height, 0, chromaHeight);
+        } else {
+            for (int i = 0; i < stripes; i++) {
+                // Chroma bands cover whole luma row pairs so each stripe stays independent.
+                int c0 = chromaHeight * i / stripes;
+                int c1 = chromaHeight * (i + 1) / stripes;
+                int y0 = i == 0 ? 0 : c0 * 2;
+                int y1 = i == stripes - 1 ? p.height : c1 * 2;
+                tasks[i].reinitialize();
+                tasks[i].set(p, dst, y0, y1, c0, c1);
+            }
+            root.reinitialize();
+            FrameWorkers.pool().invoke(root);
+        }
+        dst.clear();
+    }
+
+    /**
+     * The reverse of {@link #convert}: writes the packed NV21 frame {@code nv21}, of
+     * {@code p.width} x {@code p.height}, into the planes of {@code p} (for instance an
+     * ImageWriter's input image), honouring their strides and crop. Positions of the plane
+     * buffers are left unchanged.
+     */
+    public static void writeNv21(byte[] nv21, Planes p) {
+        int width = p.width;
+        int height = p.height;
+        ByteBuffer y = p.y.duplicate();
+        for (int row = 0; row < height; row++) {
+            y.position((p.cropTop + row) * p.yRowStride + p.cropLeft);
+            y.put(nv21, row * width, width);
+        }
+        int chromaWidth = width / 2;
+        int chromaHeight = height / 2;
+        int vu = width * height;
+        for (int row = 0; row < chromaHeight; row++) {
+            int uPos = chromaOffset(row, 0, p.cropLeft, p.cropTop, p.uRowStride, p.uPixelStride);
+            int vPos = chromaOffset(row, 0, p.cropLeft, p.cropTop, p.vRowStride, p.vPixelStride);
+            for (int col = 0; col < chromaWidth; col++, vu += 2) {
+                p.v.put(vPos + col * p.vPixelStride, nv21[vu]);
+                p.u.put(uPos + col * p.uPixelStride, nv21[vu + 1]);
+            }
+        }
+    }
+
+    private void selectKernel(Planes p) {
+        if (p.uPixelStride != layoutUPixelStride || p.vPixelStride != layoutVPixelStride
+                || p.uRowStride != layoutURowStride || p.vRowStride != layoutVRowStride) {
+            layoutUPixelStride = p.uPixelStride;
+            layoutVPixelStride = p.vPixelStride;
+            layoutURowStride = p.uRowStride;
+            layoutVRowStride = p.vRowStride;
+            kernel = null;
+            kernelFinal = false;
+            probesLeft = MAX_LAYOUT_PROBES;
+        }
+        if (kernelFinal) return;
+        if (p.uPixelStride == 1 && p.vPixelStride == 1) {
+            kernel = ChromaKernel.PLANAR;
+            kernelFinal = true;
+        } else if (p.uPixelStride == 2 && p.vPixelStride == 2 && p.uRowStride == p.vRowStride && p.width >= 4) {
+            ChromaKernel probed = probeInterleave(p);
+            if (probed != null) {
+                kernel = probed;
+                kernelFinal = true;
+            } else {
+                kernel = ChromaKernel.STRIDED;
+                kernelFinal = --probesLeft <= 0;
+            }
+        } else {
+            kernel = ChromaKernel.STRIDED;
+            kernelFinal = true;
+        }
+    }
+
+    /**
+     * Checks whether the U and V views overlap as one interleaved buffer by comparing each
+     * sample with the byte next to its partner. Returns null while the frame can't tell
+     * (flat chroma), so a later frame can decide.
+     */
+    private static ChromaKernel probeInterleave(Planes p) {
+        int chromaWidth = p.width / 2;
+        int chromaHeight = p.height / 2;
+        int informative = 0;
+        boolean uvMatches = true;
+        boolean vuMatches = true;
+        int uLimit = p.u.limit();
+        int vLimit = p.v.limit();
+        for (int i = 0; i < PROBE_SAMPLES; i++) {
+            int row = (int) ((long) chromaHeight * i / PROBE_SAMPLES);
+            // Stay off the last column: its partner byte may lie past the view's limit.
+            int col = (int) ((i * 7919L) % (chromaWidth - 1));
+            int uIndex = chromaOffset(row, col, p.cropLeft, p.cropTop, p.uRowStride, 2);
+            int vIndex = chromaOffset(row, col, p.cropLeft, p.cropTop, p.vRowStride, 2);
+            if (uIndex + 1 >= uLimit || vIndex + 1 >= vLimit) return null;
+            byte u = p.u.get(uIndex);
+            byte v = p.v.get(vIndex);
+            if (u != v) informative++;
+            uvMatches &= p.u.get(uIndex + 1) == v;
+            vuMatches &= p.v.get(vIndex + 1) == u;
+        }
+        if (informative < MIN_INFORMATIVE_SAMPLES || (uvMatches && vuMatches)) return null;
+        if (uvMatches) return ChromaKernel.INTERLEAVED_UV;
+        if (vuMatches) return ChromaKernel.INTERLEAVED_VU;
+        return ChromaKernel.STRIDED;
+    }
+
+    private static int chromaOffset(int row, int col, int cropLeft, int cropTop, int rowStride, int pixelStride) {
+        return ((cropTop >> 1) + row) * rowStride + ((cropLeft >> 1) + col) * pixelStride;
+    }
+
+    /** Row-range converter with its own scratch rows and buffer views. */
+    private final class Worker {
+        private ByteBuffer y;
+        private ByteBuffer u;
+        private ByteBuffer v;
+        private ByteBuffer dst;
+        private int yLimit;
+        private int uLimit;
+        private int vLimit;
+        private Planes p;
+        private byte[] rowA = new byte[0];
+        private byte[] rowB = new byte[0];
+        private byte[] rowOut = new byte[0];
+
+        void bind(Planes planes, ByteBuffer out, boolean duplicate) {
+            p = planes;
+            y = duplicate ? planes.y.duplicate() : planes.y;
+            u = duplicate ? planes.u.duplicate() : planes.u;
+            v = duplicate ? planes.v.duplicate() : planes.v;
+            dst = duplicate ? out.duplicate() : out;
+            yLimit = planes.y.limit();
+            uLimit = planes.u.limit();
+            vLimit = planes.v.limit();
+            int chromaRow = Math.max(planes.uRowStride, planes.vRowStride);
+            if (rowA.length < chromaRow || rowOut.length < planes.width) {
+                rowA = new byte[Math.max(chromaRow, planes.width)];
+                rowB = new byte[Math.max(chromaRow, planes.width)];
+                rowOut = new byte[Math.max(chromaRow, planes.width)];
+            }
+        }
+
+        void convertRows(int lumaStart, int lumaEnd, int chromaStart, int chromaEnd) {
+            int width = p.width;
+            if (p.yRowStride == width && p.cropLeft == 0) {
+                int start = (p.cropTop + lumaStart) * width;
+                copy(y, yLimit, start, (lumaEnd - lumaStart) * width, lumaStart * width);
+            } else {
+                for (int row = lumaStart; row < lumaEnd; row++) {
+                    copy(y, yLimit, (p.cropTop + row) * p.yRowStride + p.cropLeft, width, row * width);
+                }
+            }
+            int chromaWidth = width / 2;
+            int chromaHeight = p.height / 2;
+            int chromaBase = width * p.height;
+            int planeSize = chromaWidth * chromaHeight;
+            for (int row = chromaStart; row < chromaEnd; row++) {
+                int uPos = chromaOffset(row, 0, p.cropLeft, p.cropTop, p.uRowStride, p.uPixelStride);
+                int vPos = chromaOffset(row, 0, p.cropLeft, p.cropTop, p.vRowStride, p.vPixelStride);
+                switch (format) {
+                    case NV21:
+                        interleavedRow(vPos, uPos, true, chromaBase + row * chromaWidth * 2, chromaWidth);
+                        break;
+                    case NV12:
+                        interleavedRow(vPos, uPos, false, chromaBase + row * chromaWidth * 2, chromaWidth);
+                        break;
+                    case I420:
+                        planarRow(uPos, vPos, chromaBase + row * chromaWidth,
+                                chromaBase + planeSize + row * chromaWidth, chromaWidth);
+                        break;
+                    case YV12:
+                        planarRow(uPos, vPos, chromaBase + planeSize + row * chromaWidth,
+                                chromaBase + row * chromaWidth, chromaWidth);
+                        break;
+                }
+            }
+        }
+
+        /** Writes one chroma row as VU pairs ({@code vFirst}) or UV pairs. */
+        private void interleavedRow(int vPos, int uPos, boolean vFirst, int dstPos, int chromaWidth) {
+            int pairBytes = chromaWidth * 2;
+            switch (kernel) {
+                case INTERLEAVED_VU:
+                case INTERLEAVED_UV: {
+                    boolean memoryVFirst = kernel == ChromaKernel.INTERLEAVED_VU;
+                    ByteBuffer lead = memoryVFirst ? v : u;
+                    ByteBuffer tail = memoryVFirst ? u : v;
+                    int leadPos = memoryVFirst ? vPos : uPos;
+                    int tailPos = memoryVFirst ? uPos : vPos;
+                    if (memoryVFirst == vFirst) {
+                        // Memory order already matches: one bulk copy plus the last partner byte.
+                        copy(lead, memoryVFirst ? vLimit : uLimit, leadPos, pairBytes - 1, dstPos);
+                        dst.put(dstPos + pairBytes - 1, tail.get(tailPos + pairBytes - 2));
+                    } else {
+                        read(lead, memoryVFirst ? vLimit : uLimit, leadPos, pairBytes - 1, rowA);
+                        rowA[pairBytes - 1] = tail.get(tailPos + pairBytes - 2);
+                        for (int i = 0; i < pairBytes; i += 2) {
+                            rowOut[i] = rowA[i + 1];
+                            rowOut[i + 1] = rowA[i];
+                        }
+                        write(rowOut, pairBytes, dstPos);
+                    }
+                    break;
+                }
+                default: {
+                    byte[] us = gather(u, uLimit, uPos, p.uPixelStride, chromaWidth, rowA);
+                    byte[] vs = gather(v, vLimit, vPos, p.vPixelStride, chromaWidth, rowB);
+                    byte[] first = vFirst ? vs : us;
+                    byte[] second = vFirst ? us : vs;
+                    for (int i = 0, o = 0; i < chromaWidth; i++, o += 2) {
+                        rowOut[o] = first[i];
+                        rowOut[o + 1] = second[i];
+                    }
+                    write(rowOut, pairBytes, dstPos);
+                    break;
+                }
+            }
+        }
+
+        private void planarRow(int uPos, int vPos, int uDst, int vDst, int chromaWidth) {
+            if (kernel == ChromaKernel.PLANAR) {
+                copy(u, uLimit, uPos, chromaWidth, uDst);
+                copy(v, vLimit, vPos, chromaWidth, vDst);
+                return;
+            }
+            if (kernel == ChromaKernel.INTERLEAVED_VU || kernel == ChromaKernel.INTERLEAVED_UV) {
+                boolean memoryVFirst = kernel == ChromaKernel.INTERLEAVED_VU;
+                int pairBytes = chromaWidth * 2;
+                read(memoryVFirst ? v : u, memoryVFirst ? vLimit : uLimit, memoryVFirst ? vPos : uPos, pairBytes - 1, rowA);
+                rowA[pairBytes - 1] = memoryVFirst ? u.get(uPos + pairBytes - 2) : v.get(vPos + pairBytes - 2);
+                int uOffset = memoryVFirst ? 1 : 0;
+                for (int i = 0; i < chromaWidth; i++) {
+                    rowB[i] = rowA[2 * i + uOffset];
+                    rowOut[i] = rowA[2 * i + 1 - uOffset];
+                }
+                write(rowB, chromaWidth, uDst);
+                write(rowOut, chromaWidth, vDst);
+                return;
+            }
+            write(gather(u, uLimit, uPos, p.uPixelStride, chromaWidth, rowA), chromaWidth, uDst);
+            write(gather(v, vLimit, vPos, p.vPixelStride, chromaWidth, rowB), chromaWidth, vDst);
+        }
+
+        /** Packs every {@code pixelStride}-th byte of a row into the front of {@code scratch}. */
+        private byte[] gather(ByteBuffer src, int limit, int pos, int pixelStride, int count, byte[] scratch) {
+            int length = (count - 1) * pixelStride + 1;
+            read(src, limit, pos, length, scratch);
+            if (pixelStride == 1) return scratch;
+            for (int i = 0, j = 0; i < count; i++, j += pixelStride) {
+                scratch[i] = scratch[j];
+            }
+            return scratch;
+        }
+
+        private void copy(ByteBuffer src, int limit, int pos, int length, int dstPos) {
+            src.limit(limit);
+            src.position(pos);
+            src.limit(pos + length);
+            dst.position(dstPos);
+            dst.put(src);
+        }
+
+        private void read(ByteBuffer src, int limit, int pos, int length, byte[] out) {
+            src.limit(limit);
+            src.position(pos);
+            src.get(out, 0, length);
+        }
+
+        private void write(byte[] row, int length, int dstPos) {
+            dst.position(dstPos);
+            dst.put(row, 0, length);
+        }
+    }
+
+    private final class StripeTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Worker worker;
+        private int lumaStart;
+        private int lumaEnd;
+        private int chromaStart;
+        private int chromaEnd;
+
+        StripeTask(Worker worker) {
+            this.worker = worker;
+        }
+
+        void set(Planes p, ByteBuffer dst, int lumaStart, int lumaEnd, int chromaStart, int chromaEnd) {
+            worker.bind(p, dst, true);
+            this.lumaStart = lumaStart;
+            this.lumaEnd = lumaEnd;
+            this.chromaStart = chromaStart;
+            this.chromaEnd = chromaEnd;
+        }
+
+        @Override
+        protected void compute() {
+            worker.convertRows(lumaStart, lumaEnd, chromaStart, chromaEnd);
+        }
+    }
+
+    private final class StripeRoot extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected void compute() {
+            invokeAll(tasks);
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package com.android.vcam.sim;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Stand-in for {@code android.hardware.Camera} in setPreviewCallbackWithBuffer mode. A sensor
+ * thread produces frames at the preview rate into buffers the app has queued with
+ * {@link #addCallbackBuffer} (with none free the frame is lost, as on a device); a callback
+ * thread, the app's looper, runs the module hook and then the app's
+ * {@link PreviewCallback}, one frame at a time.
+ */
+final class FakeCamera {
+
+    interface PreviewCallback {
+        void onPreviewFrame(byte[] data, FakeCamera camera);
+    }
+
+    private final int width;
+    private final int height;
+    private final long framePeriodNs;
+    private final FrameHook hook;
+    private final StreamStats stats;
+    private final BlockingQueue<byte[]> freeBuffers;
+    private final BlockingQueue<byte[]> filled = new LinkedBlockingQueue<>();
+
+    private volatile PreviewCallback callback;
+    private volatile boolean previewing;
+    private Thread sensor;
+    private Thread looper;
+
+    FakeCamera(int width, int height, int fps, int maxBuffers, FrameHook hook, StreamStats stats) {
+        this.width = width;
+        this.height = height;
+        this.framePeriodNs = TimeUnit.SECONDS.toNanos(1) / fps;
+        this.hook = hook;
+        this.stats = stats;
+        freeBuffers = new ArrayBlockingQueue<>(maxBuffers);
+    }
+
+    int previewWidth() {
+        return width;
+    }
+
+    int previewHeight() {
+        return height;
+    }
+
+    void setPreviewCallbackWithBuffer(PreviewCallback cb) {
+        callback = cb;
+    }
+
+    void addCallbackBuffer(byte[] buffer) {
+        freeBuffers.offer(buffer);
+    }
+
+    void startPreview() {
+        previewing = true;
+        sensor = new Thread(this::sensorLoop, "sim-camera1-sensor");
+        looper = new Thread(this::callbackLoop, "sim-camera1-callback");
+        sensor.start();
+        looper.start();
+    }
+
+    void stopPreview() throws InterruptedException {
+        previewing = false;
+        sensor.join();
+        looper.interrupt();
+        looper.join();
+    }
+
+    private void sensorLoop() {
+        long next = System.nanoTime();
+        while (previewing) {
+            next += framePeriodNs;
+            long waitNs;
+            while ((waitNs = next - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(waitNs);
+            }
+            stats.sensorFrames.incrementAndGet();
+            byte[] buffer = freeBuffers.poll();
+            if (buffer == null) {
+                stats.noBuffer.incrementAndGet();
+            } else {
+                filled.offer(buffer);
+            }
+        }
+    }
+
+    private void callbackLoop() {
+        try {
+            while (previewing || !filled.isEmpty()) {
+                byte[] data = filled.poll(framePeriodNs, TimeUnit.NANOSECONDS);
+                if (data == null) continue;
+                // Xposed runs the module's beforeHookedMethod on this thread, right before the app.
+                long decodedNs = hook.fill(data);
+                stats.received(decodedNs);
+                PreviewCallback cb = callback;
+                if (cb != null) {
+                    cb.onPreviewFrame(data, this);
+                } else {
+                    addCallbackBuffer(data);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
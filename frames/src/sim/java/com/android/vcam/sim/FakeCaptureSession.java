@@ -0,0 +1,84 @@
+package com.android.vcam.sim;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Stand-in for a Camera2 capture session with a repeating request. Each sensor period every
+ * target of the current request gets a frame: the module hook fills a free image of that
+ * target (with the app holding all of them the frame is lost, as with a full ImageReader)
+ * and the target's listener thread hands it to the app.
+ */
+final class FakeCaptureSession {
+
+    /** Stand-in for {@code CaptureRequest.Builder}: the targets are all that matter here. */
+    static final class RequestBuilder {
+        private final List<FakeImageReader> targets = new ArrayList<>();
+
+        RequestBuilder addTarget(FakeImageReader target) {
+            if (!targets.contains(target)) targets.add(target);
+            return this;
+        }
+
+        RequestBuilder removeTarget(FakeImageReader target) {
+            targets.remove(target);
+            return this;
+        }
+
+        Request build() {
+            return new Request(new ArrayList<>(targets));
+        }
+    }
+
+    static final class Request {
+        final List<FakeImageReader> targets;
+
+        private Request(List<FakeImageReader> targets) {
+            this.targets = Collections.unmodifiableList(targets);
+        }
+    }
+
+    private final long framePeriodNs;
+    private volatile Request repeating;
+    private volatile boolean running;
+    private Thread sensor;
+
+    FakeCaptureSession(int fps) {
+        framePeriodNs = TimeUnit.SECONDS.toNanos(1) / fps;
+    }
+
+    void setRepeatingRequest(Request request) {
+        repeating = request;
+        if (!running) {
+            running = true;
+            sensor = new Thread(this::sensorLoop, "sim-camera2-sensor");
+            sensor.start();
+        }
+    }
+
+    void close() throws InterruptedException {
+        running = false;
+        if (sensor != null) sensor.join();
+        Request request = repeating;
+        if (request != null) {
+            for (FakeImageReader target : request.targets) target.close();
+        }
+    }
+
+    private void sensorLoop() {
+        long next = System.nanoTime();
+        while (running) {
+            next += framePeriodNs;
+            long waitNs;
+            while ((waitNs = next - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(waitNs);
+            }
+            for (FakeImageReader target : repeating.targets) {
+                target.produce();
+            }
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package com.android.vcam.sim;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stand-in for an {@code ImageReader} target: {@code maxImages} NV21 images, filled by the
+ * module hook on the session thread and handed to the app's listener on the reader's own
+ * thread. The app closes an image to make it reusable.
+ */
+final class FakeImageReader {
+
+    interface OnImageAvailableListener {
+        void onImageAvailable(Image image);
+    }
+
+    static final class Image {
+        final byte[] data;
+        long decodedNs;
+        private final FakeImageReader owner;
+
+        private Image(FakeImageReader owner, byte[] data) {
+            this.owner = owner;
+            this.data = data;
+        }
+
+        void close() {
+            owner.free.offer(this);
+        }
+    }
+
+    private final int width;
+    private final int height;
+    private final FrameHook hook;
+    private final StreamStats stats;
+    private final BlockingQueue<Image> free;
+    private final BlockingQueue<Image> queued = new LinkedBlockingQueue<>();
+    private final Thread handler;
+    private volatile OnImageAvailableListener listener;
+    private volatile boolean open = true;
+
+    FakeImageReader(int width, int height, int maxImages, FrameHook hook, StreamStats stats) {
+        this.width = width;
+        this.height = height;
+        this.hook = hook;
+        this.stats = stats;
+        free = new ArrayBlockingQueue<>(maxImages);
+        int size = width * height * 3 / 2;
+        for (int i = 0; i < maxImages; i++) {
+            free.offer(new Image(this, new byte[size]));
+        }
+        handler = new Thread(this::handlerLoop, "sim-imagereader-" + width + "x" + height);
+        handler.start();
+    }
+
+    int width() {
+        return width;
+    }
+
+    int height() {
+        return height;
+    }
+
+    void setOnImageAvailableListener(OnImageAvailableListener l) {
+        listener = l;
+    }
+
+    /** Called by the session each sensor period. */
+    void produce() {
+        stats.sensorFrames.incrementAndGet();
+        Image image = free.poll();
+        if (image == null) {
+            stats.noBuffer.incrementAndGet();
+            return;
+        }
+        image.decodedNs = hook.fill(image.data);
+        queued.offer(image);
+    }
+
+    void close() throws InterruptedException {
+        open = false;
+        handler.interrupt();
+        handler.join();
+    }
+
+    private void handlerLoop() {
+        try {
+            while (open) {
+                Image image = queued.poll(100, TimeUnit.MILLISECONDS);
+                if (image == null) continue;
+                stats.received(image.decodedNs);
+                OnImageAvailableListener l = listener;
+                if (l != null) {
+                    l.onImageAvailable(image);
+                } else {
+                    image.close();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
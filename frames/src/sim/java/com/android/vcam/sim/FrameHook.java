@@ -0,0 +1,11 @@
+package com.android.vcam.sim;
+
+/** Where the module's code runs for each camera frame: it overwrites the frame's contents. */
+interface FrameHook {
+
+    /**
+     * Fills {@code dst} the way the module does and returns when the frame put there left the
+     * decoder, or 0 if the buffer was blanked.
+     */
+    long fill(byte[] dst);
+}
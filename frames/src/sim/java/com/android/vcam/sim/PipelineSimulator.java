@@ -0,0 +1,194 @@
+package com.android.vcam.sim;
+
+import com.android.vcam.FrameBufferPool;
+import com.android.vcam.FrameExchanger;
+import com.android.vcam.PipelineMetrics;
+import com.android.vcam.PreviewFrameDelivery;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Headless load test for the preview frame path. A synthetic decoder feeds a
+ * {@link FrameExchanger} the way VideoToFrames does, and stand-in Camera1 and Camera2 cameras
+ * pull frames through the module's delivery code into a simulated app that takes a set time
+ * per frame. Each scenario reports, per camera, end-to-end latency, duplicate frames and
+ * frames dropped for want of a buffer or never seen at all.
+ *
+ * <pre>
+ * ./gradlew -p frames simulate                                   # all built-in scenarios
+ * ./gradlew -p frames simulate --args="slow-app decoder-stall"   # some of them
+ * ./gradlew -p frames simulate --args="--video 1920x1080@30 --stall 300/60 \
+ *     --camera1 1280x720@30,delay=20 --camera2 640x480@15,images=2 --duration 10"
+ * </pre>
+ * Add {@code --metrics} to also print the PipelineMetrics snapshot of each run.
+ */
+public final class PipelineSimulator {
+
+    /** Same waits as Camera1Hook: the first frame of a session may take the decoder a while. */
+    private static final long FRAME_WAIT_NS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final long FIRST_FRAME_WAIT_NS = TimeUnit.SECONDS.toNanos(1);
+
+    private PipelineSimulator() {}
+
+    public static void main(String[] args) throws InterruptedException {
+        List<String> options = new ArrayList<>(Arrays.asList(args));
+        boolean metrics = options.remove("--metrics");
+        Map<String, Scenario> builtIn = Scenario.builtIn();
+        List<Scenario> scenarios = new ArrayList<>();
+        if (options.isEmpty()) {
+            scenarios.addAll(builtIn.values());
+        } else if (options.get(0).startsWith("--")) {
+            scenarios.add(Scenario.parse("custom", options));
+        } else {
+            for (String name : options) {
+                Scenario s = builtIn.get(name);
+                if (s == null) {
+                    System.err.println("unknown scenario " + name + "; built-in: " + builtIn.keySet());
+                    System.exit(2);
+                }
+                scenarios.add(s);
+            }
+        }
+        for (Scenario s : scenarios) {
+            System.out.println(run(s, metrics));
+        }
+    }
+
+    static String run(Scenario scenario, boolean metrics) throws InterruptedException {
+        PipelineMetrics.reset();
+        FrameExchanger exchanger = new FrameExchanger(new FrameBufferPool(4), true);
+        SyntheticDecoder decoder = new SyntheticDecoder(exchanger, scenario.video);
+        ExecutorService appWorkers = Executors.newCachedThreadPool();
+        List<StreamStats> streams = new ArrayList<>();
+        List<FakeCamera> cameras1 = new ArrayList<>();
+        List<FakeCaptureSession> sessions = new ArrayList<>();
+
+        for (int i = 0; i < scenario.cameras.size(); i++) {
+            Scenario.Camera spec = scenario.cameras.get(i);
+            StreamStats stats = new StreamStats("camera " + i + ": " + spec);
+            streams.add(stats);
+            // Camera1 callbacks wait for a newer frame like Camera1Hook; a Camera2 target just
+            // gets whatever the decode session drew last.
+            boolean waits = spec.api == Scenario.Api.CAMERA1;
+            HookedStream hook = new HookedStream(exchanger, decoder, stats, spec.width, spec.height, waits);
+            if (spec.api == Scenario.Api.CAMERA1) {
+                cameras1.add(openCamera1(spec, hook, stats, appWorkers));
+            } else {
+                sessions.add(openCamera2(spec, hook, stats));
+            }
+        }
+
+        decoder.start();
+        for (FakeCamera camera : cameras1) camera.startPreview();
+        LockSupport.parkNanos(scenario.durationNs);
+        for (FakeCamera camera : cameras1) camera.stopPreview();
+        for (FakeCaptureSession session : sessions) session.close();
+        appWorkers.shutdown();
+        appWorkers.awaitTermination(5, TimeUnit.SECONDS);
+        decoder.stop();
+
+        StringBuilder sb = new StringBuilder();
+        sb.append("== ").append(scenario.name).append(": video ").append(scenario.video)
+                .append(", ").append(TimeUnit.NANOSECONDS.toMillis(scenario.durationNs)).append(" ms\n");
+        sb.append("  decoder: decoded=").append(decoder.decodedFrames())
+                .append(" published=").append(decoder.publishedFrames())
+                .append(" late-dropped=").append(decoder.clock().droppedFrames())
+                .append(" resyncs=").append(decoder.clock().resyncs()).append('\n');
+        for (StreamStats stats : streams) {
+            sb.append("  ").append(stats.report()).append('\n');
+        }
+        if (metrics) sb.append(PipelineMetrics.snapshot()).append('\n');
+        return sb.toString();
+    }
+
+    /** The app side of Camera1: queue buffers, take {@code appDelay} per frame, give them back. */
+    private static FakeCamera openCamera1(final Scenario.Camera spec, HookedStream hook, StreamStats stats,
+                                          final ExecutorService appWorkers) {
+        final FakeCamera camera = new FakeCamera(spec.width, spec.height, spec.fps, spec.buffers, hook, stats);
+        int size = spec.width * spec.height * 3 / 2;
+        for (int b = 0; b < spec.buffers; b++) camera.addCallbackBuffer(new byte[size]);
+        camera.setPreviewCallbackWithBuffer((data, cam) -> {
+            if (spec.async) {
+                appWorkers.execute(() -> {
+                    busy(spec.appDelayNs);
+                    cam.addCallbackBuffer(data);
+                });
+            } else {
+                busy(spec.appDelayNs);
+                cam.addCallbackBuffer(data);
+            }
+        });
+        return camera;
+    }
+
+    /** The app side of Camera2: one ImageReader target, repeating request, {@code appDelay} per image. */
+    private static FakeCaptureSession openCamera2(final Scenario.Camera spec, HookedStream hook, StreamStats stats) {
+        FakeImageReader reader = new FakeImageReader(spec.width, spec.height, spec.buffers, hook, stats);
+        reader.setOnImageAvailableListener(image -> {
+            busy(spec.appDelayNs);
+            image.close();
+        });
+        FakeCaptureSession session = new FakeCaptureSession(spec.fps);
+        session.setRepeatingRequest(new FakeCaptureSession.RequestBuilder().addTarget(reader).build());
+        return session;
+    }
+
+    private static void busy(long ns) {
+        long deadline = System.nanoTime() + ns;
+        long waitNs;
+        while ((waitNs = deadline - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(waitNs);
+        }
+    }
+
+    /** The module's per-frame work for one camera stream, using the hook's own delivery code. */
+    private static final class HookedStream implements FrameHook {
+        private final PreviewFrameDelivery delivery;
+        private final SyntheticDecoder decoder;
+        private final StreamStats stats;
+        private final boolean waits;
+        private long lastSequence;
+
+        HookedStream(FrameExchanger exchanger, SyntheticDecoder decoder, StreamStats stats, int width, int height,
+                     boolean waits) {
+            this.waits = waits;
+            delivery = new PreviewFrameDelivery(exchanger);
+            delivery.setPreviewSize(width, height);
+            this.decoder = decoder;
+            this.stats = stats;
+        }
+
+        @Override
+        public long fill(byte[] dst) {
+            long startNs = System.nanoTime();
+            long timeoutNs = !waits ? 0 : lastSequence == 0 ? FIRST_FRAME_WAIT_NS : FRAME_WAIT_NS;
+            PreviewFrameDelivery.Result result = delivery.deliver(dst, timeoutNs);
+            stats.hook.record(System.nanoTime() - startNs);
+            stats.delivered.incrementAndGet();
+            switch (result) {
+                case BLANK:
+                    stats.blank.incrementAndGet();
+                    return 0;
+                case REPEAT:
+                    stats.duplicates.incrementAndGet();
+                    break;
+                default:
+                    stats.fresh.incrementAndGet();
+                    long sequence = delivery.reader().sequence();
+                    if (lastSequence != 0 && sequence > lastSequence + 1) {
+                        stats.skipped.addAndGet(sequence - lastSequence - 1);
+                    }
+                    lastSequence = sequence;
+                    break;
+            }
+            return decoder.decodedAtNs(delivery.reader().sequence());
+        }
+    }
+}
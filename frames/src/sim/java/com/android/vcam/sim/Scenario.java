@@ -0,0 +1,203 @@
+package com.android.vcam.sim;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One simulator run: the source video, how long to run, and the cameras an app opens on it.
+ * Parsed from the command line ({@link #parse}) or taken from {@link #builtIn()}.
+ */
+final class Scenario {
+
+    /** Decoded clip and decoder behaviour. */
+    static final class Video {
+        int width = 1280;
+        int height = 720;
+        int fps = 30;
+        long decodeCostNs = TimeUnit.MILLISECONDS.toNanos(5);
+        long jitterNs;
+        long stallEveryFrames;
+        long stallNs;
+
+        @Override
+        public String toString() {
+            String s = width + "x" + height + "@" + fps + " decode=" + ms(decodeCostNs) + "ms";
+            if (jitterNs > 0) s += " jitter=" + ms(jitterNs) + "ms";
+            if (stallEveryFrames > 0) s += " stall=" + ms(stallNs) + "ms/" + stallEveryFrames + "f";
+            return s;
+        }
+    }
+
+    enum Api {
+        CAMERA1,
+        CAMERA2
+    }
+
+    /** A camera the simulated app opens, with its frame rate and how slowly the app consumes. */
+    static final class Camera {
+        Api api = Api.CAMERA1;
+        int width = 1280;
+        int height = 720;
+        int fps = 30;
+        long appDelayNs;
+        /** Camera1 callback buffers, or Camera2 ImageReader maxImages. */
+        int buffers = 3;
+        /** Camera1 only: process frames on an app worker instead of the callback thread. */
+        boolean async;
+
+        @Override
+        public String toString() {
+            String s = (api == Api.CAMERA1 ? "camera1 " : "camera2 ") + width + "x" + height + "@" + fps
+                    + " delay=" + ms(appDelayNs) + "ms buffers=" + buffers;
+            return async ? s + " async" : s;
+        }
+    }
+
+    final String name;
+    final Video video = new Video();
+    final List<Camera> cameras = new ArrayList<>();
+    long durationNs = TimeUnit.SECONDS.toNanos(5);
+
+    Scenario(String name) {
+        this.name = name;
+    }
+
+    /** Canned scenarios covering the usual stall causes. */
+    static Map<String, Scenario> builtIn() {
+        Map<String, Scenario> all = new LinkedHashMap<>();
+
+        Scenario s = new Scenario("baseline");
+        s.cameras.add(camera(Api.CAMERA1, 1280, 720, 30, 5, 3, false));
+        all.put(s.name, s);
+
+        s = new Scenario("slow-app");
+        s.cameras.add(camera(Api.CAMERA1, 1280, 720, 30, 45, 3, false));
+        all.put(s.name, s);
+
+        s = new Scenario("slow-app-async");
+        s.cameras.add(camera(Api.CAMERA1, 1280, 720, 30, 45, 3, true));
+        all.put(s.name, s);
+
+        s = new Scenario("decoder-stall");
+        s.video.jitterNs = TimeUnit.MILLISECONDS.toNanos(10);
+        s.video.stallEveryFrames = 45;
+        s.video.stallNs = TimeUnit.MILLISECONDS.toNanos(250);
+        s.cameras.add(camera(Api.CAMERA1, 1280, 720, 30, 5, 3, false));
+        all.put(s.name, s);
+
+        s = new Scenario("fps-mismatch");
+        s.video.fps = 24;
+        s.cameras.add(camera(Api.CAMERA1, 640, 480, 30, 5, 3, false));
+        s.cameras.add(camera(Api.CAMERA2, 1920, 1080, 60, 5, 4, false));
+        all.put(s.name, s);
+
+        s = new Scenario("multi-camera");
+        s.video.width = 1920;
+        s.video.height = 1080;
+        s.cameras.add(camera(Api.CAMERA1, 1280, 720, 30, 10, 3, false));
+        s.cameras.add(camera(Api.CAMERA1, 640, 480, 15, 30, 2, true));
+        s.cameras.add(camera(Api.CAMERA2, 1920, 1080, 30, 15, 2, false));
+        s.cameras.add(camera(Api.CAMERA2, 640, 480, 30, 40, 2, false));
+        all.put(s.name, s);
+        return all;
+    }
+
+    /**
+     * Builds a scenario from options:
+     * {@code --video WxH@FPS --decode-ms N --jitter-ms N --stall MS/FRAMES --duration SECONDS
+     * --camera1 WxH@FPS[,delay=MS][,buffers=N][,async] --camera2 WxH@FPS[,delay=MS][,images=N]}.
+     */
+    static Scenario parse(String name, List<String> args) {
+        Scenario s = new Scenario(name);
+        for (int i = 0; i < args.size(); i++) {
+            String opt = args.get(i);
+            if (i + 1 >= args.size()) throw new IllegalArgumentException("missing value for " + opt);
+            String value = args.get(++i);
+            switch (opt) {
+                case "--video": {
+                    int[] mode = mode(value);
+                    s.video.width = mode[0];
+                    s.video.height = mode[1];
+                    s.video.fps = mode[2];
+                    break;
+                }
+                case "--decode-ms":
+                    s.video.decodeCostNs = TimeUnit.MILLISECONDS.toNanos(Long.parseLong(value));
+                    break;
+                case "--jitter-ms":
+                    s.video.jitterNs = TimeUnit.MILLISECONDS.toNanos(Long.parseLong(value));
+                    break;
+                case "--stall": {
+                    String[] parts = value.split("/");
+                    s.video.stallNs = TimeUnit.MILLISECONDS.toNanos(Long.parseLong(parts[0]));
+                    s.video.stallEveryFrames = Long.parseLong(parts[1]);
+                    break;
+                }
+                case "--duration":
+                    s.durationNs = TimeUnit.MILLISECONDS.toNanos((long) (Double.parseDouble(value) * 1000));
+                    break;
+                case "--camera1":
+                case "--camera2":
+                    s.cameras.add(parseCamera(opt.equals("--camera1") ? Api.CAMERA1 : Api.CAMERA2, value));
+                    break;
+                default:
+                    throw new IllegalArgumentException("unknown option " + opt);
+            }
+        }
+        if (s.cameras.isEmpty()) {
+            s.cameras.add(camera(Api.CAMERA1, 1280, 720, 30, 5, 3, false));
+        }
+        return s;
+    }
+
+    private static Camera parseCamera(Api api, String value) {
+        String[] parts = value.split(",");
+        int[] mode = mode(parts[0]);
+        Camera c = camera(api, mode[0], mode[1], mode[2], 0, api == Api.CAMERA1 ? 3 : 2, false);
+        for (int i = 1; i < parts.length; i++) {
+            String p = parts[i];
+            if (p.equals("async")) {
+                c.async = true;
+            } else if (p.startsWith("delay=")) {
+                c.appDelayNs = TimeUnit.MILLISECONDS.toNanos(Long.parseLong(p.substring(6)));
+            } else if (p.startsWith("buffers=") || p.startsWith("images=")) {
+                c.buffers = Integer.parseInt(p.substring(p.indexOf('=') + 1));
+            } else {
+                throw new IllegalArgumentException("unknown camera option " + p);
+            }
+        }
+        return c;
+    }
+
+    private static Camera camera(Api api, int width, int height, int fps, long delayMs, int buffers, boolean async) {
+        Camera c = new Camera();
+        c.api = api;
+        c.width = width;
+        c.height = height;
+        c.fps = fps;
+        c.appDelayNs = TimeUnit.MILLISECONDS.toNanos(delayMs);
+        c.buffers = buffers;
+        c.async = async;
+        return c;
+    }
+
+    /** Parses {@code WxH@FPS}; the rate defaults to 30. */
+    private static int[] mode(String value) {
+        int at = value.indexOf('@');
+        String size = at < 0 ? value : value.substring(0, at);
+        int x = size.indexOf('x');
+        if (x < 0) throw new IllegalArgumentException("expected WxH@FPS, got " + value);
+        return new int[]{
+                Integer.parseInt(size.substring(0, x)),
+                Integer.parseInt(size.substring(x + 1)),
+                at < 0 ? 30 : Integer.parseInt(value.substring(at + 1))
+        };
+    }
+
+    private static long ms(long ns) {
+        return TimeUnit.NANOSECONDS.toMillis(ns);
+    }
+}
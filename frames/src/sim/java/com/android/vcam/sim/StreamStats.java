@@ -0,0 +1,50 @@
+package com.android.vcam.sim;
+
+import com.android.vcam.LatencyHistogram;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** What one camera stream saw during a run. Updated from the stand-in threads. */
+final class StreamStats {
+
+    final String name;
+    /** Frames the fake sensor produced. */
+    final AtomicLong sensorFrames = new AtomicLong();
+    /** Sensor frames lost because the app held every buffer. */
+    final AtomicLong noBuffer = new AtomicLong();
+    final AtomicLong delivered = new AtomicLong();
+    final AtomicLong fresh = new AtomicLong();
+    final AtomicLong duplicates = new AtomicLong();
+    final AtomicLong blank = new AtomicLong();
+    /** Published decoder frames this stream never got to see. */
+    final AtomicLong skipped = new AtomicLong();
+    /** Decoder output to the app's callback. */
+    final LatencyHistogram endToEnd = new LatencyHistogram();
+    /** Time spent in the hook, including the wait for a newer frame. */
+    final LatencyHistogram hook = new LatencyHistogram();
+
+    StreamStats(String name) {
+        this.name = name;
+    }
+
+    /** Records the app receiving a frame that left the decoder at {@code decodedNs} (0: blank). */
+    void received(long decodedNs) {
+        if (decodedNs != 0) endToEnd.record(System.nanoTime() - decodedNs);
+    }
+
+    String report() {
+        return String.format(Locale.ROOT,
+                "%s%n    sensor=%d delivered=%d fresh=%d duplicate=%d blank=%d"
+                        + " dropped: no-buffer=%d skipped-decoded=%d%n"
+                        + "    end-to-end ms mean=%.1f p50=%.1f p99=%.1f max=%.1f | hook ms mean=%.1f p50=%.1f p99=%.1f max=%.1f",
+                name, sensorFrames.get(), delivered.get(), fresh.get(), duplicates.get(), blank.get(),
+                noBuffer.get(), skipped.get(),
+                ms(endToEnd.meanNs()), ms(endToEnd.quantileNs(0.5)), ms(endToEnd.quantileNs(0.99)),
+                ms(endToEnd.maxNs()), ms(hook.meanNs()), ms(hook.quantileNs(0.5)), ms(hook.quantileNs(0.99)), ms(hook.maxNs()));
+    }
+
+    private static double ms(long ns) {
+        return ns / 1e6;
+    }
+}
@@ -0,0 +1,142 @@
+package com.android.vcam.sim;
+
+import com.android.vcam.FrameExchanger;
+import com.android.vcam.PipelineMetrics;
+import com.android.vcam.PresentationClock;
+import com.android.vcam.YuvPlaneConverter;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Stands in for MediaCodec plus the output stage of VideoToFrames: frames become available
+ * after a configurable decode cost (with jitter and periodic stalls), then go through the same
+ * steps as the real decoder output, using the real classes: late frames are dropped by a
+ * {@link PresentationClock}, the rest are converted from I420 planes into a
+ * {@link FrameExchanger} slot, held until due and published.
+ */
+final class SyntheticDecoder implements Runnable {
+
+    /** Sequences whose decode time is still looked up; far more than any consumer lags. */
+    private static final int HISTORY = 1024;
+
+    private final FrameExchanger exchanger;
+    private final int width;
+    private final int height;
+    private final long frameDurationUs;
+    private final long decodeCostNs;
+    private final long jitterNs;
+    private final long stallEveryFrames;
+    private final long stallNs;
+    private final Random random = new Random(7);
+
+    private final PresentationClock clock =
+            new PresentationClock(PresentationClock.LatePolicy.DROP_LATE, PresentationClock.DEFAULT_DROP_THRESHOLD_NS);
+    private final YuvPlaneConverter converter = new YuvPlaneConverter(YuvPlaneConverter.OutputFormat.NV21);
+    private final YuvPlaneConverter.Planes planes = new YuvPlaneConverter.Planes();
+    private final AtomicLongArray decodedAtNs = new AtomicLongArray(HISTORY);
+
+    private volatile boolean running;
+    private volatile long decoded;
+    private volatile long published;
+    private Thread thread;
+
+    SyntheticDecoder(FrameExchanger exchanger, Scenario.Video video) {
+        this.exchanger = exchanger;
+        width = video.width;
+        height = video.height;
+        frameDurationUs = 1_000_000L / video.fps;
+        decodeCostNs = video.decodeCostNs;
+        jitterNs = video.jitterNs;
+        stallEveryFrames = video.stallEveryFrames;
+        stallNs = video.stallNs;
+
+        planes.width = width;
+        planes.height = height;
+        planes.y = filled(width * height, 80);
+        planes.u = filled(width / 2 * (height / 2), 110);
+        planes.v = filled(width / 2 * (height / 2), 150);
+        planes.yRowStride = width;
+        planes.uRowStride = planes.vRowStride = width / 2;
+        planes.uPixelStride = planes.vPixelStride = 1;
+    }
+
+    void start() {
+        running = true;
+        thread = new Thread(this, "sim-decoder");
+        thread.start();
+    }
+
+    void stop() throws InterruptedException {
+        running = false;
+        thread.join();
+    }
+
+    /** When the frame published as {@code sequence} left the codec, or 0 if unknown. */
+    long decodedAtNs(long sequence) {
+        return sequence <= 0 ? 0 : decodedAtNs.get((int) (sequence % HISTORY));
+    }
+
+    long decodedFrames() {
+        return decoded;
+    }
+
+    long publishedFrames() {
+        return published;
+    }
+
+    PresentationClock clock() {
+        return clock;
+    }
+
+    @Override
+    public void run() {
+        long ptsUs = 0;
+        long codecReadyNs = System.nanoTime();
+        for (long frame = 0; running; frame++, ptsUs += frameDurationUs) {
+            // The codec works ahead of presentation; only its cost moves the ready time.
+            long cost = decodeCostNs + (jitterNs > 0 ? (long) (random.nextDouble() * jitterNs) : 0);
+            if (stallEveryFrames > 0 && frame > 0 && frame % stallEveryFrames == 0) cost += stallNs;
+            codecReadyNs = Math.max(codecReadyNs + cost, System.nanoTime());
+            parkUntil(codecReadyNs);
+            if (!running) break;
+
+            long decodedNs = System.nanoTime();
+            decoded++;
+            PipelineMetrics.increment(PipelineMetrics.Counter.FRAMES_DECODED);
+            if (clock.shouldDrop(ptsUs)) {
+                PipelineMetrics.increment(PipelineMetrics.Counter.FRAMES_DROPPED);
+                continue;
+            }
+            ByteBuffer slot = exchanger.beginWrite(YuvPlaneConverter.frameSize(width, height));
+            long convertStartNs = System.nanoTime();
+            converter.convert(planes, slot);
+            PipelineMetrics.recordSince(PipelineMetrics.Stage.CONVERT, convertStartNs);
+            long paceStartNs = System.nanoTime();
+            clock.awaitPresentation(ptsUs);
+            PipelineMetrics.recordSince(PipelineMetrics.Stage.PACE_WAIT, paceStartNs);
+            // Sequences are handed out in publish order, so the next one is known up front.
+            decodedAtNs.set((int) ((exchanger.sequence() + 1) % HISTORY), decodedNs);
+            exchanger.publish(slot, width, height, System.nanoTime());
+            published++;
+            PipelineMetrics.increment(PipelineMetrics.Counter.FRAMES_DELIVERED);
+        }
+    }
+
+    private static void parkUntil(long deadlineNs) {
+        long waitNs;
+        while ((waitNs = deadlineNs - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(waitNs);
+        }
+    }
+
+    private static ByteBuffer filled(int size, int value) {
+        ByteBuffer buf = ByteBuffer.allocateDirect(size);
+        for (int i = 0; i < size; i++) {
+            buf.put(i, (byte) (value + (i & 15)));
+        }
+        return buf;
+    }
+}
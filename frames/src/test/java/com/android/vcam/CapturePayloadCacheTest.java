@@ -0,0 +1,102 @@
+package com.android.vcam;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class CapturePayloadCacheTest {
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private final AtomicInteger encodes = new AtomicInteger();
+    /** "Encodes" the file as its bytes followed by the requested size. */
+    private final CapturePayloadCache cache = new CapturePayloadCache((source, format, width, height) -> {
+        encodes.incrementAndGet();
+        byte[] content = Files.readAllBytes(source.toPath());
+        byte[] payload = new byte[content.length + 2];
+        System.arraycopy(content, 0, payload, 0, content.length);
+        payload[content.length] = (byte) width;
+        payload[content.length + 1] = (byte) height;
+        return payload;
+    }, CapturePayloadCache.DEFAULT_MAX_BYTES);
+
+    @Test
+    public void repeatedGetsEncodeOnceAndHandOutCopies() throws Exception {
+        File source = source(new byte[]{1, 2, 3});
+        byte[] first = cache.get(source, CapturePayloadCache.Format.JPEG, 0, 0);
+        byte[] second = cache.get(source, CapturePayloadCache.Format.JPEG, 0, 0);
+        assertArrayEquals(first, second);
+        assertNotSame(first, second);
+        assertEquals(1, encodes.get());
+        assertEquals(1, cache.hits());
+        assertEquals(1, cache.misses());
+    }
+
+    @Test
+    public void formatAndSizeAreSeparateEntries() throws Exception {
+        File source = source(new byte[]{1, 2, 3});
+        cache.get(source, CapturePayloadCache.Format.JPEG, 0, 0);
+        cache.get(source, CapturePayloadCache.Format.NV21, 0, 0);
+        byte[] sized = cache.get(source, CapturePayloadCache.Format.JPEG, 40, 30);
+        assertEquals(3, encodes.get());
+        assertEquals(40, sized[3]);
+        assertEquals(30, sized[4]);
+        assertEquals(5 * 3, cache.retainedBytes());
+    }
+
+    @Test
+    public void replacedSourceDropsTheStalePayloads() throws Exception {
+        File source = source(new byte[]{1, 2, 3});
+        cache.get(source, CapturePayloadCache.Format.JPEG, 0, 0);
+        cache.get(source, CapturePayloadCache.Format.NV21, 0, 0);
+        long mtime = source.lastModified();
+        try (FileOutputStream out = new FileOutputStream(source)) {
+            out.write(new byte[]{9, 9, 9, 9});
+        }
+        assertTrue(source.setLastModified(mtime + 2_000));
+        byte[] fresh = cache.get(source, CapturePayloadCache.Format.JPEG, 0, 0);
+        assertArrayEquals(new byte[]{9, 9, 9, 9, 0, 0}, fresh);
+        assertEquals(3, encodes.get());
+        // Both old payloads are gone, not just the one asked for again.
+        assertEquals(fresh.length, cache.retainedBytes());
+    }
+
+    @Test
+    public void sameLengthNewMtimeIsStaleToo() throws Exception {
+        File source = source(new byte[]{1, 2, 3});
+        cache.get(source, CapturePayloadCache.Format.JPEG, 0, 0);
+        try (FileOutputStream out = new FileOutputStream(source)) {
+            out.write(new byte[]{4, 5, 6});
+        }
+        assertTrue(source.setLastModified(source.lastModified() + 2_000));
+        assertArrayEquals(new byte[]{4, 5, 6, 0, 0}, cache.get(source, CapturePayloadCache.Format.JPEG, 0, 0));
+        assertEquals(2, encodes.get());
+    }
+
+    @Test
+    public void missingSourceIsNull() throws Exception {
+        assertNull(cache.get(new File(folder.getRoot(), "1000.bmp"), CapturePayloadCache.Format.JPEG, 0, 0));
+        assertEquals(0, encodes.get());
+    }
+
+    private File source(byte[] content) throws IOException {
+        File source = folder.newFile("1000.bmp");
+        try (FileOutputStream out = new FileOutputStream(source)) {
+            out.write(content);
+        }
+        return source;
+    }
+}
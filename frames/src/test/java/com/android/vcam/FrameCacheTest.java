@@ -0,0 +1,102 @@
+package com.android.vcam;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class FrameCacheTest {
+
+    private static final int WIDTH = 4;
+    private static final int HEIGHT = 2;
+    private static final int FRAME_BYTES = Nv21Scaler.frameSize(WIDTH, HEIGHT);
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void committedCacheServesItsFrames() throws IOException {
+        File video = video(100);
+        writeCache(video, 3);
+        FrameCache cache = FrameCache.open(video, WIDTH, HEIGHT);
+        assertNotNull(cache);
+        assertEquals(3, cache.frameCount());
+        for (int i = 0; i < 3; i++) {
+            ByteBuffer dst = ByteBuffer.allocate(FRAME_BYTES);
+            cache.copyFrame(i, dst);
+            assertArrayEquals(frame(i).array(), dst.array());
+            assertEquals(i * 33_333L, cache.presentationTimeUs(i));
+        }
+    }
+
+    @Test
+    public void otherSizeIsAnotherCache() throws IOException {
+        File video = video(100);
+        writeCache(video, 1);
+        assertNull(FrameCache.open(video, WIDTH * 2, HEIGHT * 2));
+        assertNotNull(FrameCache.open(video, WIDTH, HEIGHT));
+    }
+
+    @Test
+    public void changedVideoLengthInvalidatesTheCache() throws IOException {
+        File video = video(100);
+        writeCache(video, 2);
+        long mtime = video.lastModified();
+        try (FileOutputStream out = new FileOutputStream(video, true)) {
+            out.write(new byte[10]);
+        }
+        assertTrue(video.setLastModified(mtime));
+        assertNull(FrameCache.open(video, WIDTH, HEIGHT));
+        assertFalse("stale cache deleted", FrameCache.cacheFile(video, WIDTH, HEIGHT).exists());
+    }
+
+    @Test
+    public void changedVideoMtimeInvalidatesTheCache() throws IOException {
+        File video = video(100);
+        writeCache(video, 2);
+        assertTrue(video.setLastModified(video.lastModified() - 60_000));
+        assertNull(FrameCache.open(video, WIDTH, HEIGHT));
+        assertFalse("stale cache deleted", FrameCache.cacheFile(video, WIDTH, HEIGHT).exists());
+    }
+
+    @Test
+    public void abortedWriterLeavesNoCache() throws IOException {
+        File video = video(100);
+        FrameCache.Writer writer = FrameCache.newWriter(video, WIDTH, HEIGHT, FrameCache.DEFAULT_MAX_BYTES);
+        assertTrue(writer.append(frame(0), 0));
+        assertFalse("frame size changed", writer.append(ByteBuffer.allocate(FRAME_BYTES + 1), 1));
+        writer.commit();
+        assertNull(FrameCache.open(video, WIDTH, HEIGHT));
+    }
+
+    private File video(int length) throws IOException {
+        File video = folder.newFile("virtual.mp4");
+        try (FileOutputStream out = new FileOutputStream(video)) {
+            out.write(new byte[length]);
+        }
+        return video;
+    }
+
+    private static void writeCache(File video, int frames) throws IOException {
+        FrameCache.Writer writer = FrameCache.newWriter(video, WIDTH, HEIGHT, FrameCache.DEFAULT_MAX_BYTES);
+        for (int i = 0; i < frames; i++) assertTrue(writer.append(frame(i), i * 33_333L));
+        writer.commit();
+    }
+
+    private static ByteBuffer frame(int n) {
+        ByteBuffer frame = ByteBuffer.allocate(FRAME_BYTES);
+        for (int i = 0; i < FRAME_BYTES; i++) frame.put(i, (byte) (n * 31 + i));
+        return frame;
+    }
+}
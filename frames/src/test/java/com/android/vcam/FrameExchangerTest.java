@@ -0,0 +1,92 @@
+package com.android.vcam;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class FrameExchangerTest {
+
+    private static final int FRAME_BYTES = 256;
+    private static final int FRAMES = 5_000;
+    private static final int READERS = 3;
+
+    @Test
+    public void readBeforeAnyPublishReturnsFalse() {
+        FrameExchanger exchanger = new FrameExchanger(new FrameBufferPool(4), false);
+        assertFalse(exchanger.newReader().read(new byte[FRAME_BYTES], 0));
+    }
+
+    @Test
+    public void timeoutRepeatsTheLatestFrame() {
+        FrameExchanger exchanger = new FrameExchanger(new FrameBufferPool(4), false);
+        publish(exchanger, 1);
+        FrameExchanger.Reader reader = exchanger.newReader();
+        byte[] dst = new byte[FRAME_BYTES];
+        assertTrue(reader.read(dst, 0));
+        assertFalse(reader.isRepeat());
+        assertTrue(reader.read(dst, TimeUnit.MILLISECONDS.toNanos(5)));
+        assertTrue(reader.isRepeat());
+        assertEquals(1, number(dst));
+    }
+
+    @Test
+    public void readersSeeIncreasingUntornFrames() throws Exception {
+        FrameExchanger exchanger = new FrameExchanger(new FrameBufferPool(4), true);
+        List<Thread> readers = new ArrayList<>();
+        List<List<Long>> seen = new ArrayList<>();
+        Throwable[] failure = new Throwable[1];
+        for (int r = 0; r < READERS; r++) {
+            List<Long> mine = new ArrayList<>();
+            seen.add(mine);
+            Thread reader = new Thread(() -> {
+                FrameExchanger.Reader handle = exchanger.newReader();
+                byte[] dst = new byte[FRAME_BYTES];
+                try {
+                    while (handle.sequence() < FRAMES) {
+                        if (!handle.read(dst, TimeUnit.MILLISECONDS.toNanos(1))) continue;
+                        int n = number(dst);
+                        assertEquals("frame and sequence disagree", handle.sequence(), n);
+                        assertEquals(n * 1000L, handle.timestampNs());
+                        if (!handle.isRepeat()) mine.add(handle.sequence());
+                    }
+                } catch (Throwable t) {
+                    synchronized (failure) {
+                        failure[0] = t;
+                    }
+                }
+            });
+            readers.add(reader);
+            reader.start();
+        }
+        for (int i = 1; i <= FRAMES; i++) assertEquals(i, publish(exchanger, i));
+        for (Thread reader : readers) reader.join(TimeUnit.SECONDS.toMillis(30));
+        if (failure[0] != null) throw new AssertionError(failure[0]);
+        for (List<Long> mine : seen) {
+            for (int i = 1; i < mine.size(); i++) {
+                assertTrue("not increasing: " + mine.get(i - 1) + " then " + mine.get(i), mine.get(i) > mine.get(i - 1));
+            }
+            assertEquals(Long.valueOf(FRAMES), mine.get(mine.size() - 1));
+        }
+    }
+
+    /** Publishes a frame holding {@code n} in every int, timestamped {@code n} us. */
+    private static long publish(FrameExchanger exchanger, int n) {
+        ByteBuffer frame = exchanger.beginWrite(FRAME_BYTES);
+        while (frame.hasRemaining()) frame.putInt(n);
+        return exchanger.publish(frame, 16, 8, n * 1000L);
+    }
+
+    private static int number(byte[] frame) {
+        ByteBuffer b = ByteBuffer.wrap(frame);
+        int n = b.getInt(0);
+        for (int i = 4; i < FRAME_BYTES; i += 4) assertEquals("torn frame", n, b.getInt(i));
+        return n;
+    }
+}
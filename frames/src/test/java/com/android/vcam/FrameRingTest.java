@@ -0,0 +1,156 @@
+package com.android.vcam;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class FrameRingTest {
+
+    private static final int FRAME_BYTES = 64;
+    private static final int FRAMES = 20_000;
+    private static final int CONSUMERS = 3;
+
+    @Test
+    public void dropNewestKeepsTheFirstFrames() {
+        FrameRing ring = new FrameRing(4, FrameRing.OverflowPolicy.DROP_NEWEST, 0);
+        for (int i = 0; i < 6; i++) assertEquals(i < 4, ring.offer(frame(i)));
+        assertEquals(2, ring.droppedCount());
+        assertEquals(Arrays.asList(0, 1, 2, 3), drain(ring));
+    }
+
+    @Test
+    public void overwriteOldestKeepsTheLastFrames() {
+        FrameRing ring = new FrameRing(4, FrameRing.OverflowPolicy.OVERWRITE_OLDEST, 0);
+        for (int i = 0; i < 6; i++) assertTrue(ring.offer(frame(i)));
+        assertEquals(2, ring.overwrittenCount());
+        assertEquals(Arrays.asList(2, 3, 4, 5), drain(ring));
+    }
+
+    @Test
+    public void blockGivesUpAfterTheTimeout() {
+        long timeoutNs = TimeUnit.MILLISECONDS.toNanos(20);
+        FrameRing ring = new FrameRing(2, FrameRing.OverflowPolicy.BLOCK, timeoutNs);
+        assertTrue(ring.offer(frame(0)));
+        assertTrue(ring.offer(frame(1)));
+        long start = System.nanoTime();
+        assertFalse(ring.offer(frame(2)));
+        assertTrue(System.nanoTime() - start >= timeoutNs);
+        assertEquals(1, ring.droppedCount());
+    }
+
+    @Test
+    public void blockDeliversEveryFrameOnceInOrder() throws Exception {
+        FrameRing ring = new FrameRing(8, FrameRing.OverflowPolicy.BLOCK, TimeUnit.SECONDS.toNanos(5));
+        Run run = run(ring);
+        assertEquals(0, ring.droppedCount());
+        assertEquals(FRAMES, run.taken.cardinality());
+    }
+
+    @Test
+    public void overwriteOldestDeliversEachSurvivorOnceInOrder() throws Exception {
+        FrameRing ring = new FrameRing(4, FrameRing.OverflowPolicy.OVERWRITE_OLDEST, 0);
+        Run run = run(ring);
+        assertEquals(FRAMES, run.taken.cardinality() + ring.overwrittenCount());
+    }
+
+    @Test
+    public void dropNewestDeliversEveryAcceptedFrameOnceInOrder() throws Exception {
+        FrameRing ring = new FrameRing(4, FrameRing.OverflowPolicy.DROP_NEWEST, 0);
+        Run run = run(ring);
+        assertEquals(run.accepted, run.taken);
+        assertEquals(FRAMES, run.taken.cardinality() + ring.droppedCount());
+    }
+
+    private static final class Run {
+        final BitSet accepted = new BitSet();
+        final BitSet taken = new BitSet();
+    }
+
+    /**
+     * One producer offers {@link #FRAMES} numbered frames while {@link #CONSUMERS} threads take
+     * them. Checks that no frame is torn, that each consumer sees increasing numbers and that
+     * no frame is taken twice.
+     */
+    private static Run run(FrameRing ring) throws Exception {
+        Run run = new Run();
+        List<List<Integer>> seen = new ArrayList<>();
+        List<Thread> consumers = new ArrayList<>();
+        Throwable[] failure = new Throwable[1];
+        boolean[] producerDone = new boolean[1];
+        for (int c = 0; c < CONSUMERS; c++) {
+            List<Integer> mine = new ArrayList<>();
+            seen.add(mine);
+            Thread consumer = new Thread(() -> {
+                byte[] dst = new byte[FRAME_BYTES];
+                try {
+                    for (;;) {
+                        int length = ring.take(dst, TimeUnit.MILLISECONDS.toNanos(1));
+                        if (length < 0) {
+                            synchronized (producerDone) {
+                                if (producerDone[0] && ring.depth() == 0) return;
+                            }
+                            continue;
+                        }
+                        assertEquals(FRAME_BYTES, length);
+                        mine.add(number(dst));
+                    }
+                } catch (Throwable t) {
+                    synchronized (failure) {
+                        failure[0] = t;
+                    }
+                }
+            });
+            consumers.add(consumer);
+            consumer.start();
+        }
+        for (int i = 0; i < FRAMES; i++) {
+            if (ring.offer(frame(i))) run.accepted.set(i);
+        }
+        synchronized (producerDone) {
+            producerDone[0] = true;
+        }
+        for (Thread consumer : consumers) consumer.join(TimeUnit.SECONDS.toMillis(30));
+        if (failure[0] != null) throw new AssertionError(failure[0]);
+        for (List<Integer> mine : seen) {
+            for (int i = 0; i < mine.size(); i++) {
+                int n = mine.get(i);
+                if (i > 0) assertTrue("out of order: " + mine.get(i - 1) + " then " + n, n > mine.get(i - 1));
+                assertTrue("not accepted: " + n, run.accepted.get(n));
+                assertFalse("taken twice: " + n, run.taken.get(n));
+                run.taken.set(n);
+            }
+        }
+        return run;
+    }
+
+    private static List<Integer> drain(FrameRing ring) {
+        List<Integer> frames = new ArrayList<>();
+        byte[] dst = new byte[FRAME_BYTES];
+        while (ring.poll(dst) >= 0) frames.add(number(dst));
+        return frames;
+    }
+
+    /** A frame holding {@code n} in every int, so a torn copy shows. */
+    private static ByteBuffer frame(int n) {
+        ByteBuffer frame = ByteBuffer.allocate(FRAME_BYTES);
+        while (frame.hasRemaining()) frame.putInt(n);
+        frame.flip();
+        return frame;
+    }
+
+    private static int number(byte[] frame) {
+        ByteBuffer b = ByteBuffer.wrap(frame);
+        int n = b.getInt(0);
+        for (int i = 4; i < FRAME_BYTES; i += 4) assertEquals("torn frame", n, b.getInt(i));
+        return n;
+    }
+}
@@ -0,0 +1,89 @@
+package com.android.vcam;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+    /** Bucket width relative to its values: one of 16 sub-buckets per power of two. */
+    private static final double MAX_RELATIVE_ERROR = 1.0 / 16;
+    private static final double[] QUANTILES = {0.01, 0.1, 0.5, 0.9, 0.99, 0.999};
+
+    @Test
+    public void emptyIsZero() {
+        LatencyHistogram h = new LatencyHistogram();
+        assertEquals(0, h.quantileNs(0.5));
+        assertEquals(0, h.meanNs());
+        assertEquals(0, h.maxNs());
+    }
+
+    @Test
+    public void smallValuesAreExact() {
+        LatencyHistogram h = new LatencyHistogram();
+        for (int ns = 0; ns < 16; ns++) h.record(ns);
+        assertEquals(7, h.quantileNs(0.5));
+        assertEquals(15, h.quantileNs(1.0));
+        assertEquals(0, h.quantileNs(0.0));
+    }
+
+    @Test
+    public void bucketsCoverEveryValueContiguously() {
+        long[] samples = {0, 1, 15, 16, 17, 31, 32, 33, 1_000, 65_535, 65_536, 1L << 40, Long.MAX_VALUE};
+        for (long ns : samples) {
+            int b = LatencyHistogram.bucketOf(ns);
+            assertTrue(ns + " below bucket " + b, ns >= LatencyHistogram.lowerBound(b));
+            assertTrue(ns + " past bucket " + b,
+                    ns - LatencyHistogram.lowerBound(b) < LatencyHistogram.width(b));
+        }
+        for (int b = 1; b < LatencyHistogram.bucketOf(Long.MAX_VALUE); b++) {
+            assertEquals("gap before bucket " + b, LatencyHistogram.lowerBound(b - 1) + LatencyHistogram.width(b - 1),
+                    LatencyHistogram.lowerBound(b));
+        }
+    }
+
+    @Test
+    public void quantilesStayWithinOneSubBucket() {
+        Random random = new Random(11);
+        for (int distribution = 0; distribution < 3; distribution++) {
+            LatencyHistogram h = new LatencyHistogram();
+            long[] values = new long[50_000];
+            for (int i = 0; i < values.length; i++) {
+                switch (distribution) {
+                    case 0:
+                        values[i] = 1_000_000 + random.nextInt(30_000_000);
+                        break;
+                    case 1:
+                        values[i] = (long) Math.exp(13 + 1.5 * random.nextGaussian());
+                        break;
+                    default:
+                        // Mostly fast with a slow tail, like frame delivery.
+                        values[i] = random.nextInt(100) < 95 ? 2_000_000 + random.nextInt(500_000)
+                                : 40_000_000 + random.nextInt(60_000_000);
+                        break;
+                }
+                h.record(values[i]);
+            }
+            Arrays.sort(values);
+            for (double q : QUANTILES) {
+                long exact = values[(int) Math.ceil(q * values.length) - 1];
+                long estimate = h.quantileNs(q);
+                assertTrue("distribution " + distribution + " q" + q + ": exact " + exact + " estimate " + estimate,
+                        Math.abs(estimate - exact) <= exact * MAX_RELATIVE_ERROR + 1);
+            }
+            assertEquals(values[values.length - 1], h.maxNs());
+        }
+    }
+
+    @Test
+    public void p50AndP99OfASpreadAreApart() {
+        LatencyHistogram h = new LatencyHistogram();
+        for (int i = 1; i <= 100; i++) h.record(i * 1_000_000L);
+        assertTrue(Math.abs(h.quantileNs(0.5) - 50_000_000L) <= 50_000_000L * MAX_RELATIVE_ERROR);
+        assertTrue(Math.abs(h.quantileNs(0.99) - 99_000_000L) <= 99_000_000L * MAX_RELATIVE_ERROR);
+    }
+}
@@ -0,0 +1,137 @@
+package com.android.vcam;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class Nv21ScalerTest {
+
+    private static final int BLACK_Y = 16;
+    private static final int BLACK_UV = 128;
+
+    @Test
+    public void sameSizeIsACopy() {
+        byte[] src = random(64, 48, 1);
+        byte[] dst = new byte[src.length];
+        new Nv21Scaler(64, 48, Nv21Scaler.Filter.BILINEAR, Nv21Scaler.Fit.CENTER_CROP)
+                .scale(ByteBuffer.wrap(src), 64, 48, dst);
+        assertArrayEquals(src, dst);
+    }
+
+    @Test
+    public void stretchNearestHalvingPicksOneSampleOfEachBlock() {
+        byte[] src = random(64, 32, 2);
+        byte[] dst = scale(src, 64, 32, 32, 16, Nv21Scaler.Filter.NEAREST, Nv21Scaler.Fit.STRETCH);
+        for (int y = 0; y < 16; y++) {
+            for (int x = 0; x < 32; x++) {
+                assertEquals("luma " + x + "," + y, src[(2 * y + 1) * 64 + 2 * x + 1], dst[y * 32 + x]);
+            }
+        }
+        for (int y = 0; y < 8; y++) {
+            for (int x = 0; x < 16; x++) {
+                int s = 64 * 32 + (2 * y + 1) * 64 + 2 * (2 * x + 1);
+                int d = 32 * 16 + y * 32 + 2 * x;
+                assertEquals("V " + x + "," + y, src[s], dst[d]);
+                assertEquals("U " + x + "," + y, src[s + 1], dst[d + 1]);
+            }
+        }
+    }
+
+    @Test
+    public void stretchBilinearHalvingAveragesEachBlock() {
+        byte[] src = random(64, 32, 3);
+        byte[] dst = scale(src, 64, 32, 32, 16, Nv21Scaler.Filter.BILINEAR, Nv21Scaler.Fit.STRETCH);
+        for (int y = 0; y < 16; y++) {
+            for (int x = 0; x < 32; x++) {
+                int sum = u(src, 2 * y * 64 + 2 * x) + u(src, 2 * y * 64 + 2 * x + 1)
+                        + u(src, (2 * y + 1) * 64 + 2 * x) + u(src, (2 * y + 1) * 64 + 2 * x + 1);
+                assertEquals("luma " + x + "," + y, (sum + 2) / 4, u(dst, y * 32 + x));
+            }
+        }
+    }
+
+    @Test
+    public void centerCropKeepsTheMiddleOfAWideSource() {
+        byte[] src = new byte[Nv21Scaler.frameSize(200, 100)];
+        for (int y = 0; y < 100; y++) {
+            for (int x = 0; x < 200; x++) src[y * 200 + x] = (byte) (x + 3 * y);
+        }
+        for (int i = 200 * 100; i < src.length; i++) src[i] = (byte) i;
+        byte[] dst = scale(src, 200, 100, 100, 100, Nv21Scaler.Filter.NEAREST, Nv21Scaler.Fit.CENTER_CROP);
+        for (int y = 0; y < 100; y++) {
+            for (int x = 0; x < 100; x++) {
+                assertEquals("luma " + x + "," + y, src[y * 200 + 50 + x], dst[y * 100 + x]);
+            }
+        }
+        for (int y = 0; y < 50; y++) {
+            for (int x = 0; x < 100; x++) {
+                assertEquals("chroma " + x + "," + y, src[200 * 100 + y * 200 + 50 + x], dst[100 * 100 + y * 100 + x]);
+            }
+        }
+    }
+
+    @Test
+    public void letterboxAddsBlackBarsAroundTheWholeSource() {
+        byte[] src = solid(200, 100, 200, 60);
+        byte[] dst = scale(src, 200, 100, 100, 100, Nv21Scaler.Filter.BILINEAR, Nv21Scaler.Fit.LETTERBOX);
+        // 200x100 into 100x100 shows 100x50, centred on an even row: rows 24..73.
+        for (int y = 0; y < 100; y++) {
+            int expected = y >= 24 && y < 74 ? 200 : BLACK_Y;
+            for (int x = 0; x < 100; x++) assertEquals("luma " + x + "," + y, expected, u(dst, y * 100 + x));
+        }
+        for (int y = 0; y < 50; y++) {
+            int expected = y >= 12 && y < 37 ? 60 : BLACK_UV;
+            for (int x = 0; x < 100; x++) {
+                assertEquals("chroma " + x + "," + y, expected, u(dst, 100 * 100 + y * 100 + x));
+            }
+        }
+    }
+
+    @Test
+    public void oddSizesScaleWithEveryFitAndFilter() {
+        int[][] sizes = {{101, 75, 64, 48}, {64, 48, 51, 39}, {33, 17, 99, 71}, {7, 5, 3, 3}};
+        for (int[] s : sizes) {
+            byte[] src = solid(s[0], s[1], 90, 170);
+            for (Nv21Scaler.Fit fit : Nv21Scaler.Fit.values()) {
+                for (Nv21Scaler.Filter filter : Nv21Scaler.Filter.values()) {
+                    String what = s[0] + "x" + s[1] + " -> " + s[2] + "x" + s[3] + " " + fit + " " + filter;
+                    byte[] dst = scale(src, s[0], s[1], s[2], s[3], filter, fit);
+                    int lumaSize = s[2] * s[3];
+                    for (int i = 0; i < dst.length; i++) {
+                        int value = u(dst, i);
+                        boolean luma = i < lumaSize;
+                        if (fit == Nv21Scaler.Fit.LETTERBOX && value == (luma ? BLACK_Y : BLACK_UV)) continue;
+                        assertEquals(what + " byte " + i, luma ? 90 : 170, value);
+                    }
+                }
+            }
+        }
+    }
+
+    private static byte[] scale(byte[] src, int width, int height, int dstWidth, int dstHeight,
+                                Nv21Scaler.Filter filter, Nv21Scaler.Fit fit) {
+        byte[] dst = new byte[Nv21Scaler.frameSize(dstWidth, dstHeight)];
+        new Nv21Scaler(dstWidth, dstHeight, filter, fit).scale(ByteBuffer.wrap(src), width, height, dst);
+        return dst;
+    }
+
+    private static byte[] random(int width, int height, long seed) {
+        byte[] frame = new byte[Nv21Scaler.frameSize(width, height)];
+        new Random(seed).nextBytes(frame);
+        return frame;
+    }
+
+    private static byte[] solid(int width, int height, int y, int uv) {
+        byte[] frame = new byte[Nv21Scaler.frameSize(width, height)];
+        for (int i = 0; i < frame.length; i++) frame[i] = (byte) (i < width * height ? y : uv);
+        return frame;
+    }
+
+    private static int u(byte[] bytes, int index) {
+        return bytes[index] & 0xFF;
+    }
+}
@@ -0,0 +1,70 @@
+package com.android.vcam;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class PresentationClockTest {
+
+    private static final long FRAME_US = 5_000;
+
+    @Test
+    public void loopsContinueOneFrameAfterTheLastFrame() {
+        PresentationClock clock = new PresentationClock(PresentationClock.LatePolicy.KEEP_ALL, 0);
+        long[] firstPts = {0, 40_000, 0};
+        long previousDue = -1;
+        for (int loop = 0; loop < firstPts.length; loop++) {
+            if (loop > 0) clock.startNextLoop();
+            for (int frame = 0; frame < 4; frame++) {
+                clock.awaitPresentation(firstPts[loop] + frame * FRAME_US);
+                long due = clock.lastDueNs();
+                if (previousDue >= 0) {
+                    assertEquals("loop " + loop + " frame " + frame, FRAME_US * 1000, due - previousDue);
+                }
+                previousDue = due;
+            }
+        }
+        assertEquals(2, clock.loops());
+        assertEquals(12, clock.renderedFrames());
+        assertEquals(0, clock.resyncs());
+    }
+
+    @Test
+    public void dueTimesHoldTheirPaceWhateverTheWorkTakes() throws InterruptedException {
+        PresentationClock clock = new PresentationClock(PresentationClock.LatePolicy.KEEP_ALL, 0);
+        clock.awaitPresentation(0);
+        long anchor = clock.lastDueNs();
+        for (int frame = 1; frame < 6; frame++) {
+            Thread.sleep(frame % 2 == 0 ? 1 : 3);
+            clock.awaitPresentation(frame * FRAME_US);
+            assertEquals(anchor + frame * FRAME_US * 1000, clock.lastDueNs());
+            assertTrue("released before due", System.nanoTime() >= clock.lastDueNs());
+        }
+    }
+
+    @Test
+    public void dropLateDropsBoundedRunsOfLateFrames() throws InterruptedException {
+        PresentationClock clock = new PresentationClock(PresentationClock.LatePolicy.DROP_LATE, 1_000_000L);
+        clock.awaitPresentation(0);
+        Thread.sleep(10);
+        // Every frame is now ~10 ms late, past the 1 ms threshold; at most four go in a row.
+        int dropped = 0;
+        for (int frame = 1; frame <= 10; frame++) {
+            if (clock.shouldDrop(frame * 100L)) dropped++;
+        }
+        assertEquals(4, dropped);
+        assertEquals(4, clock.droppedFrames());
+    }
+
+    @Test
+    public void resetStartsANewTimeline() {
+        PresentationClock clock = new PresentationClock(PresentationClock.LatePolicy.KEEP_ALL, 0);
+        clock.awaitPresentation(0);
+        clock.awaitPresentation(FRAME_US);
+        clock.reset();
+        long before = System.nanoTime();
+        clock.awaitPresentation(500_000);
+        assertTrue("due at once after reset", clock.lastDueNs() - before < 1_000_000L);
+    }
+}
@@ -0,0 +1,44 @@
+package com.android.vcam;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class PreviewFrameDeliveryTest {
+
+    private static final int SRC_WIDTH = 64;
+    private static final int SRC_HEIGHT = 48;
+
+    @Test
+    public void previewSizeChangeRescalesLaterDeliveries() {
+        FrameExchanger exchanger = new FrameExchanger(new FrameBufferPool(4), false);
+        byte[] src = new byte[Nv21Scaler.frameSize(SRC_WIDTH, SRC_HEIGHT)];
+        new Random(7).nextBytes(src);
+        ByteBuffer frame = exchanger.beginWrite(src.length);
+        frame.put(src);
+        exchanger.publish(frame, SRC_WIDTH, SRC_HEIGHT, 0);
+        PreviewFrameDelivery delivery = new PreviewFrameDelivery(exchanger);
+
+        delivery.setPreviewSize(32, 24);
+        byte[] small = new byte[Nv21Scaler.frameSize(32, 24)];
+        assertEquals(PreviewFrameDelivery.Result.FRESH, delivery.deliver(small, 0));
+        assertArrayEquals(expected(src, 32, 24), small);
+
+        // The app restarts the preview at a larger size with another aspect ratio.
+        delivery.setPreviewSize(40, 40);
+        byte[] square = new byte[Nv21Scaler.frameSize(40, 40)];
+        assertEquals(PreviewFrameDelivery.Result.REPEAT, delivery.deliver(square, 0));
+        assertArrayEquals(expected(src, 40, 40), square);
+    }
+
+    private static byte[] expected(byte[] src, int width, int height) {
+        byte[] dst = new byte[Nv21Scaler.frameSize(width, height)];
+        new Nv21Scaler(width, height, Nv21Scaler.Filter.BILINEAR, Nv21Scaler.Fit.CENTER_CROP)
+                .scale(ByteBuffer.wrap(src), SRC_WIDTH, SRC_HEIGHT, dst);
+        return dst;
+    }
+}
@@ -0,0 +1,122 @@
+package com.android.vcam;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class RgbToYuvConverterTest {
+
+    private static final int[] COLOURS = {
+            0x000000, 0xFFFFFF, 0xFF0000, 0x00FF00, 0x0000FF,
+            0xFFFF00, 0x00FFFF, 0xFF00FF, 0x808080, 0x123456, 0xC0A080,
+    };
+
+    @Test
+    public void anchorsOfEachRange() {
+        RgbToYuvConverter limited = new RgbToYuvConverter(RgbToYuvConverter.Matrix.BT601,
+                RgbToYuvConverter.Range.LIMITED, YuvPlaneConverter.OutputFormat.NV21);
+        assertYuv(limited, 0xFFFFFF, 235, 128, 128);
+        assertYuv(limited, 0x000000, 16, 128, 128);
+        assertYuv(limited, 0xFF0000, 82, 90, 240);
+        RgbToYuvConverter full = new RgbToYuvConverter(RgbToYuvConverter.Matrix.BT601,
+                RgbToYuvConverter.Range.FULL, YuvPlaneConverter.OutputFormat.NV21);
+        assertYuv(full, 0xFFFFFF, 255, 128, 128);
+        assertYuv(full, 0x000000, 0, 128, 128);
+        assertYuv(full, 0x0000FF, 29, 255, 107);
+        RgbToYuvConverter hd = new RgbToYuvConverter(RgbToYuvConverter.Matrix.BT709,
+                RgbToYuvConverter.Range.LIMITED, YuvPlaneConverter.OutputFormat.NV21);
+        assertYuv(hd, 0xFF0000, 63, 102, 240);
+        assertYuv(hd, 0x00FF00, 173, 42, 26);
+    }
+
+    @Test
+    public void everyMatrixAndRangeMatchesTheFormulas() {
+        for (RgbToYuvConverter.Matrix matrix : RgbToYuvConverter.Matrix.values()) {
+            for (RgbToYuvConverter.Range range : RgbToYuvConverter.Range.values()) {
+                RgbToYuvConverter converter = new RgbToYuvConverter(matrix, range, YuvPlaneConverter.OutputFormat.NV21);
+                for (int rgb : COLOURS) {
+                    int[] expected = reference(matrix, range, rgb);
+                    assertYuv(converter, rgb, expected[0], expected[1], expected[2]);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void outputFormatsOnlyReorderChroma() {
+        int rgb = 0x3366CC;
+        int[] expected = reference(RgbToYuvConverter.Matrix.BT601, RgbToYuvConverter.Range.LIMITED, rgb);
+        for (YuvPlaneConverter.OutputFormat format : YuvPlaneConverter.OutputFormat.values()) {
+            byte[] yuv = new RgbToYuvConverter(RgbToYuvConverter.Matrix.BT601, RgbToYuvConverter.Range.LIMITED, format)
+                    .convert(solid(rgb, 4, 4), 4, 4);
+            int u;
+            int v;
+            switch (format) {
+                case NV21:
+                    v = yuv[16] & 0xFF;
+                    u = yuv[17] & 0xFF;
+                    break;
+                case NV12:
+                    u = yuv[16] & 0xFF;
+                    v = yuv[17] & 0xFF;
+                    break;
+                case I420:
+                    u = yuv[16] & 0xFF;
+                    v = yuv[20] & 0xFF;
+                    break;
+                default:
+                    v = yuv[16] & 0xFF;
+                    u = yuv[20] & 0xFF;
+                    break;
+            }
+            assertClose(format + " Y", expected[0], yuv[0] & 0xFF);
+            assertClose(format + " U", expected[1], u);
+            assertClose(format + " V", expected[2], v);
+        }
+    }
+
+    /** Converts a 4x4 block of {@code rgb} and checks every sample against the expected values. */
+    private static void assertYuv(RgbToYuvConverter converter, int rgb, int y, int u, int v) {
+        byte[] nv21 = converter.convert(solid(rgb, 4, 4), 4, 4);
+        String what = converter.matrix() + " " + converter.range() + " #" + Integer.toHexString(rgb);
+        for (int i = 0; i < 16; i++) assertClose(what + " Y", y, nv21[i] & 0xFF);
+        for (int i = 16; i < nv21.length; i += 2) {
+            assertClose(what + " V", v, nv21[i] & 0xFF);
+            assertClose(what + " U", u, nv21[i + 1] & 0xFF);
+        }
+    }
+
+    private static void assertClose(String what, int expected, int actual) {
+        assertTrue(what + ": expected " + expected + " got " + actual, Math.abs(expected - actual) <= 1);
+    }
+
+    private static int[] solid(int rgb, int width, int height) {
+        int[] argb = new int[width * height];
+        for (int i = 0; i < argb.length; i++) argb[i] = 0xFF000000 | rgb;
+        return argb;
+    }
+
+    /** Y, U, V from the textbook definitions in floating point. */
+    private static int[] reference(RgbToYuvConverter.Matrix matrix, RgbToYuvConverter.Range range, int rgb) {
+        double kr = matrix == RgbToYuvConverter.Matrix.BT601 ? 0.299 : 0.2126;
+        double kb = matrix == RgbToYuvConverter.Matrix.BT601 ? 0.114 : 0.0722;
+        double r = (rgb >> 16) & 0xFF;
+        double g = (rgb >> 8) & 0xFF;
+        double b = rgb & 0xFF;
+        double y = kr * r + (1 - kr - kb) * g + kb * b;
+        double cb = (b - y) / (2 * (1 - kb));
+        double cr = (r - y) / (2 * (1 - kr));
+        if (range == RgbToYuvConverter.Range.LIMITED) {
+            return new int[]{
+                    clamp(16 + y * 219 / 255, 16, 235),
+                    clamp(128 + cb * 224 / 255, 16, 240),
+                    clamp(128 + cr * 224 / 255, 16, 240)};
+        }
+        return new int[]{clamp(y, 0, 255), clamp(128 + cb, 0, 255), clamp(128 + cr, 0, 255)};
+    }
+
+    private static int clamp(double value, int min, int max) {
+        return (int) Math.max(min, Math.min(max, Math.round(value)));
+    }
+}
@@ -0,0 +1,184 @@
+package com.android.vcam;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class YuvPlaneConverterTest {
+
+    /** Chroma plane layouts codecs hand out. */
+    private enum Layout {
+        PLANAR(YuvPlaneConverter.ChromaKernel.PLANAR),
+        INTERLEAVED_VU(YuvPlaneConverter.ChromaKernel.INTERLEAVED_VU),
+        INTERLEAVED_UV(YuvPlaneConverter.ChromaKernel.INTERLEAVED_UV),
+        STRIDED(YuvPlaneConverter.ChromaKernel.STRIDED);
+
+        final YuvPlaneConverter.ChromaKernel kernel;
+
+        Layout(YuvPlaneConverter.ChromaKernel kernel) {
+            this.kernel = kernel;
+        }
+    }
+
+    private static final int[][] SIZES = {
+            // width, height, cropLeft, cropTop, row padding
+            {16, 8, 0, 0, 0},
+            {64, 48, 0, 0, 16},
+            {37, 23, 2, 4, 3},
+            {320, 180, 8, 6, 64},
+    };
+
+    @Test
+    public void matchesReferenceForEveryLayoutCropAndFormat() {
+        Random random = new Random(42);
+        for (Layout layout : Layout.values()) {
+            for (int[] size : SIZES) {
+                YuvPlaneConverter.Planes p = planes(random, layout, size[0], size[1], size[2], size[3], size[4]);
+                for (YuvPlaneConverter.OutputFormat format : YuvPlaneConverter.OutputFormat.values()) {
+                    String what = layout + " " + size[0] + "x" + size[1] + " crop " + size[2] + "," + size[3]
+                            + " -> " + format;
+                    YuvPlaneConverter converter = new YuvPlaneConverter(format);
+                    assertArrayEquals(what, reference(p, format), convert(converter, p));
+                    assertEquals(what, layout.kernel, converter.kernel());
+                }
+            }
+        }
+    }
+
+    @Test
+    public void stripesMatchSingleThreaded() {
+        Random random = new Random(7);
+        for (Layout layout : Layout.values()) {
+            YuvPlaneConverter.Planes p = planes(random, layout, 640, 362, 4, 2, 32);
+            for (YuvPlaneConverter.OutputFormat format : YuvPlaneConverter.OutputFormat.values()) {
+                YuvPlaneConverter converter = new YuvPlaneConverter(format);
+                converter.setStripes(3);
+                assertArrayEquals(layout + " -> " + format, reference(p, format), convert(converter, p));
+            }
+        }
+    }
+
+    @Test
+    public void writeNv21IsTheReverseOfConvert() {
+        Random random = new Random(3);
+        for (Layout layout : Layout.values()) {
+            for (int[] size : SIZES) {
+                YuvPlaneConverter.Planes p = planes(random, layout, size[0], size[1], size[2], size[3], size[4]);
+                byte[] nv21 = new byte[YuvPlaneConverter.frameSize(p.width, p.height)];
+                random.nextBytes(nv21);
+                YuvPlaneConverter.writeNv21(nv21, p);
+                assertArrayEquals(layout + " " + size[0] + "x" + size[1], nv21,
+                        convert(new YuvPlaneConverter(YuvPlaneConverter.OutputFormat.NV21), p));
+            }
+        }
+    }
+
+    private static byte[] convert(YuvPlaneConverter converter, YuvPlaneConverter.Planes p) {
+        ByteBuffer dst = ByteBuffer.allocate(YuvPlaneConverter.frameSize(p.width, p.height));
+        converter.convert(p, dst);
+        return dst.array();
+    }
+
+    /** An image of the given visible size inside a larger buffer, filled with random bytes. */
+    private static YuvPlaneConverter.Planes planes(Random random, Layout layout, int width, int height,
+                                                   int cropLeft, int cropTop, int padding) {
+        int fullWidth = cropLeft + width + 2;
+        int fullHeight = cropTop + height + 2;
+        int chromaWidth = (fullWidth + 1) / 2;
+        int chromaHeight = (fullHeight + 1) / 2;
+        YuvPlaneConverter.Planes p = new YuvPlaneConverter.Planes();
+        p.yRowStride = fullWidth + padding;
+        p.y = filled(random, p.yRowStride * fullHeight);
+        switch (layout) {
+            case PLANAR:
+            case STRIDED: {
+                int pixelStride = layout == Layout.PLANAR ? 1 : 3;
+                int rowStride = chromaWidth * pixelStride + padding;
+                p.u = filled(random, rowStride * chromaHeight);
+                p.v = filled(random, rowStride * chromaHeight);
+                p.uRowStride = p.vRowStride = rowStride;
+                p.uPixelStride = p.vPixelStride = pixelStride;
+                break;
+            }
+            default: {
+                // One VUVU... (or UVUV...) buffer; each plane is a view of it, one byte short.
+                int rowStride = chromaWidth * 2 + padding;
+                ByteBuffer shared = filled(random, rowStride * chromaHeight);
+                ByteBuffer first = view(shared, 0);
+                ByteBuffer second = view(shared, 1);
+                p.v = layout == Layout.INTERLEAVED_VU ? first : second;
+                p.u = layout == Layout.INTERLEAVED_VU ? second : first;
+                p.uRowStride = p.vRowStride = rowStride;
+                p.uPixelStride = p.vPixelStride = 2;
+                break;
+            }
+        }
+        p.cropLeft = cropLeft;
+        p.cropTop = cropTop;
+        p.width = width;
+        p.height = height;
+        return p;
+    }
+
+    private static ByteBuffer filled(Random random, int size) {
+        byte[] bytes = new byte[size];
+        random.nextBytes(bytes);
+        return ByteBuffer.wrap(bytes);
+    }
+
+    private static ByteBuffer view(ByteBuffer shared, int offset) {
+        ByteBuffer view = shared.duplicate();
+        view.position(offset);
+        view.limit(shared.capacity() - 1 + offset);
+        return view.slice();
+    }
+
+    /** Pixel-by-pixel conversion straight from the plane definitions. */
+    private static byte[] reference(YuvPlaneConverter.Planes p, YuvPlaneConverter.OutputFormat format) {
+        int width = p.width;
+        int height = p.height;
+        int chromaWidth = width / 2;
+        int chromaHeight = height / 2;
+        byte[] out = new byte[YuvPlaneConverter.frameSize(width, height)];
+        for (int row = 0; row < height; row++) {
+            for (int col = 0; col < width; col++) {
+                out[row * width + col] = p.y.get((p.cropTop + row) * p.yRowStride + p.cropLeft + col);
+            }
+        }
+        int base = width * height;
+        int planeSize = chromaWidth * chromaHeight;
+        for (int row = 0; row < chromaHeight; row++) {
+            for (int col = 0; col < chromaWidth; col++) {
+                int chromaRow = (p.cropTop >> 1) + row;
+                int chromaCol = (p.cropLeft >> 1) + col;
+                byte u = p.u.get(chromaRow * p.uRowStride + chromaCol * p.uPixelStride);
+                byte v = p.v.get(chromaRow * p.vRowStride + chromaCol * p.vPixelStride);
+                int pair = base + 2 * (row * chromaWidth + col);
+                int planar = base + row * chromaWidth + col;
+                switch (format) {
+                    case NV21:
+                        out[pair] = v;
+                        out[pair + 1] = u;
+                        break;
+                    case NV12:
+                        out[pair] = u;
+                        out[pair + 1] = v;
+                        break;
+                    case I420:
+                        out[planar] = u;
+                        out[planar + planeSize] = v;
+                        break;
+                    case YV12:
+                        out[planar] = v;
+                        out[planar + planeSize] = u;
+                        break;
+                }
+            }
+        }
+        return out;
+    }
+}